@@ -0,0 +1,207 @@
+package com.aidaima.filedownloader;
+
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Learns the timeouts of each host from what we observed, instead of one fixed value that is too
+ * aggressive on a slow mobile link and too lax on a LAN. The connect and the response times are
+ * smoothed like the TCP retransmission timer (RFC 6298), the timeout is the smoothed time plus four
+ * times its deviation, a timeout doubles the estimate so the next attempt is more patient. The gaps
+ * between the reads of the body are learned apart from the response time, a slow mobile body pauses
+ * for seconds even when the server answers at once.
+ * <p/>
+ * The smoothed throughput of the host also tells the stall threshold, a transfer whose rate stays
+ * below it for {@link #getStallWindowMs()} is abandoned by a {@link StallException}, the request
+ * reconnects and resumes from its offset. Shared by the requests of a {@link RequestQueue}, thread safe.
+ */
+public class AdaptiveTimeouts {
+    /**
+     * The timeout of the host we never reached.
+     */
+    public static final int DEFAULT_TIMEOUT_MS = 10000;
+
+    public static final int MIN_TIMEOUT_MS = 1000;
+
+    public static final int MAX_TIMEOUT_MS = 60000;
+
+    /**
+     * The read timeout never goes below this, the body of a good host still pauses now and then.
+     */
+    public static final int MIN_READ_TIMEOUT_MS = 2500;
+
+    /**
+     * The body teaches the longest gap between its reads once per this interval, and at its end.
+     */
+    static final long GAP_SAMPLE_INTERVAL_MS = 1000;
+
+    /**
+     * The rate always counts as stall below this, even if the host was never faster.
+     */
+    private static final long MIN_STALL_RATE = 1024;
+
+    /**
+     * The rate never counts as stall above this, even if the host used to be much faster, the
+     * throughput of a mobile or shared link swings by far more than ten times.
+     */
+    private static final long MAX_STALL_RATE = 64 * 1024;
+
+    /**
+     * The transfer slower than this fraction of the host throughput is stalled.
+     */
+    private static final int STALL_RATE_DIVISOR = 10;
+
+    private static final long DEFAULT_STALL_WINDOW_MS = 10000;
+
+    private static final int MAX_HOSTS = 64;
+
+    private long mStallWindowMs = DEFAULT_STALL_WINDOW_MS;
+
+    private final Map<String, HostStats> mHosts = new LinkedHashMap<String, HostStats>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HostStats> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    /**
+     * Set how long the rate must stay low to count as stall, 0 to disable the stall detection.
+     */
+    public synchronized void setStallWindowMs(long stallWindowMs) {
+        mStallWindowMs = stallWindowMs;
+    }
+
+    public synchronized long getStallWindowMs() {
+        return mStallWindowMs;
+    }
+
+    public synchronized int getConnectTimeoutMs(String host) {
+        HostStats stats = mHosts.get(host);
+        return stats != null ? stats.connect.timeoutMs() : DEFAULT_TIMEOUT_MS;
+    }
+
+    /**
+     * The read timeout covers the server's think time before the response, and the gaps between
+     * the reads of the body, so it's the larger of the two.
+     */
+    public synchronized int getReadTimeoutMs(String host) {
+        HostStats stats = mHosts.get(host);
+        if (stats == null) return DEFAULT_TIMEOUT_MS;
+        return Math.max(MIN_READ_TIMEOUT_MS, Math.max(stats.response.timeoutMs(), stats.gap.timeoutMs()));
+    }
+
+    /**
+     * Returns the smoothed throughput of the host in bytes per second, 0 if unknown.
+     */
+    public synchronized long getThroughput(String host) {
+        HostStats stats = mHosts.get(host);
+        return stats != null ? (long) stats.throughput : 0;
+    }
+
+    /**
+     * Returns the rate in bytes per second below which a transfer from the host is stalled, a tenth
+     * of the host throughput, bounded by 1KB/s and 64KB/s.
+     */
+    public synchronized long getStallRate(String host) {
+        return Math.max(MIN_STALL_RATE, Math.min(MAX_STALL_RATE, getThroughput(host) / STALL_RATE_DIVISOR));
+    }
+
+    synchronized void onConnected(String host, long elapsedMs) {
+        statsOf(host).connect.sample(elapsedMs);
+    }
+
+    synchronized void onResponded(String host, long elapsedMs) {
+        statsOf(host).response.sample(elapsedMs);
+    }
+
+    /**
+     * The longest gap between the reads of a body lately, a read returned so it also clears the backoff.
+     */
+    synchronized void onReadGap(String host, long gapMs) {
+        statsOf(host).gap.sample(gapMs);
+    }
+
+    /**
+     * A transfer from the host ended, the short ones are dominated by the latency, skip them.
+     */
+    synchronized void onTransferred(String host, long bytes, long elapsedMs) {
+        if (elapsedMs < 100 || bytes <= 0) return;
+        HostStats stats = statsOf(host);
+        double rate = bytes * 1000.0 / elapsedMs;
+        stats.throughput = stats.throughput == 0 ? rate : stats.throughput * 0.75 + rate * 0.25;
+    }
+
+    /**
+     * The connect or the response timed out, back off the host's timeouts.
+     */
+    synchronized void onTimeout(String host, boolean connecting) {
+        HostStats stats = statsOf(host);
+        (connecting ? stats.connect : stats.response).backOff();
+    }
+
+    /**
+     * A read of the body timed out, the backoff stays till a read of a body returns.
+     */
+    synchronized void onReadTimeout(String host) {
+        statsOf(host).gap.backOff();
+    }
+
+    private HostStats statsOf(String host) {
+        HostStats stats = mHosts.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            mHosts.put(host, stats);
+        }
+        return stats;
+    }
+
+    private static class HostStats {
+        final Estimator connect = new Estimator();
+        final Estimator response = new Estimator();
+        final Estimator gap = new Estimator();
+        double throughput;
+    }
+
+    /**
+     * The smoothed time and its deviation, by the RFC 6298 gains.
+     */
+    private static class Estimator {
+        double mSmoothed = -1;
+        double mDeviation;
+        // the timeout doubled by the timeouts since the last sample.
+        int mBackedOffMs;
+
+        void sample(long elapsedMs) {
+            if (mSmoothed < 0) {
+                mSmoothed = elapsedMs;
+                mDeviation = elapsedMs / 2.0;
+            } else {
+                mDeviation = mDeviation * 0.75 + Math.abs(mSmoothed - elapsedMs) * 0.25;
+                mSmoothed = mSmoothed * 0.875 + elapsedMs * 0.125;
+            }
+            mBackedOffMs = 0;
+        }
+
+        void backOff() {
+            mBackedOffMs = Math.min(MAX_TIMEOUT_MS, timeoutMs() * 2);
+        }
+
+        int timeoutMs() {
+            if (mBackedOffMs > 0) return mBackedOffMs;
+            if (mSmoothed < 0) return DEFAULT_TIMEOUT_MS;
+            long timeout = (long) (mSmoothed + 4 * mDeviation);
+            return (int) Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, timeout));
+        }
+    }
+
+    /**
+     * The transfer stayed below the stall rate for the window, retried like a read timeout.
+     */
+    @SuppressWarnings("serial")
+    public static class StallException extends SocketTimeoutException {
+        public StallException(String message) {
+            super(message);
+        }
+    }
+}
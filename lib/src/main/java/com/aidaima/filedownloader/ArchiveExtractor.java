@@ -0,0 +1,372 @@
+package com.aidaima.filedownloader;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts a zip, tar or tar.gz archive while it is downloading, the entries are written
+ * to the target directory as soon as their bytes arrive, so no second pass over the archive is needed.
+ * <p/>
+ * The names of completed entries are appended to a marker file, when the download resumes,
+ * the archive is parsed again from the downloaded part of the temporary file, the completed
+ * entries are skipped, extraction restarts from the first incomplete entry.
+ */
+public class ArchiveExtractor {
+    private static final String TAG = ArchiveExtractor.class.getSimpleName();
+
+    public static final int FORMAT_ZIP = 0;
+    public static final int FORMAT_TAR = 1;
+    public static final int FORMAT_TAR_GZ = 2;
+
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    private final File mDirectory;
+
+    private final int mFormat;
+
+    private File mMarkerFile;
+
+    private final Set<String> mCompletedEntries = new HashSet<String>();
+
+    /**
+     * @param directory The directory to extract to.
+     * @param format    One of {@link #FORMAT_ZIP}, {@link #FORMAT_TAR}, {@link #FORMAT_TAR_GZ}.
+     */
+    public ArchiveExtractor(File directory, int format) {
+        if (format < FORMAT_ZIP || format > FORMAT_TAR_GZ) {
+            throw new IllegalArgumentException("Unknown archive format " + format);
+        }
+        mDirectory = directory;
+        mFormat = format;
+    }
+
+    /**
+     * Detect the archive format by the file name, returns -1 if it isn't a supported archive.
+     */
+    public static int detectFormat(String fileName) {
+        String name = fileName.toLowerCase(Locale.US);
+        int queryIndex = name.indexOf('?');
+        if (queryIndex != -1) name = name.substring(0, queryIndex);
+        if (name.endsWith(".zip")) return FORMAT_ZIP;
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) return FORMAT_TAR_GZ;
+        if (name.endsWith(".tar")) return FORMAT_TAR;
+        return -1;
+    }
+
+    /**
+     * Load the completed entries from the marker file, if the download starts from beginning,
+     * the marker belongs to another archive, forget it.
+     *
+     * @param markerFile     The file to record the completed entries.
+     * @param downloadedSize The size of the temporary file which the download continues from.
+     */
+    void restore(File markerFile, long downloadedSize) {
+        mMarkerFile = markerFile;
+        mCompletedEntries.clear();
+        if (downloadedSize == 0 || !markerFile.exists()) {
+            markerFile.delete();
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(markerFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) mCompletedEntries.add(line);
+            }
+        } catch (IOException e) {
+            // extract all entries again, it's slower but correct.
+            mCompletedEntries.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the completed entries, all entries will be extracted again.
+     */
+    void reset() {
+        mCompletedEntries.clear();
+        if (mMarkerFile != null) mMarkerFile.delete();
+    }
+
+    /**
+     * The extraction is done, the marker file is useless.
+     */
+    void finish() {
+        if (mMarkerFile != null) mMarkerFile.delete();
+    }
+
+    /**
+     * Extract the archive, the bytes come from the downloaded part of the temporary file first,
+     * then the live stream. Returns when the archive ends, the trailing bytes of the live stream
+     * (e.g. the zip central directory) are left to the caller.
+     *
+     * @param temporaryFile  The temporary file of the download.
+     * @param downloadedSize How many bytes of the temporary file were downloaded before the live stream.
+     * @param live           The stream of the rest bytes, may be null if the file is complete.
+     */
+    void extract(File temporaryFile, long downloadedSize, InputStream live) throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create directory " + mDirectory);
+        }
+
+        LimitedFileInputStream downloaded = new LimitedFileInputStream(temporaryFile, downloadedSize);
+        InputStream in = live != null ? new SequenceInputStream(downloaded, live) : downloaded;
+        // don't close the wrapping streams, the live stream belongs to the caller.
+        try {
+            switch (mFormat) {
+                case FORMAT_ZIP:
+                    extractZip(new ZipInputStream(in));
+                    break;
+                case FORMAT_TAR_GZ:
+                    extractTar(new GZIPInputStream(in));
+                    break;
+                default:
+                    extractTar(in);
+                    break;
+            }
+        } finally {
+            downloaded.close();
+        }
+    }
+
+    private void extractZip(ZipInputStream in) throws IOException {
+        ZipEntry entry;
+        while ((entry = in.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                resolve(entry.getName()).mkdirs();
+            } else {
+                writeEntry(entry.getName(), in, -1);
+            }
+            in.closeEntry();
+        }
+    }
+
+    private void extractTar(InputStream in) throws IOException {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        String longName = null;
+        while (true) {
+            if (!readFully(in, header, TAR_BLOCK_SIZE)) return;
+            // an empty block marks the end of archive.
+            if (isZeroBlock(header)) return;
+
+            String name = longName != null ? longName : parseTarName(header);
+            longName = null;
+            long size = parseOctal(header, 124, 12);
+            char type = (char) header[156];
+            long padding = (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE;
+
+            if (type == 'L') {
+                // GNU long name, the content is the name of the next entry.
+                byte[] nameBytes = new byte[(int) size];
+                if (!readFully(in, nameBytes, nameBytes.length)) throw new IOException("Truncated tar long name.");
+                longName = trimNul(new String(nameBytes, "UTF-8"));
+            } else if (type == '5') {
+                resolve(name).mkdirs();
+                skipFully(in, size);
+            } else if (type == '0' || type == '\0') {
+                writeEntry(name, in, size);
+            } else {
+                // links and special files are not supported.
+                skipFully(in, size);
+            }
+            skipFully(in, padding);
+        }
+    }
+
+    /**
+     * Write an entry to the directory, the completed entry is skipped but its bytes still consumed.
+     *
+     * @param size The entry size, -1 to read till the stream end.
+     */
+    private void writeEntry(String name, InputStream in, long size) throws IOException {
+        if (mCompletedEntries.contains(name)) {
+            skipFully(in, size);
+            return;
+        }
+
+        File file = resolve(name);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+
+        OutputStream out = new FileOutputStream(file);
+        byte[] buffer = null;
+        try {
+            buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE);
+            long remaining = size < 0 ? Long.MAX_VALUE : size;
+            while (remaining > 0) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    if (size < 0) break;
+                    throw new IOException("Truncated archive entry " + name);
+                }
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            MemoryBudget.get().release(buffer);
+            out.close();
+        }
+        markCompleted(name);
+    }
+
+    private void markCompleted(String name) {
+        mCompletedEntries.add(name);
+        if (mMarkerFile == null) return;
+        try {
+            Writer writer = new FileWriter(mMarkerFile, true);
+            try {
+                writer.write(name);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't record the completed entry " + name, e);
+        }
+    }
+
+    /**
+     * Resolve the entry name under the directory, reject the names escape from it.
+     */
+    private File resolve(String name) throws IOException {
+        File file = new File(mDirectory, name);
+        String directoryPath = mDirectory.getCanonicalPath() + File.separator;
+        if (!file.getCanonicalPath().startsWith(directoryPath)) {
+            throw new IOException("Archive entry " + name + " is outside of " + mDirectory);
+        }
+        return file;
+    }
+
+    private static String parseTarName(byte[] header) throws IOException {
+        String name = trimNul(new String(header, 0, 100, "UTF-8"));
+        // ustar splits the long path to prefix and name.
+        if ("ustar".equals(new String(header, 257, 5, "US-ASCII"))) {
+            String prefix = trimNul(new String(header, 345, 155, "UTF-8"));
+            if (prefix.length() > 0) name = prefix + "/" + name;
+        }
+        return name;
+    }
+
+    private static long parseOctal(byte[] header, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (value > 0) break;
+                continue;
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private static String trimNul(String value) {
+        int nulIndex = value.indexOf('\0');
+        return nulIndex == -1 ? value : value.substring(0, nulIndex);
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the stream ended before any byte read.
+     */
+    private static boolean readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(buffer, read, length - read);
+            if (count == -1) {
+                if (read == 0) return false;
+                throw new IOException("Truncated archive.");
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    /**
+     * @param size The bytes to skip, -1 to skip till the stream end.
+     */
+    private static void skipFully(InputStream in, long size) throws IOException {
+        byte[] buffer = null;
+        try {
+            buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE);
+            long remaining = size < 0 ? Long.MAX_VALUE : size;
+            while (remaining > 0) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    if (size < 0) return;
+                    throw new IOException("Truncated archive.");
+                }
+                remaining -= count;
+            }
+        } finally {
+            MemoryBudget.get().release(buffer);
+        }
+    }
+
+    /**
+     * Reads the first limit bytes of a file.
+     */
+    private static class LimitedFileInputStream extends InputStream {
+        private final FileInputStream mIn;
+        private long mRemaining;
+
+        LimitedFileInputStream(File file, long limit) throws IOException {
+            mIn = new FileInputStream(file);
+            mRemaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) return -1;
+            int result = mIn.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (result == -1) {
+                mRemaining = 0;
+                return -1;
+            }
+            mRemaining -= result;
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.aidaima.filedownloader;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.BitSet;
+
+/**
+ * Tracks which parts of a temporary file are on disk, so the file can be read while downloading.
+ * The sequential download fills a prefix, the on-demand Range requests fill the blocks after it,
+ * the blocks are tracked by a sparse bitmap.
+ * <p/>
+ * When blocks exist beyond the prefix, the bitmap is saved to a ".map" sidecar beside the
+ * temporary file, because the file length no longer tells the resume point.
+ * The sidecar is plain text, "fileLength blockSize" then one "firstBlock lastBlock" run per line.
+ */
+class BlockBitmap {
+    private static final String TAG = BlockBitmap.class.getSimpleName();
+
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final File mMapFile;
+
+    private final int mBlockSize;
+
+    /**
+     * The blocks written out of order.
+     */
+    private final BitSet mDoneBlocks = new BitSet();
+
+    /**
+     * The blocks some reader is fetching.
+     */
+    private final BitSet mFetchingBlocks = new BitSet();
+
+    /**
+     * The length written by the sequential download.
+     */
+    private long mPrefixLength;
+
+    private long mFileLength = -1;
+
+    /**
+     * When the prefix grew last time, by {@link SystemClock#uptimeMillis()}.
+     */
+    private long mPrefixUpdateTime;
+
+    private boolean mRangeUnsupported;
+
+    private BlockBitmap(File mapFile, int blockSize) {
+        mMapFile = mapFile;
+        mBlockSize = blockSize;
+    }
+
+    static File mapFileOf(File temporaryFile) {
+        return new File(temporaryFile.getPath() + ".map");
+    }
+
+    /**
+     * Load the bitmap of the temporary file, from the sidecar if it exists, otherwise the temporary
+     * file length is the prefix. If the download was already done, the store file is the whole.
+     */
+    static BlockBitmap open(File temporaryFile, File storeFile) {
+        File mapFile = mapFileOf(temporaryFile);
+        if (!temporaryFile.exists() && storeFile.exists()) {
+            BlockBitmap bitmap = new BlockBitmap(mapFile, DEFAULT_BLOCK_SIZE);
+            bitmap.mFileLength = storeFile.length();
+            bitmap.mPrefixLength = bitmap.mFileLength;
+            return bitmap;
+        }
+
+        BlockBitmap bitmap = load(mapFile);
+        if (bitmap == null) {
+            bitmap = new BlockBitmap(mapFile, DEFAULT_BLOCK_SIZE);
+            bitmap.mPrefixLength = temporaryFile.length();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the offset which the sequential download continues from, the temporary file length
+     * unless a sidecar says some blocks were written out of order.
+     */
+    static long readResumeOffset(File temporaryFile) {
+        BlockBitmap bitmap = load(mapFileOf(temporaryFile));
+        return bitmap == null ? temporaryFile.length() : bitmap.getContiguousLength();
+    }
+
+    private static BlockBitmap load(File mapFile) {
+        if (!mapFile.exists()) return null;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mapFile), "UTF-8"));
+            String[] header = reader.readLine().split(" ");
+            BlockBitmap bitmap = new BlockBitmap(mapFile, Integer.parseInt(header[1]));
+            bitmap.mFileLength = Long.parseLong(header[0]);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) continue;
+                String[] run = line.split(" ");
+                bitmap.mDoneBlocks.set(Integer.parseInt(run[0]), Integer.parseInt(run[1]) + 1);
+            }
+            return bitmap;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't load " + mapFile + ", ignore it.", e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Invalid " + mapFile + ", ignore it.", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        // without the map we can't tell which bytes are valid, the temporary file must restart.
+        mapFile.delete();
+        return null;
+    }
+
+    /**
+     * Save the blocks beyond the contiguous prefix to the sidecar, or delete the sidecar if none.
+     */
+    synchronized void save() {
+        long contiguousLength = getContiguousLength();
+        int firstBlock = mDoneBlocks.nextSetBit((int) (contiguousLength / mBlockSize));
+        if (firstBlock == -1) {
+            mMapFile.delete();
+            return;
+        }
+
+        File tmpMapFile = new File(mMapFile.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpMapFile), "UTF-8");
+            try {
+                writer.write(mFileLength + " " + mBlockSize + "\n");
+                // the prefix counts as a run, so the sidecar alone tells everything.
+                if (contiguousLength >= mBlockSize) {
+                    writer.write("0 " + (contiguousLength / mBlockSize - 1) + "\n");
+                }
+                int block = firstBlock;
+                while (block != -1) {
+                    int end = mDoneBlocks.nextClearBit(block);
+                    writer.write(block + " " + (end - 1) + "\n");
+                    block = mDoneBlocks.nextSetBit(end);
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tmpMapFile.renameTo(mMapFile)) throw new IOException("Can't rename " + tmpMapFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't save " + mMapFile, e);
+        }
+    }
+
+    /**
+     * The temporary file was truncated, forget everything.
+     */
+    synchronized void clear() {
+        mDoneBlocks.clear();
+        mPrefixLength = 0;
+        mMapFile.delete();
+        notifyAll();
+    }
+
+    /**
+     * The download finished, the whole file is on disk.
+     */
+    synchronized void complete(long fileLength) {
+        mFileLength = fileLength;
+        mPrefixLength = fileLength;
+        mMapFile.delete();
+        notifyAll();
+    }
+
+    synchronized void setFileLength(long fileLength) {
+        if (fileLength < 0 || fileLength == mFileLength) return;
+        mFileLength = fileLength;
+        notifyAll();
+    }
+
+    synchronized long getFileLength() {
+        return mFileLength;
+    }
+
+    synchronized void setRangeUnsupported() {
+        mRangeUnsupported = true;
+    }
+
+    synchronized boolean isRangeUnsupported() {
+        return mRangeUnsupported;
+    }
+
+    /**
+     * The sequential download wrote up to the length.
+     */
+    synchronized void markPrefix(long length) {
+        if (length <= mPrefixLength) return;
+        mPrefixLength = length;
+        mPrefixUpdateTime = SystemClock.uptimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * The range [start, end) was written, the blocks it covers are done, the last block counts
+     * if the range reaches the file end.
+     */
+    synchronized void markRange(long start, long end) {
+        int firstBlock = (int) ((start + mBlockSize - 1) / mBlockSize);
+        int endBlock = (int) (end / mBlockSize);
+        if (mFileLength >= 0 && end >= mFileLength) endBlock = (int) ((mFileLength + mBlockSize - 1) / mBlockSize);
+        if (endBlock > firstBlock) {
+            mDoneBlocks.set(firstBlock, endBlock);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the length of the continuous bytes from the file beginning.
+     */
+    synchronized long getContiguousLength() {
+        long length = mPrefixLength;
+        while (mFileLength < 0 || length < mFileLength) {
+            int block = (int) (length / mBlockSize);
+            if (!mDoneBlocks.get(block)) break;
+            length = (long) (block + 1) * mBlockSize;
+            if (mFileLength >= 0) length = Math.min(length, mFileLength);
+        }
+        return length;
+    }
+
+    /**
+     * Returns how many continuous bytes are on disk from the position, 0 if the position is missing.
+     */
+    synchronized long getAvailableLength(long position) {
+        if (position < mPrefixLength) return mPrefixLength - position;
+        int block = (int) (position / mBlockSize);
+        if (!mDoneBlocks.get(block)) return 0;
+        long end = (long) mDoneBlocks.nextClearBit(block) * mBlockSize;
+        if (mFileLength >= 0) end = Math.min(end, mFileLength);
+        return end - position;
+    }
+
+    /**
+     * Returns true if the sequential download is running and will reach the position soon,
+     * it's cheaper to wait for it than open another connection.
+     */
+    synchronized boolean isReachingSoon(long position, long window, long stallMillis) {
+        return position - mPrefixLength < window
+                && SystemClock.uptimeMillis() - mPrefixUpdateTime < stallMillis;
+    }
+
+    /**
+     * Claim the missing blocks from the position for fetching, stop at a done or claimed block.
+     *
+     * @return the byte range [start, end) to fetch, null if another reader is fetching the position.
+     */
+    synchronized long[] claimMissing(long position, int maxBlocks) {
+        int firstBlock = (int) (position / mBlockSize);
+        if (mFetchingBlocks.get(firstBlock)) return null;
+
+        int endBlock = firstBlock + 1;
+        while (endBlock - firstBlock < maxBlocks && !mDoneBlocks.get(endBlock) && !mFetchingBlocks.get(endBlock)
+                && (mFileLength < 0 || (long) endBlock * mBlockSize < mFileLength)) {
+            endBlock++;
+        }
+        mFetchingBlocks.set(firstBlock, endBlock);
+
+        long start = (long) firstBlock * mBlockSize;
+        long end = (long) endBlock * mBlockSize;
+        if (mFileLength >= 0) end = Math.min(end, mFileLength);
+        return new long[]{start, end};
+    }
+
+    synchronized void releaseClaim(long[] range) {
+        mFetchingBlocks.clear((int) (range[0] / mBlockSize), (int) ((range[1] + mBlockSize - 1) / mBlockSize));
+        notifyAll();
+    }
+
+    /**
+     * Wait until something changed or timeout.
+     */
+    synchronized void awaitChange(long timeoutMillis) throws InterruptedException {
+        wait(timeoutMillis);
+    }
+
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+}
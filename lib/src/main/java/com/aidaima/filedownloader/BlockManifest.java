@@ -0,0 +1,213 @@
+package com.aidaima.filedownloader;
+
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The hash list of fixed-size blocks of a file, lets us verify each block on its own,
+ * then re-fetch the corrupt blocks only instead of the whole file.
+ * <p/>
+ * The sidecar format is plain text, the first line is the algorithm, block size and the optional
+ * file length, then one hex hash per line by block order, lines start with '#' are comments:
+ * <pre>
+ * SHA-256 1048576 52428800
+ * 9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08 1f2e0a3b
+ * ...
+ * </pre>
+ * The optional second column is the {@link #weakChecksum(byte[], int, int)} of the block,
+ * the delta download relies on it to find the matching blocks in an old file.
+ */
+public class BlockManifest {
+    private final String mAlgorithm;
+
+    private final int mBlockSize;
+
+    private final List<byte[]> mBlockHashes;
+
+    private final long mFileLength;
+
+    private final int[] mWeakChecksums;
+
+    /**
+     * @param algorithm   The {@link MessageDigest} algorithm name of the block hashes.
+     * @param blockSize   The size of each block, the last block may be shorter.
+     * @param blockHashes The hex hashes by block order.
+     */
+    public BlockManifest(String algorithm, int blockSize, List<String> blockHashes) {
+        this(algorithm, blockSize, -1, blockHashes, null);
+    }
+
+    /**
+     * @param algorithm     The {@link MessageDigest} algorithm name of the block hashes.
+     * @param blockSize     The size of each block, the last block may be shorter.
+     * @param fileLength    The whole file length, -1 if unknown.
+     * @param blockHashes   The hex hashes by block order.
+     * @param weakChecksums The weak checksums by block order, null if not provided.
+     */
+    public BlockManifest(String algorithm, int blockSize, long fileLength, List<String> blockHashes, int[] weakChecksums) {
+        if (TextUtils.isEmpty(algorithm) || blockSize <= 0 || blockHashes == null || blockHashes.isEmpty()) {
+            throw new IllegalArgumentException("algorithm[" + algorithm + "], blockSize[" + blockSize
+                    + "] and blockHashes must be valid.");
+        }
+        if (weakChecksums != null && weakChecksums.length != blockHashes.size()) {
+            throw new IllegalArgumentException("weakChecksums count[" + weakChecksums.length
+                    + "] doesn't match blockHashes count[" + blockHashes.size() + "].");
+        }
+        mAlgorithm = algorithm;
+        mBlockSize = blockSize;
+        mFileLength = fileLength;
+        mWeakChecksums = weakChecksums == null ? null : weakChecksums.clone();
+        List<byte[]> hashes = new ArrayList<byte[]>(blockHashes.size());
+        for (String hex : blockHashes) {
+            hashes.add(new Checksum(algorithm, hex).toBytes());
+        }
+        mBlockHashes = Collections.unmodifiableList(hashes);
+        if (fileLength >= 0 && !isValidLength(fileLength)) {
+            throw new IllegalArgumentException("fileLength[" + fileLength + "] doesn't fit the block count.");
+        }
+    }
+
+    /**
+     * Parse the manifest from a local sidecar file.
+     */
+    public static BlockManifest fromFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parse the manifest in sidecar format, the stream won't be closed.
+     */
+    public static BlockManifest parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String algorithm = null;
+        int blockSize = 0;
+        long fileLength = -1;
+        List<String> blockHashes = new ArrayList<String>();
+        List<Integer> weakChecksums = new ArrayList<Integer>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+
+            String[] fields = line.split("\\s+");
+            try {
+                if (algorithm == null) {
+                    if (fields.length < 2) throw new IOException("Invalid manifest header: " + line);
+                    algorithm = fields[0];
+                    blockSize = Integer.parseInt(fields[1]);
+                    if (fields.length > 2) fileLength = Long.parseLong(fields[2]);
+                } else {
+                    blockHashes.add(fields[0]);
+                    // unsigned 32-bit hex.
+                    if (fields.length > 1) weakChecksums.add((int) Long.parseLong(fields[1], 16));
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid manifest line: " + line);
+            }
+        }
+
+        int[] weakChecksumArray = null;
+        if (!weakChecksums.isEmpty()) {
+            weakChecksumArray = new int[weakChecksums.size()];
+            for (int i = 0; i < weakChecksumArray.length; i++) {
+                weakChecksumArray[i] = weakChecksums.get(i);
+            }
+        }
+
+        try {
+            return new BlockManifest(algorithm, blockSize, fileLength, blockHashes, weakChecksumArray);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid manifest: " + e.getMessage());
+        }
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getBlockCount() {
+        return mBlockHashes.size();
+    }
+
+    /**
+     * Returns the whole file length, -1 if the manifest doesn't tell.
+     */
+    public long getFileLength() {
+        return mFileLength;
+    }
+
+    /**
+     * Returns true if this manifest provides weak checksums and file length, which the delta download needs.
+     */
+    public boolean supportsDelta() {
+        return mWeakChecksums != null && mFileLength >= 0;
+    }
+
+    public int getWeakChecksum(int blockIndex) {
+        return mWeakChecksums[blockIndex];
+    }
+
+    /**
+     * The rsync rolling checksum, "a" is the sum of the bytes and "b" is the sum of the
+     * prefix sums, both modulo 2^16, the checksum is (b << 16) | a. It can be rolled forward
+     * one byte in constant time, see {@link DeltaAssembler}.
+     */
+    public static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Returns the file size range this manifest can describe, the file length must
+     * greater than (blockCount - 1) * blockSize and not greater than blockCount * blockSize.
+     */
+    public boolean isValidLength(long fileLength) {
+        return fileLength > (long) (getBlockCount() - 1) * mBlockSize
+                && fileLength <= (long) getBlockCount() * mBlockSize;
+    }
+
+    /**
+     * Returns true if the digest equals to the hash of the block.
+     */
+    public boolean matches(int blockIndex, byte[] digest) {
+        return MessageDigest.isEqual(mBlockHashes.get(blockIndex), digest);
+    }
+
+    /**
+     * Returns the hash over all block hashes, which is the root of this two-level Merkle tree,
+     * compare it to a trusted root to make sure the manifest itself is intact.
+     */
+    public byte[] getRootHash() throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(mAlgorithm);
+        for (byte[] blockHash : mBlockHashes) {
+            digest.update(blockHash);
+        }
+        return digest.digest();
+    }
+}
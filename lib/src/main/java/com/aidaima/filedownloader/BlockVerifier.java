@@ -0,0 +1,188 @@
+package com.aidaima.filedownloader;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Verifies the blocks of a temporary file against a {@link BlockManifest}, each block is hashed
+ * on a shared thread pool as soon as the write loop completes it, so the hashing runs in parallel
+ * across cores while downloading.
+ */
+class BlockVerifier {
+
+    private static ExecutorService sExecutor;
+
+    private final BlockManifest mManifest;
+
+    private final File mFile;
+
+    /**
+     * The hashing result of each block, null if the block not submitted yet.
+     */
+    private final List<Future<Boolean>> mResults;
+
+    /**
+     * The index of the next block to submit.
+     */
+    private int mNextBlock;
+
+    public BlockVerifier(BlockManifest manifest, File file) {
+        mManifest = manifest;
+        mFile = file;
+        mResults = new ArrayList<Future<Boolean>>(
+                Collections.<Future<Boolean>>nCopies(manifest.getBlockCount(), null));
+    }
+
+    /**
+     * Inform the file was written continuously up to the length, submit the blocks which completed.
+     */
+    public void onBytesWritten(long length) {
+        long blockSize = mManifest.getBlockSize();
+        while (mNextBlock < mResults.size() && (mNextBlock + 1) * blockSize <= length) {
+            if (mResults.get(mNextBlock) == null) submit(mNextBlock, blockSize);
+            mNextBlock++;
+        }
+    }
+
+    /**
+     * Mark the block as intact without hashing, the caller already verified it.
+     */
+    public void markVerified(int blockIndex) {
+        FutureTask<Boolean> result = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return true;
+            }
+        });
+        result.run();
+        mResults.set(blockIndex, result);
+    }
+
+    /**
+     * Hash the blocks which not submitted yet, wait for all blocks done.
+     *
+     * @param fileLength The final length of the file.
+     * @return the indexes of the corrupt blocks, empty if all blocks are intact.
+     */
+    public List<Integer> verifyAll(long fileLength) throws IOException {
+        if (!mManifest.isValidLength(fileLength)) {
+            throw new IOException("File length " + fileLength + " doesn't fit the block manifest.");
+        }
+        for (; mNextBlock < mResults.size(); mNextBlock++) {
+            if (mResults.get(mNextBlock) == null) submit(mNextBlock, getBlockLength(mNextBlock, fileLength));
+        }
+        return collectCorruptBlocks();
+    }
+
+    /**
+     * Hash the given blocks again, normally after they were re-fetched.
+     *
+     * @return the indexes of the blocks still corrupt.
+     */
+    public List<Integer> reverify(List<Integer> blocks, long fileLength) throws IOException {
+        for (int blockIndex : blocks) {
+            submit(blockIndex, getBlockLength(blockIndex, fileLength));
+        }
+        return collectCorruptBlocks();
+    }
+
+    /**
+     * Returns the [start, end] byte range of the block, end inclusive.
+     */
+    public long[] getBlockRange(int blockIndex, long fileLength) {
+        long start = (long) blockIndex * mManifest.getBlockSize();
+        return new long[]{start, start + getBlockLength(blockIndex, fileLength) - 1};
+    }
+
+    /**
+     * Give up the blocks not done yet.
+     */
+    public void cancel() {
+        for (Future<Boolean> result : mResults) {
+            if (result != null) result.cancel(true);
+        }
+    }
+
+    private long getBlockLength(int blockIndex, long fileLength) {
+        long start = (long) blockIndex * mManifest.getBlockSize();
+        return Math.min(mManifest.getBlockSize(), fileLength - start);
+    }
+
+    private List<Integer> collectCorruptBlocks() throws IOException {
+        List<Integer> corruptBlocks = new ArrayList<Integer>();
+        for (int i = 0; i < mResults.size(); i++) {
+            try {
+                if (!mResults.get(i).get()) corruptBlocks.add(i);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while verifying blocks.");
+            } catch (ExecutionException e) {
+                throw new IOException("Can't verify block " + i, e.getCause());
+            }
+        }
+        return corruptBlocks;
+    }
+
+    private void submit(final int blockIndex, final long blockLength) {
+        mResults.set(blockIndex, getExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                MessageDigest digest = MessageDigest.getInstance(mManifest.getAlgorithm());
+                RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+                byte[] buffer = null;
+                try {
+                    buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE);
+                    raf.seek((long) blockIndex * mManifest.getBlockSize());
+                    long remaining = blockLength;
+                    while (remaining > 0) {
+                        int count = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (count == -1) return false;
+                        digest.update(buffer, 0, count);
+                        remaining -= count;
+                    }
+                } finally {
+                    MemoryBudget.get().release(buffer);
+                    raf.close();
+                }
+                return mManifest.matches(blockIndex, digest.digest());
+            }
+        }));
+    }
+
+    /**
+     * The hashing pool shared by all verifiers, one thread per core.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "BlockVerifier");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sExecutor;
+    }
+}
@@ -0,0 +1,142 @@
+package com.aidaima.filedownloader;
+
+import android.text.TextUtils;
+import android.util.Base64;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import java.security.MessageDigest;
+import java.util.Locale;
+
+/**
+ * The expected digest of a downloaded file, it can be supplied by the caller or
+ * picked up from the "Digest" or "Content-MD5" response header.
+ */
+public class Checksum {
+    public static final String SHA_256 = "SHA-256";
+    public static final String MD5 = "MD5";
+
+    /**
+     * The {@link MessageDigest} algorithm name.
+     */
+    public final String algorithm;
+
+    private final byte[] mValue;
+
+    /**
+     * @param algorithm The {@link MessageDigest} algorithm name, such as {@link #SHA_256} or {@link #MD5}.
+     * @param value     The digest bytes.
+     */
+    public Checksum(String algorithm, byte[] value) {
+        if (TextUtils.isEmpty(algorithm) || value == null || value.length == 0) {
+            throw new IllegalArgumentException("algorithm and value must not be empty.");
+        }
+        this.algorithm = algorithm;
+        mValue = value.clone();
+    }
+
+    /**
+     * @param algorithm The {@link MessageDigest} algorithm name, such as {@link #SHA_256} or {@link #MD5}.
+     * @param hex       The digest in hex string.
+     */
+    public Checksum(String algorithm, String hex) {
+        this(algorithm, parseHex(hex));
+    }
+
+    /**
+     * Returns true if the computed digest equals to this checksum.
+     */
+    public boolean matches(byte[] digest) {
+        return MessageDigest.isEqual(mValue, digest);
+    }
+
+    /**
+     * Returns a copy of the digest bytes.
+     */
+    public byte[] toBytes() {
+        return mValue.clone();
+    }
+
+    /**
+     * Returns the digest in hex string.
+     */
+    public String toHex() {
+        return FileUtils.toHex(mValue);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Checksum)) return false;
+        Checksum another = (Checksum) o;
+        return algorithm.equalsIgnoreCase(another.algorithm) && MessageDigest.isEqual(mValue, another.mValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return toHex().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + toHex();
+    }
+
+    /**
+     * Pick up the checksum of the whole file from the response headers, we prefer the "Digest" header
+     * because it always describes the whole file, the "Content-MD5" describes the response body only,
+     * so it's used when the response isn't partial.
+     *
+     * @return the checksum, or null if the response doesn't present one we support.
+     */
+    public static Checksum fromResponse(HttpResponse response) {
+        String digestValue = HttpUtils.getHeader(response, "Digest");
+        if (!TextUtils.isEmpty(digestValue)) {
+            Checksum md5 = null;
+            // e.g. "SHA-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=, MD5=..."
+            for (String instance : digestValue.split(",")) {
+                int equalIndex = instance.indexOf('=');
+                if (equalIndex == -1) continue;
+                String algorithm = instance.substring(0, equalIndex).trim().toUpperCase(Locale.US);
+                String value = instance.substring(equalIndex + 1).trim();
+                try {
+                    if (SHA_256.equals(algorithm)) {
+                        return new Checksum(SHA_256, Base64.decode(value, Base64.DEFAULT));
+                    } else if (MD5.equals(algorithm)) {
+                        md5 = new Checksum(MD5, Base64.decode(value, Base64.DEFAULT));
+                    }
+                } catch (IllegalArgumentException e) {
+                    // bad base64, ignore this instance.
+                }
+            }
+            if (md5 != null) return md5;
+        }
+
+        String contentMd5 = HttpUtils.getHeader(response, "Content-MD5");
+        if (!TextUtils.isEmpty(contentMd5)
+                && response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+            try {
+                return new Checksum(MD5, Base64.decode(contentMd5.trim(), Base64.DEFAULT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex == null || hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid hex digest " + hex);
+        }
+        byte[] value = new byte[hex.length() / 2];
+        for (int i = 0; i < value.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high == -1 || low == -1) {
+                throw new IllegalArgumentException("Invalid hex digest " + hex);
+            }
+            value[i] = (byte) ((high << 4) | low);
+        }
+        return value;
+    }
+}
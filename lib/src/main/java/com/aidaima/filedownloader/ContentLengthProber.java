@@ -0,0 +1,106 @@
+package com.aidaima.filedownloader;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A background thread which learns the size of waiting tasks by cheap HEAD or
+ * "Range: bytes=0-0" requests, the results are posted back through the given {@link Handler}.
+ */
+class ContentLengthProber extends Thread {
+    private static final String TAG = ContentLengthProber.class.getSimpleName();
+
+    private static final int PROBE_TIMEOUT_MS = 2500;
+
+    /**
+     * The queue of probes to perform.
+     */
+    private final BlockingQueue<Probe> mQueue = new LinkedBlockingQueue<Probe>();
+
+    /**
+     * For posting the results, typically to the main thread.
+     */
+    private final Handler mHandler;
+
+    /**
+     * Used for telling us to die.
+     */
+    private volatile boolean mQuit = false;
+
+    public ContentLengthProber(Handler handler) {
+        mHandler = handler;
+        setDaemon(true);
+    }
+
+    /**
+     * Put a probe to the queue, the callback will be invoked whatever the probe success or not.
+     */
+    public void probe(String storeFilePath, String url, Callback callback) {
+        mQueue.add(new Probe(storeFilePath, url, callback));
+    }
+
+    /**
+     * Forces this prober to quit immediately.
+     */
+    public void quit() {
+        mQuit = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            final Probe probe;
+            try {
+                probe = mQueue.take();
+            } catch (InterruptedException e) {
+                if (mQuit) return;
+                continue;
+            }
+
+            long fileSize;
+            try {
+                fileSize = HttpUtils.probeContentLength(probe.url, PROBE_TIMEOUT_MS);
+            } catch (IOException e) {
+                Log.d(TAG, "Probe " + probe.url + " failed: " + e);
+                fileSize = -1;
+            }
+            // the temporary file keeps the downloaded part, it counts for the remaining size.
+            final long downloadedSize = new File(probe.storeFilePath + ".tmp").length();
+            final long probedSize = fileSize;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    probe.callback.onProbed(probedSize, downloadedSize);
+                }
+            });
+        }
+    }
+
+    public interface Callback {
+        /**
+         * @param fileSize       The whole size of the file, -1 if unknown.
+         * @param downloadedSize The size already in the temporary file.
+         */
+        void onProbed(long fileSize, long downloadedSize);
+    }
+
+    private static class Probe {
+        final String storeFilePath;
+        final String url;
+        final Callback callback;
+
+        Probe(String storeFilePath, String url, Callback callback) {
+            this.storeFilePath = storeFilePath;
+            this.url = url;
+            this.callback = callback;
+        }
+    }
+}
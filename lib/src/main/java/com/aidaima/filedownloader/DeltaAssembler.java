@@ -0,0 +1,332 @@
+package com.aidaima.filedownloader;
+
+import android.text.TextUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds the new version of a file from an old local copy, zsync-style. The old file is scanned
+ * with the rolling checksum of {@link BlockManifest#weakChecksum(byte[], int, int)}, the blocks
+ * whose weak and strong hashes match the manifest are copied locally, only the missing ranges
+ * are fetched, by multi-range GETs.
+ */
+class DeltaAssembler {
+    /**
+     * Don't put too many ranges in one request, some servers refuse the long Range header.
+     */
+    private static final int MAX_RANGES_PER_REQUEST = 32;
+
+    private final BlockManifest mManifest;
+
+    private final File mSource;
+
+    private final File mTarget;
+
+    /**
+     * The blocks already in the target file.
+     */
+    private final BitSet mDoneBlocks;
+
+    public DeltaAssembler(BlockManifest manifest, File source, File target) {
+        if (!manifest.supportsDelta()) {
+            throw new IllegalArgumentException("The manifest doesn't provide weak checksums and file length.");
+        }
+        mManifest = manifest;
+        mSource = source;
+        mTarget = target;
+        mDoneBlocks = new BitSet(manifest.getBlockCount());
+    }
+
+    public boolean isBlockDone(int blockIndex) {
+        return mDoneBlocks.get(blockIndex);
+    }
+
+    /**
+     * Scan the old file, copy every matching block to its place of the target file.
+     *
+     * @return how many bytes were copied.
+     */
+    public long copyMatchingBlocks() throws IOException {
+        int blockSize = mManifest.getBlockSize();
+        if (!mSource.exists() || mSource.length() < blockSize) return 0;
+
+        // index the full-size blocks by weak checksum, the shorter last block is always fetched.
+        HashMap<Integer, List<Integer>> weakIndex = new HashMap<Integer, List<Integer>>();
+        int fullBlockCount = (int) (mManifest.getFileLength() / blockSize);
+        for (int i = 0; i < fullBlockCount; i++) {
+            List<Integer> blocks = weakIndex.get(mManifest.getWeakChecksum(i));
+            if (blocks == null) {
+                blocks = new ArrayList<Integer>(1);
+                weakIndex.put(mManifest.getWeakChecksum(i), blocks);
+            }
+            blocks.add(i);
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(mManifest.getAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported digest algorithm " + mManifest.getAlgorithm(), e);
+        }
+
+        long copiedSize = 0;
+        RandomAccessFile in = new RandomAccessFile(mSource, "r");
+        RandomAccessFile out = new RandomAccessFile(mTarget, "rw");
+        byte[] buffer = null;
+        try {
+            buffer = MemoryBudget.get().acquire(Math.max(blockSize * 2, 64 * 1024));
+            int bufferLength = 0;
+            // the window is [position, position + blockSize) of the buffer.
+            int position = 0;
+            boolean eof = false;
+            boolean rollable = false;
+            int a = 0;
+            int b = 0;
+
+            while (true) {
+                // make sure the window and the next byte are in the buffer.
+                if (position + blockSize + 1 > bufferLength && !eof) {
+                    System.arraycopy(buffer, position, buffer, 0, bufferLength - position);
+                    bufferLength -= position;
+                    position = 0;
+                    while (bufferLength < buffer.length) {
+                        int count = in.read(buffer, bufferLength, buffer.length - bufferLength);
+                        if (count == -1) {
+                            eof = true;
+                            break;
+                        }
+                        bufferLength += count;
+                    }
+                }
+                if (position + blockSize > bufferLength) break;
+
+                if (!rollable) {
+                    int checksum = BlockManifest.weakChecksum(buffer, position, blockSize);
+                    a = checksum & 0xffff;
+                    b = checksum >>> 16;
+                    rollable = true;
+                }
+
+                List<Integer> candidates = weakIndex.get((b << 16) | a);
+                if (candidates != null) {
+                    digest.update(buffer, position, blockSize);
+                    byte[] strong = digest.digest();
+                    boolean matched = false;
+                    // the same content may appear at several places of the new file.
+                    for (int blockIndex : candidates) {
+                        if (!mManifest.matches(blockIndex, strong)) continue;
+                        matched = true;
+                        if (mDoneBlocks.get(blockIndex)) continue;
+                        out.seek((long) blockIndex * blockSize);
+                        out.write(buffer, position, blockSize);
+                        mDoneBlocks.set(blockIndex);
+                        copiedSize += blockSize;
+                    }
+                    if (matched) {
+                        // jump over the matched block, start a new window.
+                        position += blockSize;
+                        rollable = false;
+                        continue;
+                    }
+                }
+
+                if (position + blockSize >= bufferLength) break;
+                // roll the window forward one byte.
+                int outByte = buffer[position] & 0xff;
+                int inByte = buffer[position + blockSize] & 0xff;
+                a = (a - outByte + inByte) & 0xffff;
+                b = (b - blockSize * outByte + a) & 0xffff;
+                position++;
+            }
+        } finally {
+            MemoryBudget.get().release(buffer);
+            in.close();
+            out.close();
+        }
+        return copiedSize;
+    }
+
+    /**
+     * Returns the byte ranges of the blocks not done, consecutive blocks merged, end inclusive.
+     */
+    public List<long[]> getMissingRanges() {
+        List<long[]> ranges = new ArrayList<long[]>();
+        int blockSize = mManifest.getBlockSize();
+        long fileLength = mManifest.getFileLength();
+        int blockIndex = mDoneBlocks.nextClearBit(0);
+        while (blockIndex < mManifest.getBlockCount()) {
+            int nextDone = mDoneBlocks.nextSetBit(blockIndex);
+            if (nextDone == -1) nextDone = mManifest.getBlockCount();
+            long start = (long) blockIndex * blockSize;
+            long end = Math.min((long) nextDone * blockSize, fileLength) - 1;
+            ranges.add(new long[]{start, end});
+            blockIndex = mDoneBlocks.nextClearBit(nextDone);
+        }
+        return ranges;
+    }
+
+    /**
+     * Fetch the missing ranges into the target file, several ranges per request. If the server
+     * ignores the Range header and responses the whole file, we take the whole file.
+     *
+     * @param request  Used to open the connections and check cancellation.
+     * @param callback Informs how many bytes written.
+     */
+    public void fetchMissingRanges(DownloadRequest request, ProgressCallback callback) throws IOException {
+        List<long[]> ranges = getMissingRanges();
+        RandomAccessFile out = new RandomAccessFile(mTarget, "rw");
+        try {
+            for (int i = 0; i < ranges.size(); i += MAX_RANGES_PER_REQUEST) {
+                if (request.isCanceled()) throw new IOException("Request was Canceled!");
+                List<long[]> batch = ranges.subList(i, Math.min(ranges.size(), i + MAX_RANGES_PER_REQUEST));
+                if (fetchBatch(request, batch, out, callback)) return;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return true if server-side responded the whole file, nothing more to fetch.
+     */
+    private boolean fetchBatch(DownloadRequest request, List<long[]> batch,
+                               RandomAccessFile out, ProgressCallback callback) throws IOException {
+        StringBuilder rangeValue = new StringBuilder("bytes=");
+        for (long[] range : batch) {
+            if (rangeValue.length() > 6) rangeValue.append(',');
+            rangeValue.append(range[0]).append('-').append(range[1]);
+        }
+
+        HttpURLConnection connection = request.openRangeConnection(rangeValue.toString());
+        InputStream in = null;
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode == 200) {
+                in = connection.getInputStream();
+                callback.onWholeFile();
+                writeRange(in, out, 0, mManifest.getFileLength() - 1, request, callback);
+                return true;
+            }
+            if (responseCode != 206) {
+                throw new IOException("Unexpected response code " + responseCode + " for ranges " + rangeValue);
+            }
+
+            in = new BufferedInputStream(connection.getInputStream());
+            String contentType = connection.getContentType();
+            String boundary = getBoundary(contentType);
+            if (boundary == null) {
+                // the server merged the ranges into a single one.
+                long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                writeRange(in, out, range[0], range[1], request, callback);
+                return false;
+            }
+
+            // multipart/byteranges, each part has its own Content-Range.
+            while (true) {
+                String line = readLine(in);
+                if (line == null) throw new IOException("Unexpected end of multipart response.");
+                if (line.equals("--" + boundary + "--")) break;
+                if (!line.equals("--" + boundary)) continue;
+
+                long[] range = null;
+                while (!TextUtils.isEmpty(line = readLine(in))) {
+                    int colonIndex = line.indexOf(':');
+                    if (colonIndex != -1 && line.substring(0, colonIndex).trim().equalsIgnoreCase("Content-Range")) {
+                        range = parseContentRange(line.substring(colonIndex + 1).trim());
+                    }
+                }
+                if (range == null) throw new IOException("Multipart part without Content-Range.");
+                writeRange(in, out, range[0], range[1], request, callback);
+            }
+            return false;
+        } finally {
+            if (in != null) in.close();
+            connection.disconnect();
+        }
+    }
+
+    private void writeRange(InputStream in, RandomAccessFile out, long start, long end,
+                            DownloadRequest request, ProgressCallback callback) throws IOException {
+        out.seek(start);
+        byte[] buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE, request);
+        try {
+            long remaining = end - start + 1;
+            while (remaining > 0) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) throw new IOException("Unexpected end of range " + start + "-" + end);
+                out.write(buffer, 0, count);
+                remaining -= count;
+                callback.onBytesWritten(count);
+                if (request.isCanceled()) throw new IOException("Request was Canceled!");
+            }
+        } finally {
+            MemoryBudget.get().release(buffer);
+        }
+    }
+
+    private static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.US).startsWith("multipart/byteranges")) return null;
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.startsWith("boundary=")) {
+                String boundary = param.substring("boundary=".length());
+                if (boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse "bytes start-end/total" to {start, end}.
+     */
+    private static long[] parseContentRange(String value) throws IOException {
+        try {
+            String range = value.substring("bytes ".length(), value.indexOf('/'));
+            int dashIndex = range.indexOf('-');
+            return new long[]{Long.parseLong(range.substring(0, dashIndex).trim()),
+                    Long.parseLong(range.substring(dashIndex + 1).trim())};
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid Content-Range " + value);
+        }
+    }
+
+    /**
+     * Read an ASCII line terminated by CRLF or LF, returns null at the end of stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            if (c != '\r') line.write(c);
+        }
+        if (c == -1 && line.size() == 0) return null;
+        return line.toString("US-ASCII");
+    }
+
+    public interface ProgressCallback {
+        void onBytesWritten(int count);
+
+        /**
+         * The server ignored the ranges, the whole file is written again from the beginning,
+         * the bytes counted so far don't count any more.
+         */
+        void onWholeFile();
+    }
+}
@@ -0,0 +1,87 @@
+package com.aidaima.filedownloader;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reserves the disk space of the known-length downloads before they start, so the concurrent
+ * downloads never together promise more than the volume has. A reservation shrinks as its bytes
+ * are written, the free space the volume reports shrinks the same, so nothing is counted twice.
+ * <p/>
+ * We can't tell the volume of a path before API 18, all reservations are counted against every
+ * volume, that may defer a task which fits another volume but never overcommits.
+ * Must be invoked from the main thread, like the {@link FileDownloader}.
+ */
+class DiskSpaceLedger {
+    /**
+     * The bytes still to write, by owner.
+     */
+    private final Map<Object, Long> mReservations = new HashMap<Object, Long>();
+
+    private long mReservedBytes;
+
+    /**
+     * The free space we always leave to the system and the app.
+     */
+    private long mMinFreeSpace;
+
+    void setMinFreeSpace(long minFreeSpace) {
+        mMinFreeSpace = minFreeSpace;
+    }
+
+    boolean hasReservations() {
+        return !mReservations.isEmpty();
+    }
+
+    /**
+     * Returns the bytes we can still promise to the directory's volume.
+     */
+    long getAvailableBytes(File directory) {
+        return usableSpace(directory) - mMinFreeSpace - mReservedBytes;
+    }
+
+    /**
+     * Reserve the bytes for the owner, replacing its former reservation.
+     *
+     * @return true if reserved, false if the space is short.
+     */
+    boolean reserve(Object owner, File directory, long bytes) {
+        release(owner);
+        if (bytes > getAvailableBytes(directory)) return false;
+        mReservations.put(owner, bytes);
+        mReservedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * The owner wrote some bytes, only the remaining bytes are still reserved.
+     */
+    void update(Object owner, long remainingBytes) {
+        Long reserved = mReservations.get(owner);
+        if (reserved == null || remainingBytes >= reserved) return;
+        remainingBytes = Math.max(0, remainingBytes);
+        mReservations.put(owner, remainingBytes);
+        mReservedBytes -= reserved - remainingBytes;
+    }
+
+    boolean isReserved(Object owner) {
+        return mReservations.containsKey(owner);
+    }
+
+    void release(Object owner) {
+        Long reserved = mReservations.remove(owner);
+        if (reserved != null) mReservedBytes -= reserved;
+    }
+
+    /**
+     * The usable space of the nearest existing directory, the target one may not be created yet.
+     */
+    private static long usableSpace(File directory) {
+        File file = directory.getAbsoluteFile();
+        while (file != null && !file.exists()) {
+            file = file.getParentFile();
+        }
+        return file != null ? file.getUsableSpace() : 0;
+    }
+}
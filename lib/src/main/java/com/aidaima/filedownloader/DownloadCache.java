@@ -0,0 +1,299 @@
+package com.aidaima.filedownloader;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A content-addressed on-disk cache of downloaded files, the entries are keyed by url and
+ * remember the ETag/Last-Modified validators, the file contents are stored by their SHA-256,
+ * so the urls who have the same content share one copy.
+ * <p/>
+ * When a url was cached, {@link DownloadRequest} send a conditional GET, if server-side
+ * response 304, the cached content is copied to the store file without any body transfer.
+ * <p/>
+ * The total size of the contents never exceeds the size budget, least-recently-used entries are evicted.
+ */
+public class DownloadCache {
+    private static final String TAG = DownloadCache.class.getSimpleName();
+
+    private static final String INDEX_FILE_NAME = "index";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final File mDirectory;
+
+    private final long mMaxSize;
+
+    /**
+     * The entries keyed by url, arranged by access order.
+     */
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * How many entries reference each content file, keyed by content hash.
+     */
+    private final HashMap<String, Integer> mContentRefs = new HashMap<String, Integer>();
+
+    /**
+     * The total size of the content files.
+     */
+    private long mCurrentSize;
+
+    private boolean mLoaded;
+
+    /**
+     * @param directory The directory to store the cache index and contents.
+     * @param maxSize   The maximum total size of the cached contents, in bytes.
+     */
+    public DownloadCache(File directory, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize[" + maxSize + "] must greater than 0.");
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached entry of the url, or null if not cached.
+     */
+    public synchronized Entry get(String url) {
+        ensureLoaded();
+        Entry entry = mEntries.get(url);
+        if (entry != null && !getContentFile(entry.hash).exists()) {
+            // the content was deleted outside, forget this entry.
+            removeEntry(url);
+            writeIndex();
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Copy the cached content of the entry to the destination, under the lock so the content
+     * can't be evicted while copying.
+     */
+    public synchronized void copyTo(Entry entry, File destination) throws IOException {
+        FileUtils.copyFile(getContentFile(entry.hash), destination);
+    }
+
+    /**
+     * Put the downloaded file to cache, nothing happen if the response doesn't present any validator,
+     * because we have no way to revalidate it.
+     *
+     * @param url          The url of the download.
+     * @param etag         The ETag response header.
+     * @param lastModified The Last-Modified response header.
+     * @param file         The downloaded file.
+     */
+    public void put(String url, String etag, String lastModified, File file) throws IOException {
+        put(url, etag, lastModified, file, null);
+    }
+
+    /**
+     * Same as {@link #put(String, String, String, File)}, but the SHA-256 of the file
+     * already computed, so we don't need another pass to digest the file.
+     *
+     * @param sha256Hex The SHA-256 in hex string, null if unknown.
+     */
+    public void put(String url, String etag, String lastModified, File file, String sha256Hex) throws IOException {
+        if (TextUtils.isEmpty(etag) && TextUtils.isEmpty(lastModified)) return;
+        if (file.length() > mMaxSize) return;
+
+        // digest and copy outside the lock, they are the slow parts.
+        String hash = sha256Hex != null ? sha256Hex : FileUtils.toHex(FileUtils.digest(file, DIGEST_ALGORITHM));
+        File contentFile = getContentFile(hash);
+        if (!contentFile.exists()) {
+            if (!mDirectory.exists()) mDirectory.mkdirs();
+            FileUtils.copyFile(file, contentFile);
+        }
+
+        synchronized (this) {
+            ensureLoaded();
+            // evicted by another put since we copied it.
+            if (!contentFile.exists()) FileUtils.copyFile(file, contentFile);
+            // reference the new content before releasing the old one, they may be the same.
+            Entry previous = mEntries.get(url);
+            addEntry(new Entry(url, etag, lastModified, hash, contentFile.length()));
+            if (previous != null) releaseContent(previous);
+            trimToSize();
+            writeIndex();
+        }
+    }
+
+    /**
+     * Returns the total size of the cached contents.
+     */
+    public synchronized long getSize() {
+        ensureLoaded();
+        return mCurrentSize;
+    }
+
+    /**
+     * Remove all entries and contents.
+     */
+    public synchronized void clear() {
+        ensureLoaded();
+        while (!mEntries.isEmpty()) {
+            removeEntry(mEntries.keySet().iterator().next());
+        }
+        writeIndex();
+    }
+
+    private File getContentFile(String hash) {
+        return new File(mDirectory, hash);
+    }
+
+    private void addEntry(Entry entry) {
+        mEntries.put(entry.url, entry);
+        Integer refs = mContentRefs.get(entry.hash);
+        if (refs == null) {
+            mContentRefs.put(entry.hash, 1);
+            mCurrentSize += entry.length;
+        } else {
+            mContentRefs.put(entry.hash, refs + 1);
+        }
+    }
+
+    private void removeEntry(String url) {
+        Entry entry = mEntries.remove(url);
+        if (entry != null) releaseContent(entry);
+    }
+
+    /**
+     * Drop a reference of the entry's content, delete the content if nobody references it.
+     */
+    private void releaseContent(Entry entry) {
+        int refs = mContentRefs.get(entry.hash) - 1;
+        if (refs > 0) {
+            mContentRefs.put(entry.hash, refs);
+        } else {
+            // nobody references the content, delete it.
+            mContentRefs.remove(entry.hash);
+            mCurrentSize -= entry.length;
+            getContentFile(entry.hash).delete();
+        }
+    }
+
+    /**
+     * Evict the least-recently-used entries until the total size under the budget.
+     */
+    private void trimToSize() {
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (mCurrentSize > mMaxSize && iterator.hasNext()) {
+            String url = iterator.next();
+            // removeEntry() modify the map, re-create the iterator after that.
+            removeEntry(url);
+            iterator = mEntries.keySet().iterator();
+        }
+    }
+
+    /**
+     * Read the index file at the first access, the index lines are kept by access order.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) return;
+        mLoaded = true;
+
+        File indexFile = new File(mDirectory, INDEX_FILE_NAME);
+        if (!indexFile.exists()) return;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.parse(line);
+                if (entry != null && getContentFile(entry.hash).exists()) addEntry(entry);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't read the cache index " + indexFile, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index to a temporary file then rename, avoid the index broken when crash.
+     */
+    private void writeIndex() {
+        if (!mDirectory.exists()) mDirectory.mkdirs();
+        File indexFile = new File(mDirectory, INDEX_FILE_NAME);
+        File temporaryFile = new File(mDirectory, INDEX_FILE_NAME + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8");
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                writer.write(entry.getValue().toLine());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!temporaryFile.renameTo(indexFile)) {
+                Log.e(TAG, "Can't rename the cache index " + temporaryFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't write the cache index " + indexFile, e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached url and the validators which the content responded with.
+     */
+    public static class Entry {
+        public final String url;
+        public final String etag;
+        public final String lastModified;
+        public final String hash;
+        public final long length;
+
+        Entry(String url, String etag, String lastModified, String hash, long length) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.length = length;
+        }
+
+        String toLine() {
+            return url + '\t' + (etag == null ? "" : etag) + '\t'
+                    + (lastModified == null ? "" : lastModified) + '\t' + hash + '\t' + length;
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 5) return null;
+            try {
+                return new Entry(fields[0], TextUtils.isEmpty(fields[1]) ? null : fields[1],
+                        TextUtils.isEmpty(fields[2]) ? null : fields[2], fields[3], Long.parseLong(fields[4]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package com.aidaima.filedownloader;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a task added by {@link FileDownloader#submit(String, String, DownloadOptions, Executor)},
+ * a {@link Future} of the stored file plus a publisher of the progress. The callbacks and the subscribers
+ * run on the executor given at submit, not the main thread, so a worker can chain the file into the next
+ * stage directly. The outcome and the progress go from the dispatcher thread to the executor straight,
+ * only the state of the controller is kept on the main thread.
+ * <p/>
+ * The progress follows the reactive streams rules: a subscriber receives no more {@link Progress} than it
+ * requested, the progress made while it has no demand is conflated to the latest one, so a slow subscriber
+ * never queues up events. The methods of this class can be invoked from any thread, except get().
+ */
+public class DownloadFuture implements Future<File> {
+    private static final int STATE_RUNNING = 0;
+    private static final int STATE_SUCCESS = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private final File mFile;
+
+    private final Executor mExecutor;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Set on the main thread once the task was added.
+     */
+    private FileDownloader.DownloadController mController;
+
+    private int mState = STATE_RUNNING;
+
+    private NetworkException mError;
+
+    private final List<Callback> mCallbacks = new ArrayList<Callback>();
+
+    private final List<ProgressSubscription> mSubscriptions = new ArrayList<ProgressSubscription>();
+
+    private final DownloadRequest.Observer mObserver = new DownloadRequest.Observer() {
+        @Override
+        public void onProgressChange(long fileSize, long downloadedSize) {
+            publish(new Progress(fileSize, downloadedSize));
+        }
+
+        @Override
+        public void onResult(boolean delivered, NetworkException error) {
+            if (delivered) {
+                complete(STATE_SUCCESS, null);
+            } else if (error != null && !(error instanceof NetworkException.NetworkCancel)) {
+                complete(STATE_FAILED, error);
+            }
+            // paused, or attached too late and downloads by itself, the next request tells.
+        }
+    };
+
+    DownloadFuture(String storeFilePath, Executor executor) {
+        mFile = new File(storeFilePath);
+        mExecutor = executor;
+    }
+
+    /**
+     * Observes the requests of the task on the dispatcher thread.
+     */
+    DownloadRequest.Observer getObserver() {
+        return mObserver;
+    }
+
+    /**
+     * Catches the outcome of the task on the main thread, which the observer already had unless the task
+     * ended without a request, like short of space. Must be invoked from the main thread.
+     */
+    FileDownloader.Listener createListener(FileDownloader downloader) {
+        return downloader.new Listener() {
+            @Override
+            public void onFinish() {
+                complete(STATE_SUCCESS, null);
+            }
+
+            @Override
+            public void onError(NetworkException error) {
+                complete(STATE_FAILED, error);
+            }
+        };
+    }
+
+    void setController(FileDownloader.DownloadController controller) {
+        boolean cancelled;
+        synchronized (this) {
+            mController = controller;
+            cancelled = mState == STATE_CANCELLED;
+        }
+        // cancelled before it was added.
+        if (cancelled) controller.discard();
+    }
+
+    /**
+     * Returns the controller of the task, null if the task wasn't added to the main thread yet.
+     */
+    public synchronized FileDownloader.DownloadController getController() {
+        return mController;
+    }
+
+    /**
+     * Run the callback on the executor when the download is done, at once if it was already done.
+     */
+    public void addCallback(Callback callback) {
+        synchronized (this) {
+            if (mState == STATE_RUNNING) {
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        dispatchCallback(callback);
+    }
+
+    /**
+     * Subscribe to the progress, the subscriber is completed when the download succeeded, and
+     * receives the error when failed or cancelled. A subscriber joins after done is terminated at once.
+     */
+    public void subscribe(ProgressSubscriber subscriber) {
+        final ProgressSubscription subscription = new ProgressSubscription(subscriber);
+        synchronized (this) {
+            if (mState == STATE_RUNNING) {
+                mSubscriptions.add(subscription);
+            } else {
+                subscription.terminate(mState, mError);
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                subscription.start();
+            }
+        });
+    }
+
+    /**
+     * Discard the task, it can't be resumed.
+     *
+     * @param mayInterruptIfRunning ignored, the request is always canceled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        final FileDownloader.DownloadController controller;
+        synchronized (this) {
+            if (mState != STATE_RUNNING) return false;
+            controller = mController;
+        }
+        if (!complete(STATE_CANCELLED, null)) return false;
+        if (controller != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    controller.discard();
+                }
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != STATE_RUNNING;
+    }
+
+    /**
+     * Wait for the file, must not be invoked from the main thread, the task is added and controlled there.
+     */
+    @Override
+    public synchronized File get() throws InterruptedException, ExecutionException {
+        throwIfOnMainThread();
+        while (mState == STATE_RUNNING) {
+            wait();
+        }
+        return result();
+    }
+
+    /**
+     * Wait for the file at most the timeout, must not be invoked from the main thread.
+     */
+    @Override
+    public synchronized File get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        throwIfOnMainThread();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == STATE_RUNNING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private static void throwIfOnMainThread() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("DownloadFuture.get() must not be invoked from the main thread.");
+        }
+    }
+
+    private File result() throws ExecutionException {
+        if (mState == STATE_CANCELLED) throw new CancellationException();
+        if (mState == STATE_FAILED) throw new ExecutionException(mError);
+        return mFile;
+    }
+
+    /**
+     * @return false if it was already done.
+     */
+    private boolean complete(int state, NetworkException error) {
+        List<Callback> callbacks;
+        List<ProgressSubscription> subscriptions;
+        synchronized (this) {
+            if (mState != STATE_RUNNING) return false;
+            mState = state;
+            mError = error;
+            callbacks = new ArrayList<Callback>(mCallbacks);
+            subscriptions = new ArrayList<ProgressSubscription>(mSubscriptions);
+            mCallbacks.clear();
+            mSubscriptions.clear();
+            notifyAll();
+        }
+        for (Callback callback : callbacks) {
+            dispatchCallback(callback);
+        }
+        for (ProgressSubscription subscription : subscriptions) {
+            subscription.terminate(state, error);
+        }
+        return true;
+    }
+
+    private void publish(Progress progress) {
+        List<ProgressSubscription> subscriptions;
+        synchronized (this) {
+            if (mSubscriptions.isEmpty()) return;
+            subscriptions = new ArrayList<ProgressSubscription>(mSubscriptions);
+        }
+        for (ProgressSubscription subscription : subscriptions) {
+            subscription.offer(progress);
+        }
+    }
+
+    private void dispatchCallback(final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int state;
+                NetworkException error;
+                synchronized (DownloadFuture.this) {
+                    state = mState;
+                    error = mError;
+                }
+                if (state == STATE_SUCCESS) {
+                    callback.onSuccess(mFile);
+                } else {
+                    callback.onFailure(state == STATE_CANCELLED ? new CancellationException() : error);
+                }
+            }
+        });
+    }
+
+    private synchronized void removeSubscription(ProgressSubscription subscription) {
+        mSubscriptions.remove(subscription);
+    }
+
+    /**
+     * The progress of the task, the sizes are the same as {@link FileDownloader.Listener#onProgressChange(long, long)}.
+     */
+    public static class Progress {
+        public final long fileSize;
+        public final long downloadedSize;
+
+        public Progress(long fileSize, long downloadedSize) {
+            this.fileSize = fileSize;
+            this.downloadedSize = downloadedSize;
+        }
+    }
+
+    /**
+     * Receives the outcome of the download on the executor.
+     */
+    public interface Callback {
+        void onSuccess(File file);
+
+        /**
+         * @param cause a {@link NetworkException} if the download failed, a {@link CancellationException} if cancelled.
+         */
+        void onFailure(Throwable cause);
+    }
+
+    /**
+     * Demand or stop the progress, can be invoked from any thread.
+     */
+    public interface Subscription {
+        /**
+         * Add the demand of n progress, n must be positive.
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * Receives the progress on the executor, the calls are never concurrent.
+     */
+    public interface ProgressSubscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(Progress progress);
+
+        /**
+         * @param cause a {@link NetworkException} if the download failed, a {@link CancellationException} if cancelled.
+         */
+        void onError(Throwable cause);
+
+        void onComplete();
+    }
+
+    /**
+     * Holds the demand and the latest undelivered progress of a subscriber, the signals are drained
+     * on the executor by one runnable at a time.
+     */
+    private class ProgressSubscription implements Subscription, Runnable {
+        private final ProgressSubscriber mSubscriber;
+
+        private boolean mStarted;
+        private long mDemand;
+        private Progress mPending;
+        private boolean mTerminated;
+        private Throwable mTerminalError;
+        private boolean mDone;
+        private boolean mDraining;
+
+        ProgressSubscription(ProgressSubscriber subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        /**
+         * Runs on the executor.
+         */
+        void start() {
+            mSubscriber.onSubscribe(this);
+            synchronized (this) {
+                mStarted = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    if (mDone) return;
+                    mPending = null;
+                    mTerminated = true;
+                    mTerminalError = new IllegalArgumentException("Non-positive request " + n);
+                }
+                removeSubscription(this);
+            } else {
+                synchronized (this) {
+                    // reaching Long.MAX_VALUE means unbounded.
+                    mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                mDone = true;
+                mPending = null;
+            }
+            removeSubscription(this);
+        }
+
+        void offer(Progress progress) {
+            synchronized (this) {
+                if (mTerminated) return;
+                mPending = progress;
+            }
+            schedule();
+        }
+
+        void terminate(int state, NetworkException error) {
+            synchronized (this) {
+                if (mTerminated) return;
+                mTerminated = true;
+                if (state == STATE_CANCELLED) {
+                    mTerminalError = new CancellationException();
+                } else if (state == STATE_FAILED) {
+                    mTerminalError = error;
+                }
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (!mStarted || mDraining || mDone) return;
+                if (!mTerminated && (mPending == null || mDemand == 0)) return;
+                mDraining = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Progress progress = null;
+                boolean terminal = false;
+                synchronized (this) {
+                    if (mDone) {
+                        mDraining = false;
+                        return;
+                    }
+                    if (mPending != null && mDemand > 0) {
+                        progress = mPending;
+                        mPending = null;
+                        if (mDemand != Long.MAX_VALUE) mDemand--;
+                    } else if (mTerminated) {
+                        terminal = true;
+                        mDone = true;
+                        mDraining = false;
+                    } else {
+                        mDraining = false;
+                        return;
+                    }
+                }
+
+                if (terminal) {
+                    if (mTerminalError != null) {
+                        mSubscriber.onError(mTerminalError);
+                    } else {
+                        mSubscriber.onComplete();
+                    }
+                    return;
+                }
+                mSubscriber.onNext(progress);
+            }
+        }
+    }
+}
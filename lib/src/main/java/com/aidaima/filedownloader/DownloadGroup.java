@@ -0,0 +1,197 @@
+package com.aidaima.filedownloader;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tasks controlled together, created by {@link FileDownloader#addAll(DownloadManifest, FileDownloader.Listener)}
+ * or {@link FileDownloader#group(List)}. The operations touch the members only, then schedule once,
+ * the aggregate progress is updated by the delta of each progress event, never summed again.
+ * <p/>
+ * All methods must be invoked from the main thread, like the {@link FileDownloader}.
+ */
+public class DownloadGroup {
+    private final FileDownloader mDownloader;
+
+    private final List<FileDownloader.DownloadController> mControllers;
+
+    private Listener mListener;
+
+    private long mTotalBytes;
+
+    private long mDownloadedBytes;
+
+    private int mSucceededCount;
+
+    private int mFailedCount;
+
+    private boolean mFinishDelivered;
+
+    DownloadGroup(FileDownloader downloader, List<FileDownloader.DownloadController> controllers) {
+        mDownloader = downloader;
+        mControllers = Collections.unmodifiableList(controllers);
+    }
+
+    /**
+     * Returns the controllers by the order they were added.
+     */
+    public List<FileDownloader.DownloadController> getControllers() {
+        return mControllers;
+    }
+
+    public int size() {
+        return mControllers.size();
+    }
+
+    /**
+     * Set the listener, if the group was already finished, {@link Listener#onFinish(int, int)} is called at once.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+        deliverFinishIfDone();
+    }
+
+    /**
+     * Returns the sum of the member sizes we know.
+     */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public long getDownloadedBytes() {
+        return mDownloadedBytes;
+    }
+
+    public int getFinishedCount() {
+        return mSucceededCount + mFailedCount;
+    }
+
+    public boolean isFinished() {
+        return getFinishedCount() == mControllers.size();
+    }
+
+    public void pause() {
+        mDownloader.beginBatch();
+        try {
+            for (FileDownloader.DownloadController controller : mControllers) {
+                controller.pause();
+            }
+        } finally {
+            mDownloader.endBatch();
+        }
+    }
+
+    public void resume() {
+        mDownloader.beginBatch();
+        try {
+            for (FileDownloader.DownloadController controller : mControllers) {
+                controller.resume();
+            }
+        } finally {
+            mDownloader.endBatch();
+        }
+    }
+
+    /**
+     * Discard all members which not finished yet.
+     */
+    public void cancel() {
+        mDownloader.beginBatch();
+        try {
+            for (FileDownloader.DownloadController controller : mControllers) {
+                controller.discard();
+            }
+        } finally {
+            mDownloader.endBatch();
+        }
+    }
+
+    /**
+     * Change the priority of all members, see {@link FileDownloader.DownloadController#setPriority(int)}.
+     */
+    public void setPriority(int priority) {
+        mDownloader.beginBatch();
+        try {
+            for (FileDownloader.DownloadController controller : mControllers) {
+                controller.setPriority(priority);
+            }
+        } finally {
+            mDownloader.endBatch();
+        }
+    }
+
+    private void onMemberProgress(long fileSizeDelta, long downloadedSizeDelta) {
+        mTotalBytes += fileSizeDelta;
+        mDownloadedBytes += downloadedSizeDelta;
+        if (mListener != null) mListener.onProgressChange(mTotalBytes, mDownloadedBytes);
+    }
+
+    private void onMemberFinished(boolean success) {
+        if (success) {
+            mSucceededCount++;
+        } else {
+            mFailedCount++;
+        }
+        deliverFinishIfDone();
+    }
+
+    private void deliverFinishIfDone() {
+        if (mListener == null || mFinishDelivered || !isFinished()) return;
+        mFinishDelivered = true;
+        mListener.onFinish(mSucceededCount, mFailedCount);
+    }
+
+    /**
+     * The state of a member in its group, held by the member's controller.
+     */
+    static class Member {
+        private final DownloadGroup mGroup;
+
+        private long mFileSize;
+
+        private long mDownloadedSize;
+
+        private boolean mFinished;
+
+        Member(DownloadGroup group, long fileSize) {
+            mGroup = group;
+            mFileSize = Math.max(0, fileSize);
+            group.onMemberProgress(mFileSize, 0);
+        }
+
+        void onProgress(long fileSize, long downloadedSize) {
+            long fileSizeDelta = 0;
+            if (fileSize > 0 && fileSize != mFileSize) {
+                fileSizeDelta = fileSize - mFileSize;
+                mFileSize = fileSize;
+            }
+            long downloadedSizeDelta = downloadedSize - mDownloadedSize;
+            mDownloadedSize = downloadedSize;
+            if (fileSizeDelta != 0 || downloadedSizeDelta != 0) {
+                mGroup.onMemberProgress(fileSizeDelta, downloadedSizeDelta);
+            }
+        }
+
+        void onFinished(boolean success) {
+            if (mFinished) return;
+            mFinished = true;
+            mGroup.onMemberFinished(success);
+        }
+    }
+
+    public static abstract class Listener {
+        /**
+         * Inform when any member's progress change.
+         *
+         * @param totalBytes      The sum of the member sizes we know, grows when a member learns its size.
+         * @param downloadedBytes The sum of the downloaded bytes of members.
+         */
+        public void onProgressChange(long totalBytes, long downloadedBytes) {
+        }
+
+        /**
+         * Inform once when all members finished, whatever success or failed or discarded.
+         */
+        public abstract void onFinish(int succeededCount, int failedCount);
+    }
+}
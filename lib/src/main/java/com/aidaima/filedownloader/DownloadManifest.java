@@ -0,0 +1,140 @@
+package com.aidaima.filedownloader;
+
+import android.text.TextUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A list of files to download in bulk, pass it to {@link FileDownloader#addAll(DownloadManifest, FileDownloader.Listener)}.
+ * <p/>
+ * The manifest file is plain text, one entry per line, the fields are separated by tab, the
+ * optional fields can be omitted from the tail or be "-", lines start with '#' are comments:
+ * <pre>
+ * url    storeFilePath    [size]    [algorithm:hex]    [priority]
+ * </pre>
+ * A relative storeFilePath is resolved against the base directory.
+ */
+public class DownloadManifest {
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+    public DownloadManifest add(String url, String storeFilePath) {
+        return add(new Entry(url, storeFilePath));
+    }
+
+    public DownloadManifest add(Entry entry) {
+        mEntries.add(entry);
+        return this;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Parse the manifest from a local file.
+     *
+     * @param baseDirectory The directory to resolve the relative paths.
+     */
+    public static DownloadManifest fromFile(File file, File baseDirectory) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return parse(in, baseDirectory);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parse the manifest, the stream won't be closed.
+     *
+     * @param baseDirectory The directory to resolve the relative paths.
+     */
+    public static DownloadManifest parse(InputStream in, File baseDirectory) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        DownloadManifest manifest = new DownloadManifest();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().length() == 0 || line.startsWith("#")) continue;
+
+            String[] fields = line.split("\t");
+            if (fields.length < 2) throw new IOException("Line " + lineNumber + " needs url and path: " + line);
+            try {
+                String storeFilePath = fields[1];
+                if (!new File(storeFilePath).isAbsolute()) {
+                    storeFilePath = new File(baseDirectory, storeFilePath).getPath();
+                }
+                long size = isPresent(fields, 2) ? Long.parseLong(fields[2].trim()) : -1;
+                Checksum checksum = null;
+                if (isPresent(fields, 3)) {
+                    String value = fields[3].trim();
+                    int colonIndex = value.indexOf(':');
+                    if (colonIndex == -1) throw new IOException("Line " + lineNumber + " checksum needs algorithm: " + value);
+                    checksum = new Checksum(value.substring(0, colonIndex), value.substring(colonIndex + 1));
+                }
+                int priority = isPresent(fields, 4) ? Integer.parseInt(fields[4].trim()) : 0;
+                manifest.add(new Entry(fields[0].trim(), storeFilePath, size, checksum, priority));
+            } catch (IllegalArgumentException e) {
+                // also the NumberFormatException.
+                throw new IOException("Invalid line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return manifest;
+    }
+
+    private static boolean isPresent(String[] fields, int index) {
+        return index < fields.length && !TextUtils.isEmpty(fields[index].trim()) && !fields[index].trim().equals("-");
+    }
+
+    /**
+     * A file of the manifest.
+     */
+    public static class Entry {
+        public final String url;
+
+        public final String storeFilePath;
+
+        /**
+         * The file size, -1 if unknown, the size-aware {@link SchedulePolicy} uses it to avoid probing.
+         */
+        public final long size;
+
+        /**
+         * The checksum the file must match, null if not specified.
+         */
+        public final Checksum checksum;
+
+        /**
+         * The higher priority deploys first, 0 by default.
+         */
+        public final int priority;
+
+        public Entry(String url, String storeFilePath) {
+            this(url, storeFilePath, -1, null, 0);
+        }
+
+        public Entry(String url, String storeFilePath, long size, Checksum checksum, int priority) {
+            if (TextUtils.isEmpty(url) || TextUtils.isEmpty(storeFilePath)) {
+                throw new IllegalArgumentException("url[" + url + "] and storeFilePath[" + storeFilePath + "] must be valid.");
+            }
+            this.url = url;
+            this.storeFilePath = storeFilePath;
+            this.size = size;
+            this.checksum = checksum;
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.aidaima.filedownloader;
+
+/**
+ * Receives the instrumentation of a {@link FileDownloader}, register it by
+ * {@link FileDownloader#setMetrics(DownloadMetrics)}. Without it, the requests don't read the
+ * clock or allocate anything for the metrics.
+ */
+public abstract class DownloadMetrics {
+    /**
+     * The read gap longer than this counts as stall.
+     */
+    public static final long STALL_THRESHOLD_MS = 1000;
+
+    /**
+     * Inform when a request finished, whatever success or not, called on the dispatcher thread
+     * which performed the request, keep it cheap.
+     */
+    public void onRequestComplete(RequestMetrics metrics) {
+    }
+
+    /**
+     * Inform the queue-level gauges when the Task Queue scheduled, called on the main thread.
+     *
+     * @param threadCount       The dispatcher threads alive.
+     * @param busyThreadCount   The dispatcher threads performing a request.
+     * @param waitingTaskCount  The tasks waiting to deploy.
+     * @param activeTransfers   The tasks downloading.
+     */
+    public void onQueueGauges(int threadCount, int busyThreadCount, int waitingTaskCount, int activeTransfers) {
+    }
+}
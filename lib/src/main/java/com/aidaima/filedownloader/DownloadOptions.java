@@ -0,0 +1,140 @@
+package com.aidaima.filedownloader;
+
+import java.io.File;
+
+/**
+ * The optional settings of a download task, pass it to
+ * {@link FileDownloader#add(String, String, DownloadOptions, FileDownloader.Listener)}.
+ */
+public class DownloadOptions {
+    private Checksum mExpectedChecksum;
+
+    private BlockManifest mBlockManifest;
+
+    private File mDeltaSource;
+
+    private boolean mAcceptCompressed;
+
+    private File mExtractDirectory;
+
+    private int mArchiveFormat = -1;
+
+    private int mPriority;
+
+    private boolean mReplaceExisting;
+
+    /**
+     * Set the checksum which the downloaded file must match, if mismatch, the task will be failed
+     * with a {@link NetworkException.IntegrityError}. If not specified, we verify the checksum
+     * presented by the response headers.
+     */
+    public DownloadOptions setExpectedChecksum(Checksum checksum) {
+        mExpectedChecksum = checksum;
+        return this;
+    }
+
+    public Checksum getExpectedChecksum() {
+        return mExpectedChecksum;
+    }
+
+    /**
+     * Set the block hashes of the file, each block is verified on its own,
+     * the corrupt blocks will be re-fetched by Range requests before the download finish.
+     */
+    public DownloadOptions setBlockManifest(BlockManifest manifest) {
+        mBlockManifest = manifest;
+        return this;
+    }
+
+    public BlockManifest getBlockManifest() {
+        return mBlockManifest;
+    }
+
+    /**
+     * Set the old version of the file to build the new one from, the blocks found in the old file
+     * are copied locally, only the missing ranges are downloaded. It requires a block manifest which
+     * {@link BlockManifest#supportsDelta()}, otherwise the file is downloaded in full.
+     */
+    public DownloadOptions setDeltaSource(File oldFile) {
+        mDeltaSource = oldFile;
+        return this;
+    }
+
+    public File getDeltaSource() {
+        return mDeltaSource;
+    }
+
+    /**
+     * Allow the server to response gzip or deflate encoded content, it saves the bandwidth
+     * of compressible files. The progress counts the compressed bytes against the compressed
+     * Content-Length, see {@link FileDownloader.Listener#onProgressChange(long, long, long)}.
+     * The resumed download always asks the identity encoding.
+     */
+    public DownloadOptions setAcceptCompressed(boolean acceptCompressed) {
+        mAcceptCompressed = acceptCompressed;
+        return this;
+    }
+
+    public boolean isAcceptCompressed() {
+        return mAcceptCompressed;
+    }
+
+    /**
+     * Download even if the store file has the same size as the remote one, by default such a file
+     * is taken as already downloaded. Use it when the store file may be an older version, the old
+     * file is kept till the new one is downloaded and verified, then replaced by renaming.
+     */
+    public DownloadOptions setReplaceExisting(boolean replaceExisting) {
+        mReplaceExisting = replaceExisting;
+        return this;
+    }
+
+    public boolean isReplaceExisting() {
+        return mReplaceExisting;
+    }
+
+    /**
+     * Set the priority, the higher one deploys first whatever the {@link SchedulePolicy} says, 0 by default.
+     */
+    public DownloadOptions setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Extract the archive to the directory while downloading, the archive format is detected
+     * by the store file name or the url. The downloaded archive is kept at the store file path.
+     */
+    public DownloadOptions setExtractDirectory(File directory) {
+        return setExtractDirectory(directory, -1);
+    }
+
+    /**
+     * Extract the archive to the directory while downloading.
+     *
+     * @param format One of {@link ArchiveExtractor#FORMAT_ZIP}, {@link ArchiveExtractor#FORMAT_TAR},
+     *               {@link ArchiveExtractor#FORMAT_TAR_GZ}, or -1 to detect by the file name.
+     */
+    public DownloadOptions setExtractDirectory(File directory, int format) {
+        mExtractDirectory = directory;
+        mArchiveFormat = format;
+        return this;
+    }
+
+    public File getExtractDirectory() {
+        return mExtractDirectory;
+    }
+
+    /**
+     * Returns the archive format to extract, detect it if not specified, -1 if unknown.
+     */
+    int resolveArchiveFormat(String storeFilePath, String url) {
+        if (mArchiveFormat >= 0) return mArchiveFormat;
+        int format = ArchiveExtractor.detectFormat(storeFilePath);
+        return format >= 0 ? format : ArchiveExtractor.detectFormat(url);
+    }
+}
@@ -1,5 +1,6 @@
 package com.aidaima.filedownloader;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -20,19 +21,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class DownloadRequest implements Comparable<DownloadRequest>{
     private static final String TAG = DownloadRequest.class.getSimpleName();
     private File mStoreFile;
     private File mTemporaryFile;
 
+    /**
+     * Where the write loop writes to, the temporary file unless a sink was specified.
+     */
+    private final DownloadSink mSink;
+
     /**
      * URL of this request.
      */
@@ -56,7 +70,7 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
     /**
      * Whether or not this request has been canceled.
      */
-    private boolean mCanceled = false;
+    private volatile boolean mCanceled = false;
 
     /**
      * Detailed error information if <code>errorCode != OK</code>.
@@ -70,8 +84,159 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
      */
     private boolean mIsDeliverPreExecute;
 
+    /**
+     * The fixed timeout when the request isn't in a queue.
+     */
     private int mTimeout;
 
+    /**
+     * The timeouts learned of the hosts, null if the request isn't in a queue.
+     */
+    private AdaptiveTimeouts mTimeouts;
+
+    /**
+     * The resolved redirects, null if the request isn't in a queue.
+     */
+    private RedirectCache mRedirectCache;
+
+    /**
+     * Whether this attempt went to the resolved url of the cache instead of the original one.
+     */
+    private boolean mFollowingCachedRedirect;
+
+    /**
+     * The timing of this request, null if no metrics registered, then nothing is measured.
+     */
+    private RequestMetrics mMetrics;
+
+    /**
+     * Replaces the built-in transport, null to use {@link HttpURLConnection}.
+     */
+    private HttpStack mHttpStack;
+
+    /**
+     * Records the exchanges of this request, null if not recording.
+     */
+    private TraceRecorder mTraceRecorder;
+
+    /**
+     * The progress event queued but not delivered yet, guarded by the {@link RequestDispatcher.Delivery}.
+     */
+    RequestDispatcher.Delivery.Event mPendingProgress;
+
+    /**
+     * The exchange recording in this attempt.
+     */
+    private DownloadTrace.Exchange mExchange;
+
+    /**
+     * The additional destinations which share this download, the downloaded file
+     * will be copied to them after the rename done.
+     */
+    private final List<File> mExtraStoreFiles = new CopyOnWriteArrayList<File>();
+
+    /**
+     * The destinations already have the downloaded file.
+     */
+    private final Set<String> mDeliveredPaths =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The observers by the destination path.
+     */
+    private final Map<String, Observer> mObservers = new ConcurrentHashMap<String, Observer>();
+
+    /**
+     * The cache to revalidate and store the downloaded file, null if cache disabled.
+     */
+    private DownloadCache mCache;
+
+    /**
+     * The cached entry we revalidating in this attempt.
+     */
+    private DownloadCache.Entry mCacheEntry;
+
+    /**
+     * The validators of the response, to be stored with the cache entry.
+     */
+    private String mResponseETag;
+    private String mResponseLastModified;
+
+    /**
+     * The checksum the caller expected, null if not specified.
+     */
+    private Checksum mExpectedChecksum;
+
+    /**
+     * The checksum to verify in this attempt, the expected one or picked up from the response.
+     */
+    private Checksum mVerifyChecksum;
+
+    /**
+     * Computes the digest while writing, null if nothing needs the digest.
+     */
+    private StreamingDigest mStreamingDigest;
+
+    /**
+     * Keeps the digest state when this request cancel, the next request of the same task continue with it.
+     */
+    private StreamingDigest.Checkpoint mDigestCheckpoint = new StreamingDigest.Checkpoint();
+
+    /**
+     * The SHA-256 of the downloaded file in hex string, if it was computed.
+     */
+    private String mContentSha256;
+
+    /**
+     * How many times we re-fetch the corrupt blocks before give up.
+     */
+    private static final int MAX_REFETCH_ROUNDS = 3;
+
+    /**
+     * The block hashes to verify, null if not specified.
+     */
+    private BlockManifest mBlockManifest;
+
+    /**
+     * Hashes the blocks while writing, null if no block manifest.
+     */
+    private BlockVerifier mBlockVerifier;
+
+    /**
+     * The old version of the file to build the new one from, null if delta disabled.
+     */
+    private File mDeltaSource;
+
+    /**
+     * Delta download only try once, if it failed, we download the whole file.
+     */
+    private boolean mDeltaTried;
+
+    /**
+     * Whether we allow the server to response compressed content.
+     */
+    private boolean mAcceptCompressed;
+
+    /**
+     * Whether the existing store file of the same size should be downloaded again.
+     */
+    private boolean mReplaceExisting;
+
+    /**
+     * Extracts the archive while downloading, null if extraction disabled.
+     */
+    private ArchiveExtractor mExtractor;
+
+    /**
+     * Whether the extractor went through the whole archive by the write loop.
+     */
+    private boolean mExtracted;
+
+    /**
+     * Tracks what's on disk for the readers of the downloading file, null if no one reads.
+     */
+    private volatile BlockBitmap mBlockBitmap;
+
     public DownloadRequest(String storeFilePath, String url) {
         mUrl = url;
         mListener = null;
@@ -80,6 +245,140 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
         mHashHeaders = new HashMap<String, String>();
         mStoreFile = new File(storeFilePath);
         mTemporaryFile = new File(storeFilePath + ".tmp");
+        mSink = new TemporaryFileSink();
+    }
+
+    /**
+     * Download to the sink instead of a store file, the features rely on the temporary file,
+     * the cache, block manifest, delta, extraction and additional destinations, are unavailable.
+     *
+     * @param sink The destination of the content.
+     * @param url  The url to download.
+     */
+    public DownloadRequest(DownloadSink sink, String url) {
+        mUrl = url;
+        mListener = null;
+        mTimeout = 2500;
+
+        mHashHeaders = new HashMap<String, String>();
+        mSink = sink;
+    }
+
+    /**
+     * Returns true if this request downloads to a store file.
+     */
+    private boolean isFileMode() {
+        return mStoreFile != null;
+    }
+
+    private void throwIfNotFileMode(String feature) {
+        if (!isFileMode()) {
+            throw new IllegalStateException(feature + " is only available for the download to a store file.");
+        }
+    }
+
+    /**
+     * Set the checksum which the downloaded file must match, if not specified,
+     * we verify the checksum presented by the response headers.
+     */
+    public void setExpectedChecksum(Checksum checksum) {
+        mExpectedChecksum = checksum;
+    }
+
+    /**
+     * Don't take the store file of the same size as downloaded, it may be an older version.
+     */
+    public void setReplaceExisting(boolean replaceExisting) {
+        mReplaceExisting = replaceExisting;
+    }
+
+    /**
+     * Set when the temporary file is forced to the disk, the resume continues from the last durable
+     * checkpoint. Only the file sinks are durable, the other sinks ignore it.
+     */
+    public void setDurabilityPolicy(DurabilityPolicy policy) {
+        if (mSink instanceof DownloadSink.FileSink) ((DownloadSink.FileSink) mSink).setDurabilityPolicy(policy);
+    }
+
+    /**
+     * Set the block hashes of the file, the corrupt blocks will be re-fetched before rename.
+     */
+    public void setBlockManifest(BlockManifest manifest) {
+        if (manifest != null) throwIfNotFileMode("Block manifest");
+        mBlockManifest = manifest;
+    }
+
+    /**
+     * Set the old version of the file, the new one will be built from it then fetch the missing ranges only.
+     */
+    public void setDeltaSource(File oldFile) {
+        if (oldFile != null) throwIfNotFileMode("Delta download");
+        mDeltaSource = oldFile;
+    }
+
+    /**
+     * Allow gzip or deflate encoded response, the downloaded file is decoded while writing.
+     */
+    public void setAcceptCompressed(boolean acceptCompressed) {
+        mAcceptCompressed = acceptCompressed;
+    }
+
+    /**
+     * Extract the archive while downloading, the completed entries are recorded beside
+     * the store file, so a resumed download skips them.
+     */
+    public void setArchiveExtractor(ArchiveExtractor extractor) {
+        if (extractor != null) throwIfNotFileMode("Archive extraction");
+        mExtractor = extractor;
+    }
+
+    /**
+     * Let the readers of the downloading file know what's on disk, can be called whenever the request running.
+     */
+    void setBlockBitmap(BlockBitmap bitmap) {
+        mBlockBitmap = bitmap;
+    }
+
+    /**
+     * Share the digest state with the previous request of the same task, so that a resumed
+     * download doesn't need to digest the temporary file again.
+     */
+    void setDigestCheckpoint(StreamingDigest.Checkpoint checkpoint) {
+        mDigestCheckpoint = checkpoint;
+    }
+
+    /**
+     * Set the cache which this request revalidates against and stores to.
+     */
+    public void setCache(DownloadCache cache) {
+        if (cache != null) throwIfNotFileMode("Cache");
+        mCache = cache;
+    }
+
+    /**
+     * Add another destination which also want this file, can be called
+     * whenever the request running, the file will be copied to there when download success.
+     *
+     * @param storeFilePath The destination path.
+     */
+    public void addStoreFile(String storeFilePath) {
+        throwIfNotFileMode("Additional destination");
+        if (mStoreFile.getPath().equals(new File(storeFilePath).getPath())) return;
+        mExtraStoreFiles.add(new File(storeFilePath));
+    }
+
+    /**
+     * Remove the destination added by {@link #addStoreFile(String)}.
+     */
+    public void removeStoreFile(String storeFilePath) {
+        mExtraStoreFiles.remove(new File(storeFilePath));
+    }
+
+    /**
+     * Returns true if the downloaded file was already delivered to the given path.
+     */
+    public boolean isDelivered(String storeFilePath) {
+        return mDeliveredPaths.contains(new File(storeFilePath).getPath());
     }
 
     @Override
@@ -94,6 +393,40 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
         mListener = listener;
     }
 
+    /**
+     * Observe the events of the destination on the dispatcher thread, ahead of the listener
+     * receiving them on the main thread, replaces the former observer of the destination.
+     */
+    void setObserver(String storeFilePath, Observer observer) {
+        mObservers.put(new File(storeFilePath).getPath(), observer);
+    }
+
+    void removeObserver(String storeFilePath) {
+        mObservers.remove(new File(storeFilePath).getPath());
+    }
+
+    /**
+     * Called by the {@link RequestDispatcher.Delivery} on the dispatcher thread.
+     */
+    void notifyProgress(long fileSize, long downloadedSize) {
+        if (mObservers.isEmpty()) return;
+        for (Observer observer : mObservers.values()) {
+            observer.onProgressChange(fileSize, downloadedSize);
+        }
+    }
+
+    /**
+     * Called by the {@link RequestDispatcher.Delivery} on the dispatcher thread once the request is done.
+     */
+    void notifyResult() {
+        if (mObservers.isEmpty()) return;
+        for (Map.Entry<String, Observer> entry : mObservers.entrySet()) {
+            String path = entry.getKey();
+            boolean delivered = isSuccess() && (path.equals(mStoreFile.getPath()) || isDelivered(path));
+            entry.getValue().onResult(delivered, error);
+        }
+    }
+
     /**
      * Notifies the request queue that this request has finished (successfully or with error).
      * <p/>
@@ -113,6 +446,45 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
         mRequestQueue = requestQueue;
     }
 
+    /**
+     * The metrics this attempt fills, null if the queue collects none.
+     */
+    void setMetrics(RequestMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    RequestMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Perform by the stack instead of the {@link HttpURLConnection}, null to use the connection.
+     */
+    void setHttpStack(HttpStack stack) {
+        mHttpStack = stack;
+    }
+
+    /**
+     * Record the exchanges of this request, null if not tracing.
+     */
+    void setTraceRecorder(TraceRecorder recorder) {
+        mTraceRecorder = recorder;
+    }
+
+    /**
+     * The timeouts learned of the hosts by the queue, null to use the fixed timeout.
+     */
+    void setTimeouts(AdaptiveTimeouts timeouts) {
+        mTimeouts = timeouts;
+    }
+
+    /**
+     * Where the redirects of the url ended, shared by the queue, null to follow them every time.
+     */
+    void setRedirectCache(RedirectCache cache) {
+        mRedirectCache = cache;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -125,6 +497,7 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
      */
     public void cancel() {
         mCanceled = true;
+        MemoryBudget.get().onCanceled();
     }
 
     /**
@@ -163,12 +536,40 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
     }
 
     /**
-     * Returns the socket timeout in milliseconds per retry attempt. (This value can be changed
-     * per retry attempt if a backoff is specified via backoffTimeout()). If there are no retry
-     * attempts remaining, this will cause delivery of a {@link NetworkException.TimeoutError} error.
+     * Returns the connect timeout in milliseconds of this attempt, learned of the host by the
+     * {@link AdaptiveTimeouts} of the queue, see {@link #getReadTimeoutMs()} for the read timeout.
      */
     public final int getTimeoutMs() {
-        return mTimeout;
+        AdaptiveTimeouts timeouts = mTimeouts;
+        return timeouts != null ? timeouts.getConnectTimeoutMs(getHost()) : mTimeout;
+    }
+
+    /**
+     * Returns the read timeout in milliseconds of this attempt.
+     */
+    public final int getReadTimeoutMs() {
+        AdaptiveTimeouts timeouts = mTimeouts;
+        return timeouts != null ? timeouts.getReadTimeoutMs(getHost()) : mTimeout;
+    }
+
+    /**
+     * Returns the url we connect to, the resolved one if the redirect of the url was cached.
+     */
+    String getConnectUrl() {
+        RedirectCache cache = mRedirectCache;
+        RedirectCache.Entry redirect = cache != null ? cache.get(getUrl()) : null;
+        return redirect != null ? redirect.resolvedUrl : getUrl();
+    }
+
+    /**
+     * Returns the host we connect to, empty if malformed.
+     */
+    String getHost() {
+        try {
+            return new URL(getConnectUrl()).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
     }
 
     /**
@@ -220,6 +621,15 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
         }
     }
 
+    /**
+     * Delivers when compressed download request progress change to the Listener.
+     */
+    public void deliverDownloadProgress(long fileSize, long downloadedSize, long decodedSize) {
+        if (mListener != null) {
+            mListener.onProgressChange(fileSize, downloadedSize, decodedSize);
+        }
+    }
+
     @Override
     public String toString() {
         return (mCanceled ? "[X] " : "[ ] ") + getUrl();
@@ -262,6 +672,27 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
          */
         public void onProgressChange(long fileSize, long downloadedSize) {
         }
+
+        /**
+         * Inform when the progress of a compressed response change, the fileSize and downloadedSize
+         * count the compressed bytes, the decodedSize counts the bytes written to the file.
+         */
+        public void onProgressChange(long fileSize, long downloadedSize, long decodedSize) {
+            onProgressChange(fileSize, downloadedSize);
+        }
+    }
+
+    /**
+     * Receives the events of a destination on the dispatcher thread, must not block.
+     */
+    interface Observer {
+        void onProgressChange(long fileSize, long downloadedSize);
+
+        /**
+         * @param delivered Whether the file reached the destination.
+         * @param error     The error if the request failed, null if it succeeded.
+         */
+        void onResult(boolean delivered, NetworkException error);
     }
 
     /**
@@ -270,29 +701,377 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
     public void prepare() {
         // Note: if the request header "Range" greater than the actual length that server-size have,
         // the response header "Content-Range" will return "bytes */[actual length]", that's wrong.
-        addHeader("Range", "bytes=" + mTemporaryFile.length() + "-");
+        long resumeOffset = mSink.getResumeOffset();
+        addHeader("Range", "bytes=" + resumeOffset + "-");
 
         // Suppress the HttpStack accept gzip encoding, avoid the progress calculate wrong problem.
-        addHeader("Accept-Encoding", "identity");
+        // The compressed content can only start from beginning, the inflater state of a compressed
+        // offset isn't resumable, so the resumed download always ask the identity encoding.
+        if (mAcceptCompressed && resumeOffset == 0) {
+            addHeader("Accept-Encoding", "gzip, deflate");
+        } else {
+            addHeader("Accept-Encoding", "identity");
+        }
+
+        // Revalidate the cached content only when start from beginning, the resumed
+        // download already trust the temporary file.
+        removeHeader("If-None-Match");
+        removeHeader("If-Modified-Since");
+        mCacheEntry = null;
+        if (mCache != null && resumeOffset == 0) {
+            mCacheEntry = mCache.get(mUrl);
+            if (mCacheEntry != null) {
+                if (mCacheEntry.etag != null) addHeader("If-None-Match", mCacheEntry.etag);
+                if (mCacheEntry.lastModified != null) addHeader("If-Modified-Since", mCacheEntry.lastModified);
+            }
+        }
+    }
+
+    /**
+     * Server-side responded 304, copy the cached content to StoreFile without any body transfer.
+     */
+    private void handleNotModified(RequestDispatcher.Delivery delivery) throws IOException {
+        mCache.copyTo(mCacheEntry, mStoreFile);
+        delivery.postDownloadProgress(this, mCacheEntry.length, mCacheEntry.length);
+        error = null;
+        completeBlockBitmap();
+        if (mExtractor != null && !extractStoreFile()) return;
+        mDeliveredPaths.add(mStoreFile.getPath());
+        deliverToExtraStoreFiles();
+    }
+
+    /**
+     * Store the downloaded file to cache, failure doesn't affect the download result.
+     */
+    private void putToCache() {
+        try {
+            mCache.put(mUrl, mResponseETag, mResponseLastModified, mStoreFile, mContentSha256);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't put " + mStoreFile + " to cache", e);
+        }
     }
 
     /**
-     * Ignore the response content, just rename the TemporaryFile to StoreFile.
+     * Ignore the response content, just rename the TemporaryFile to StoreFile,
+     * then copy the StoreFile to each additional destination.
      */
     protected void parseNetworkResponse() {
         Log.d(TAG, "isCanceled: " + isCanceled());
-        if (!isCanceled()) {
-            if (mTemporaryFile.canRead() && mTemporaryFile.length() > 0) {
-                if (mTemporaryFile.renameTo(mStoreFile)) {
-                    error = null;
-                } else {
-                    error = new NetworkException("Can't rename the download temporary file!");
-                }
+        if (isCanceled()) {
+            if (mBlockVerifier != null) mBlockVerifier.cancel();
+            error = new NetworkException.NetworkCancel("Request was Canceled!");
+            return;
+        }
+
+        if (!isFileMode()) {
+            if (mStreamingDigest != null && !verifyDigest()) return;
+            try {
+                mSink.complete();
+                error = null;
+            } catch (IOException e) {
+                error = new NetworkException("Can't complete the download sink!", e);
+            }
+            return;
+        }
+
+        if (mTemporaryFile.canRead() && mTemporaryFile.length() > 0) {
+            if (mBlockManifest != null && !verifyBlocks()) return;
+            if (mStreamingDigest != null && !verifyDigest()) return;
+
+            if (mTemporaryFile.renameTo(mStoreFile)) {
+                error = null;
+                DownloadSink.FileSink.durableFileOf(mTemporaryFile).delete();
+                completeBlockBitmap();
+                if (mExtractor != null && !mExtracted && !extractStoreFile()) return;
+                if (mExtractor != null) mExtractor.finish();
+                mDeliveredPaths.add(mStoreFile.getPath());
+                deliverToExtraStoreFiles();
+                if (mCache != null) putToCache();
             } else {
-                error = new NetworkException("Download temporary file was invalid!");
+                error = new NetworkException("Can't rename the download temporary file!");
+            }
+        } else {
+            error = new NetworkException("Download temporary file was invalid!");
+        }
+    }
+
+    /**
+     * Wait for all blocks verified, re-fetch the corrupt blocks by Range requests then verify them again.
+     *
+     * @return true if all blocks are intact at last.
+     */
+    private boolean verifyBlocks() {
+        // the file was done before this request, verify all blocks now.
+        if (mBlockVerifier == null) mBlockVerifier = new BlockVerifier(mBlockManifest, mTemporaryFile);
+
+        long fileLength = mTemporaryFile.length();
+        try {
+            List<Integer> corruptBlocks = mBlockVerifier.verifyAll(fileLength);
+            boolean repaired = !corruptBlocks.isEmpty();
+            for (int round = 0; !corruptBlocks.isEmpty() && round < MAX_REFETCH_ROUNDS; round++) {
+                if (isCanceled()) {
+                    error = new NetworkException.NetworkCancel("Request was Canceled!");
+                    return false;
+                }
+                Log.d(TAG, "Re-fetch " + corruptBlocks.size() + " corrupt blocks of " + getUrl());
+                refetchBlocks(corruptBlocks, fileLength);
+                corruptBlocks = mBlockVerifier.reverify(corruptBlocks, fileLength);
+            }
+
+            if (!corruptBlocks.isEmpty()) {
+                error = new NetworkException.IntegrityError(corruptBlocks.size()
+                        + " blocks are still corrupt after re-fetch " + MAX_REFETCH_ROUNDS + " times.");
+                return false;
+            }
+
+            // the streaming digest saw the corrupt bytes, digest the repaired file again.
+            if (repaired && mStreamingDigest != null) {
+                mDigestCheckpoint.clear();
+                mStreamingDigest = mDigestCheckpoint.restore(mStreamingDigest.getAlgorithm());
+            }
+            // so did the extractor, extract the repaired file again.
+            if (repaired && mExtractor != null) {
+                mExtractor.reset();
+                mExtracted = false;
+            }
+            return true;
+        } catch (IOException e) {
+            mBlockVerifier.cancel();
+            error = new NetworkException("Can't verify the blocks of the download temporary file!", e);
+            return false;
+        } catch (NoSuchAlgorithmException e) {
+            // never happen, the algorithm already used before.
+            mStreamingDigest = null;
+            return true;
+        }
+    }
+
+    /**
+     * Download the blocks again and write them to their place of the temporary file,
+     * consecutive blocks are merged to one Range request.
+     */
+    private void refetchBlocks(List<Integer> blocks, long fileLength) throws IOException {
+        int i = 0;
+        while (i < blocks.size()) {
+            int first = blocks.get(i);
+            int last = first;
+            while (i + 1 < blocks.size() && blocks.get(i + 1) == last + 1) {
+                last = blocks.get(++i);
+            }
+            i++;
+
+            long start = mBlockVerifier.getBlockRange(first, fileLength)[0];
+            long end = mBlockVerifier.getBlockRange(last, fileLength)[1];
+            fetchRange(start, end);
+        }
+    }
+
+    /**
+     * Perform a Range request and write the content to the same range of the temporary file.
+     *
+     * @param start The first byte position.
+     * @param end   The last byte position, inclusive.
+     */
+    private void fetchRange(long start, long end) throws IOException {
+        HttpURLConnection connection = openRangeConnection("bytes=" + start + "-" + end);
+        RandomAccessFile raf = null;
+        InputStream in = null;
+        byte[] buffer = null;
+        try {
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (connection.getResponseCode() != HttpStatus.SC_PARTIAL_CONTENT || contentRange == null
+                    || !contentRange.startsWith("bytes " + start + "-" + end + "/")) {
+                throw new IOException("Server-side doesn't response the range " + start + "-" + end
+                        + ", Content-Range[" + contentRange + "]");
+            }
+
+            in = connection.getInputStream();
+            raf = new RandomAccessFile(mTemporaryFile, "rw");
+            raf.seek(start);
+            buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE, this);
+            long remaining = end - start + 1;
+            while (remaining > 0) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) throw new IOException("Unexpected end of range " + start + "-" + end);
+                raf.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            MemoryBudget.get().release(buffer);
+            if (in != null) in.close();
+            if (raf != null) raf.close();
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Opens a connection with the extra headers of this request and the given Range header value.
+     */
+    HttpURLConnection openRangeConnection(String rangeValue) throws IOException {
+        HttpURLConnection connection = openConnection(new URL(getConnectUrl()), this);
+        for (String headerName : mHashHeaders.keySet()) {
+            // the conditional headers may cause a 304 response, we need the content.
+            if (headerName.startsWith("If-")) continue;
+            connection.addRequestProperty(headerName, mHashHeaders.get(headerName));
+        }
+        connection.setRequestProperty("Range", rangeValue);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    /**
+     * Build the temporary file from the delta source and fetch the missing ranges.
+     *
+     * @return true if the temporary file was built, false to download the whole file instead.
+     */
+    private boolean performDelta(final RequestDispatcher.Delivery delivery) {
+        if (mBlockManifest == null || !mBlockManifest.supportsDelta()) return false;
+        // a resumed temporary file continues by normal download, the block verification repairs it.
+        if (mTemporaryFile.length() > 0) return false;
+
+        final long fileSize = mBlockManifest.getFileLength();
+        DeltaAssembler assembler = new DeltaAssembler(mBlockManifest, mDeltaSource, mTemporaryFile);
+        try {
+            final long[] downloadedSize = {assembler.copyMatchingBlocks()};
+            Log.d(TAG, "Delta of " + getUrl() + " copied " + downloadedSize[0] + " of " + fileSize + " bytes locally.");
+            delivery.postDownloadProgress(this, fileSize, downloadedSize[0]);
+
+            assembler.fetchMissingRanges(this, new DeltaAssembler.ProgressCallback() {
+                @Override
+                public void onBytesWritten(int count) {
+                    downloadedSize[0] += count;
+                    delivery.postDownloadProgress(DownloadRequest.this, fileSize, downloadedSize[0]);
+                }
+
+                @Override
+                public void onWholeFile() {
+                    downloadedSize[0] = 0;
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Delta download of " + getUrl() + " failed, download the whole file.", e);
+            // the blocks were written out of order, the length of it is meaningless for resume.
+            deleteTemporaryFile();
+            return false;
+        }
+
+        // the copied blocks were verified by the scan, the fetched blocks are verified before rename.
+        mBlockVerifier = new BlockVerifier(mBlockManifest, mTemporaryFile);
+        for (int i = 0; i < mBlockManifest.getBlockCount(); i++) {
+            if (assembler.isBlockDone(i)) mBlockVerifier.markVerified(i);
+        }
+        prepareDigest(null);
+        return true;
+    }
+
+    /**
+     * Extract the entries of StoreFile which the write loop didn't, e.g. the file was done before
+     * this request, came from the cache or the delta source.
+     *
+     * @return true if the whole archive was extracted.
+     */
+    private boolean extractStoreFile() {
+        try {
+            mExtractor.extract(mStoreFile, mStoreFile.length(), null);
+            mExtractor.finish();
+            return true;
+        } catch (IOException e) {
+            error = new NetworkException("Can't extract the downloaded archive!", e);
+            return false;
+        }
+    }
+
+    /**
+     * Complete the streaming digest and compare to the checksum, the temporary file
+     * will be deleted if mismatch, because it's useless to resume a corrupt file.
+     *
+     * @return true if the checksum matched or nothing to verify.
+     */
+    private boolean verifyDigest() {
+        byte[] digest;
+        try {
+            // normally the digest already covers the whole file, unless the file was done before this request.
+            if (isFileMode()) mStreamingDigest.syncTo(mTemporaryFile, mTemporaryFile.length());
+            digest = mStreamingDigest.digest();
+        } catch (IOException e) {
+            error = new NetworkException("Can't digest the download temporary file!", e);
+            return false;
+        } finally {
+            mDigestCheckpoint.clear();
+        }
+
+        if (Checksum.SHA_256.equalsIgnoreCase(mStreamingDigest.getAlgorithm())) {
+            mContentSha256 = FileUtils.toHex(digest);
+        }
+        if (mVerifyChecksum != null && !mVerifyChecksum.matches(digest)) {
+            if (isFileMode()) deleteTemporaryFile();
+            error = new NetworkException.IntegrityError(mVerifyChecksum, FileUtils.toHex(digest));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Pick the checksum to verify, then restore the digest state from the checkpoint.
+     * If nothing to verify but the cache need a content hash, we compute SHA-256 as well.
+     *
+     * @param response The response to pick up the checksum, null if the content didn't come from one.
+     */
+    private void prepareDigest(HttpResponse response) {
+        mStreamingDigest = null;
+        mVerifyChecksum = mExpectedChecksum != null ? mExpectedChecksum
+                : (response != null ? Checksum.fromResponse(response) : null);
+
+        String algorithm = mVerifyChecksum != null ? mVerifyChecksum.algorithm
+                : (mCache != null ? Checksum.SHA_256 : null);
+        if (algorithm == null) return;
+        try {
+            mStreamingDigest = mDigestCheckpoint.restore(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Unsupported digest algorithm " + algorithm + ", skip verification.");
+            mVerifyChecksum = null;
+        }
+    }
+
+    /**
+     * Delete the temporary file, and forget the blocks of it.
+     */
+    private void deleteTemporaryFile() {
+        mTemporaryFile.delete();
+        DownloadSink.FileSink.durableFileOf(mTemporaryFile).delete();
+        BlockBitmap bitmap = mBlockBitmap;
+        if (bitmap != null) {
+            bitmap.clear();
+        } else {
+            BlockBitmap.mapFileOf(mTemporaryFile).delete();
+        }
+    }
+
+    /**
+     * The StoreFile is complete, the readers can read all of it.
+     */
+    private void completeBlockBitmap() {
+        BlockBitmap bitmap = mBlockBitmap;
+        if (bitmap != null) {
+            bitmap.complete(mStoreFile.length());
+        } else {
+            BlockBitmap.mapFileOf(mTemporaryFile).delete();
+        }
+    }
+
+    /**
+     * Copy the StoreFile to the additional destinations, the destination which copy failed
+     * won't be marked as delivered, its owner can download it again.
+     */
+    private void deliverToExtraStoreFiles() {
+        for (File extraStoreFile : mExtraStoreFiles) {
+            try {
+                FileUtils.copyFile(mStoreFile, extraStoreFile);
+                mDeliveredPaths.add(extraStoreFile.getPath());
+            } catch (IOException e) {
+                Log.e(TAG, "Can't copy " + mStoreFile + " to " + extraStoreFile, e);
             }
         }
-        error = new NetworkException.NetworkCancel("Request was Canceled!");
     }
 
     /**
@@ -308,12 +1087,17 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
         // we can force set the Accept-Encoding as identity in prepare() method to slove this problem but also disable gzip response.
         HttpEntity entity = response.getEntity();
         long fileSize = entity.getContentLength();
+        mResponseETag = HttpUtils.getHeader(response, "ETag");
+        mResponseLastModified = HttpUtils.getHeader(response, "Last-Modified");
         if (fileSize <= 0) {
             Log.d(TAG, "Response doesn't present Content-Length!");
         }
 
-        long downloadedSize = mTemporaryFile.length();
-        boolean isSupportRange = HttpUtils.isSupportRange(response);
+        long downloadedSize = mSink.getResumeOffset();
+        boolean isCompressed = HttpUtils.isGzipContent(response) || HttpUtils.isDeflateContent(response);
+        // The range of compressed content counts the compressed bytes, it can't continue the
+        // decoded temporary file, download from beginning.
+        boolean isSupportRange = HttpUtils.isSupportRange(response) && !(isCompressed && downloadedSize > 0);
         if (isSupportRange) {
             fileSize += downloadedSize;
 
@@ -327,15 +1111,17 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
                 if (TextUtils.indexOf(realRangeValue, assumeRangeValue) == -1) {
                     throw new IllegalStateException(
                             "The Content-Range Header is invalid Assume[" + assumeRangeValue + "] vs Real[" + realRangeValue + "], " +
-                                    "please remove the temporary file [" + mTemporaryFile + "].");
+                                    "please remove the temporary file [" + (isFileMode() ? mTemporaryFile : mSink) + "].");
                 }
             }
         }
 
+        prepareDigest(response);
+
         // Compare the store file size(after download successes have) to server-side Content-Length.
         // temporary file will rename to store file after download success, so we compare the
         // Content-Length to ensure this request already download or not.
-        if (fileSize > 0 && mStoreFile.length() == fileSize) {
+        if (isFileMode() && !mReplaceExisting && !isCompressed && fileSize > 0 && mStoreFile.length() == fileSize) {
             // Rename the store file to temporary file, mock the download success. ^_^
             mStoreFile.renameTo(mTemporaryFile);
 
@@ -345,38 +1131,76 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
             return null;
         }
 
-        RandomAccessFile tmpFileRaf = new RandomAccessFile(mTemporaryFile, "rw");
-
-        // If server-side support range download, we seek to last point of the temporary file.
-        if (isSupportRange) {
-            tmpFileRaf.seek(downloadedSize);
-        } else {
-            // If not, truncate the temporary file then start download from beginning.
-            tmpFileRaf.setLength(0);
-            downloadedSize = 0;
+        // If server-side support range download, the sink continues from the last point,
+        // if not, the sink drops what it held then start download from beginning.
+        if (!isSupportRange) downloadedSize = 0;
+        // take the buffer before the sink holds any memory, so we never wait while holding it.
+        byte[] buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE, this);
+        boolean opened = false;
+        try {
+            mSink.open(downloadedSize, fileSize);
+            opened = true;
+        } finally {
+            if (!opened) MemoryBudget.get().release(buffer);
         }
+        BlockBitmap bitmap = mBlockBitmap;
+        if (bitmap != null && !isCompressed && fileSize > 0) bitmap.setFileLength(fileSize);
 
+        long transferStartTime = mMetrics != null ? SystemClock.uptimeMillis() : 0;
         try {
+            // Let the digest cover the temporary file, then keep it up with the write loop.
+            if (mStreamingDigest != null) {
+                if (isFileMode()) {
+                    mStreamingDigest.syncTo(mTemporaryFile, downloadedSize);
+                } else if (mStreamingDigest.getOffset() != downloadedSize) {
+                    // we can't read back what the sink held.
+                    Log.e(TAG, "Can't digest the resumed sink of " + getUrl() + ", skip verification.");
+                    mStreamingDigest = null;
+                    mVerifyChecksum = null;
+                }
+            }
+            // Start hashing the completed blocks of the temporary file.
+            if (mBlockManifest != null) {
+                mBlockVerifier = new BlockVerifier(mBlockManifest, mTemporaryFile);
+                mBlockVerifier.onBytesWritten(downloadedSize);
+            }
+
+            if (mExtractor != null) {
+                mExtractor.restore(new File(mStoreFile.getPath() + ".extract"), downloadedSize);
+            }
+
+            transferStartTime = mMetrics != null ? SystemClock.uptimeMillis() : 0;
             InputStream in = entity.getContent();
+            // Count the bytes on the wire, the progress of compressed content is calculated by them.
+            CountingInputStream wireIn = null;
             // Determine the response gzip encoding, support for HttpClientStack download.
             if (HttpUtils.isGzipContent(response) && !(in instanceof GZIPInputStream)) {
+                in = wireIn = new CountingInputStream(in);
                 in = new GZIPInputStream(in);
+            } else if (HttpUtils.isDeflateContent(response)) {
+                in = wireIn = new CountingInputStream(in);
+                in = new InflaterInputStream(in);
             }
-            byte[] buffer = new byte[6 * 1024]; // 6K buffer
-            int offset;
-
-            while ((offset = in.read(buffer)) != -1) {
-                tmpFileRaf.write(buffer, 0, offset);
-
-                downloadedSize += offset;
-                delivery.postDownloadProgress(this, fileSize, downloadedSize);
-
-                if (isCanceled()) {
-//                    delivery.postCancel(this);
-                    break;
+            WritingInputStream writer = new WritingInputStream(in, wireIn, fileSize, downloadedSize, delivery);
+
+            // The extractor pulls the bytes through the writer, the entries come out as they arrive.
+            if (mExtractor != null) {
+                try {
+                    mExtractor.extract(mTemporaryFile, downloadedSize, writer);
+                    mExtracted = !isCanceled();
+                } catch (IOException e) {
+                    // keep downloading, the whole file gets extracted again after rename.
+                    if (!isCanceled()) Log.e(TAG, "Extract " + getUrl() + " while downloading failed.", e);
                 }
             }
+
+            // Write the rest bytes, or all bytes if no extractor.
+            while (writer.read(buffer) != -1) {
+                // the writer did everything.
+            }
         } finally {
+            MemoryBudget.get().release(buffer);
+            if (mMetrics != null) mMetrics.transferMs += SystemClock.uptimeMillis() - transferStartTime;
             try {
                 // Close the InputStream and release the resources by "consuming the content".
                 if (entity != null) entity.consumeContent();
@@ -385,12 +1209,183 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
                 // an invalid state.
                 Log.v(TAG, "Error occured when calling consumingContent");
             }
-            tmpFileRaf.close();
+            mSink.close();
+            // the sidecar tells the resume point if some blocks were written out of order.
+            bitmap = mBlockBitmap;
+            if (bitmap != null) bitmap.save();
+            // Checkpoint the digest state, the resumed request continues from here.
+            if (mStreamingDigest != null) mDigestCheckpoint.save(mStreamingDigest);
         }
 
         return null;
     }
 
+    /**
+     * The temporary file, it continues from the contiguous part when some blocks
+     * were written out of order by the readers.
+     */
+    private class TemporaryFileSink extends DownloadSink.FileSink {
+        TemporaryFileSink() {
+            super(mTemporaryFile);
+        }
+
+        @Override
+        public long getResumeOffset() {
+            BlockBitmap bitmap = mBlockBitmap;
+            return limitToDurable(bitmap != null ? bitmap.getContiguousLength() : BlockBitmap.readResumeOffset(mTemporaryFile));
+        }
+
+        @Override
+        protected void onCheckpoint(long elapsedMs) {
+            RequestMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.syncMs += elapsedMs;
+                metrics.syncCount++;
+            }
+        }
+
+        /**
+         * Keep the blocks the readers fetched, the download from beginning overwrites them with the same bytes.
+         */
+        @Override
+        protected boolean shouldTruncate(long offset) {
+            return offset == 0 && mBlockBitmap == null;
+        }
+
+        @Override
+        public void open(long offset, long contentLength) throws IOException {
+            super.open(offset, contentLength);
+            // truncated, the sidecar of the earlier blocks is useless.
+            if (shouldTruncate(offset)) BlockBitmap.mapFileOf(mTemporaryFile).delete();
+        }
+    }
+
+    /**
+     * Writes every byte read from the response to the sink, then updates the digest,
+     * the block verifier and the progress. Returns end of stream when the request was canceled.
+     */
+    private class WritingInputStream extends InputStream {
+        private final InputStream mIn;
+        private final CountingInputStream mWireIn;
+        private final long mFileSize;
+        private long mDownloadedSize;
+        private final RequestDispatcher.Delivery mDelivery;
+        // When the last read returned, to measure the stalls, 0 if no metrics.
+        private long mLastReadTime;
+        // The stall detection, the bytes read since the window began, disabled if the window is 0.
+        private final String mHost;
+        private final long mStallWindowMs;
+        private final long mStallRate;
+        private final long mStartTime;
+        private final long mStartSize;
+        private long mWindowStartTime;
+        private long mWindowBytes;
+        // The read gaps, the longest since the last sample teaches the timeouts.
+        private long mLastReturnTime;
+        private long mLongestGap;
+        private long mGapSampleTime;
+
+        WritingInputStream(InputStream in, CountingInputStream wireIn, long fileSize,
+                           long downloadedSize, RequestDispatcher.Delivery delivery) {
+            mIn = in;
+            mWireIn = wireIn;
+            mFileSize = fileSize;
+            mDownloadedSize = downloadedSize;
+            mDelivery = delivery;
+            if (mMetrics != null) mLastReadTime = SystemClock.uptimeMillis();
+
+            mHost = getHost();
+            AdaptiveTimeouts timeouts = mTimeouts;
+            mStallWindowMs = timeouts != null ? timeouts.getStallWindowMs() : 0;
+            mStallRate = timeouts != null ? timeouts.getStallRate(mHost) : 0;
+            mStartTime = mWindowStartTime = mLastReturnTime = mGapSampleTime = SystemClock.uptimeMillis();
+            mStartSize = downloadedSize;
+        }
+
+        /**
+         * Read the response, teach the timeouts by the read gaps, a read timeout or the end of the content.
+         */
+        private int readResponse(byte[] buffer, int offset, int count) throws IOException {
+            AdaptiveTimeouts timeouts = mTimeouts;
+            int length;
+            try {
+                length = mIn.read(buffer, offset, count);
+            } catch (SocketTimeoutException e) {
+                if (timeouts != null) timeouts.onReadTimeout(mHost);
+                throw e;
+            }
+            if (timeouts == null) return length;
+
+            long now = SystemClock.uptimeMillis();
+            mLongestGap = Math.max(mLongestGap, now - mLastReturnTime);
+            mLastReturnTime = now;
+            if (length == -1 || now - mGapSampleTime >= AdaptiveTimeouts.GAP_SAMPLE_INTERVAL_MS) {
+                timeouts.onReadGap(mHost, mLongestGap);
+                mLongestGap = 0;
+                mGapSampleTime = now;
+            }
+            if (length == -1) timeouts.onTransferred(mHost, mDownloadedSize - mStartSize, now - mStartTime);
+            return length;
+        }
+
+        /**
+         * Abandon the transfer whose rate stayed below the stall rate for a whole window,
+         * the request reconnects and resumes from the offset, like after a read timeout.
+         */
+        private void checkStall(int length) throws IOException {
+            if (mStallWindowMs <= 0) return;
+            mWindowBytes += length;
+            long elapsed = SystemClock.uptimeMillis() - mWindowStartTime;
+            if (elapsed < mStallWindowMs) return;
+            long rate = mWindowBytes * 1000 / elapsed;
+            if (rate < mStallRate) {
+                throw new AdaptiveTimeouts.StallException("Transfer of " + getUrl() + " stalled at "
+                        + rate + "B/s, below " + mStallRate + "B/s");
+            }
+            mWindowStartTime += elapsed;
+            mWindowBytes = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (isCanceled()) return -1;
+            // the inflater decodes into the buffer directly, then we write it.
+            int length = readResponse(buffer, offset, count);
+            if (length == -1) return -1;
+
+            DownloadTrace.Exchange exchange = mExchange;
+            if (exchange != null) exchange.onChunk(mTraceRecorder.now(), length);
+            RequestMetrics metrics = mMetrics;
+            if (metrics != null) {
+                long now = SystemClock.uptimeMillis();
+                if (now - mLastReadTime > DownloadMetrics.STALL_THRESHOLD_MS) metrics.stallMs += now - mLastReadTime;
+                mLastReadTime = now;
+                metrics.bytes += length;
+            }
+
+            mSink.write(buffer, offset, length);
+            if (mStreamingDigest != null) mStreamingDigest.update(buffer, offset, length);
+
+            mDownloadedSize += length;
+            BlockBitmap bitmap = mBlockBitmap;
+            if (bitmap != null) bitmap.markPrefix(mDownloadedSize);
+            if (mBlockVerifier != null) mBlockVerifier.onBytesWritten(mDownloadedSize);
+            if (mWireIn != null) {
+                mDelivery.postDownloadProgress(DownloadRequest.this, mFileSize, mWireIn.getCount(), mDownloadedSize);
+            } else {
+                mDelivery.postDownloadProgress(DownloadRequest.this, mFileSize, mDownloadedSize);
+            }
+            checkStall(length);
+            return length;
+        }
+    }
+
     /**
      * Returns whether this response is considered successful.
      */
@@ -428,6 +1423,7 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
     }
 
     public void performRequest(RequestDispatcher.Delivery delivery) throws NetworkException  {
+        int attempts = 0;
         while (true) {
             // If the request was cancelled already,
             // do not perform the network request.
@@ -435,25 +1431,66 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
                 error = new NetworkException.NetworkCancel("Request was Canceled!");
                 return ;
             }
+            if (attempts++ > 0 && mMetrics != null) mMetrics.retries++;
+
+            // try building the file from the old version first.
+            if (mDeltaSource != null && !mDeltaTried) {
+                mDeltaTried = true;
+                if (performDelta(delivery)) {
+                    parseNetworkResponse();
+                    return;
+                }
+                if (isCanceled()) continue;
+            }
 
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
+            boolean completed = false;
             try {
                 // prepare to perform this request, normally is reset the request headers.
                 prepare();
 
+                if (mTraceRecorder != null) mExchange = mTraceRecorder.begin(getUrl(), mHashHeaders);
                 httpResponse = performRequest();
 
                 StatusLine statusLine = httpResponse.getStatusLine();
                 int statusCode = statusLine.getStatusCode();
-                if (statusCode < 200 || statusCode > 299) throw new IOException();
+                if (mExchange != null) mExchange.onResponse(mTraceRecorder.now(), statusCode, headersOf(httpResponse));
+                if (statusCode == HttpStatus.SC_NOT_MODIFIED && mCacheEntry != null) {
+                    HttpUtils.consumeQuietly(httpResponse);
+                    handleNotModified(delivery);
+                    completed = isSuccess();
+                    return;
+                }
+                if (statusCode < 200 || statusCode > 299) {
+                    if (mFollowingCachedRedirect && statusCode >= 400 && statusCode <= 499) {
+                        // the resolved url expired before the TTL, go back to the original url.
+                        mRedirectCache.remove(getUrl());
+                        HttpUtils.consumeQuietly(httpResponse);
+                        continue;
+                    }
+                    // release the connection, a replayed response also leaves the clock here.
+                    HttpUtils.consumeQuietly(httpResponse);
+                    throw new IOException();
+                }
 
                 responseContents = handleResponse(httpResponse, delivery);
                 parseNetworkResponse();
+                completed = isSuccess();
+                return;
             } catch (SocketTimeoutException e) {
             } catch (MalformedURLException e) {
                 throw new RuntimeException("Bad URL " + getUrl(), e);
             } catch (IOException e) {
+                // canceled while waiting or writing, the loop reports the cancel.
+                if (isCanceled()) continue;
+                // the other apps took the space after we reserved, retry won't help.
+                if (isNoSpaceLeft(e)) throw new NetworkException.InsufficientSpaceError(e);
+                if (httpResponse == null && mFollowingCachedRedirect) {
+                    // the resolved host may be gone, go back to the original url.
+                    mRedirectCache.remove(getUrl());
+                    continue;
+                }
                 if (httpResponse == null) throw new NetworkException.NoConnectionError(e);
 
                 int statusCode = httpResponse.getStatusLine().getStatusCode();
@@ -469,12 +1506,42 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
                 } else {
                     throw new NetworkException.NetworkError(errMsg);
                 }
+            } finally {
+                if (mExchange != null) {
+                    mTraceRecorder.end(mExchange, completed);
+                    mExchange = null;
+                }
             }
         }
     }
 
+    /**
+     * Whether the write failed by ENOSPC, Android only tells it by the message.
+     */
+    private static boolean isNoSpaceLeft(IOException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null && (message.contains("ENOSPC") || message.contains("No space left"))) return true;
+        }
+        return false;
+    }
+
+    private static Map<String, String> headersOf(HttpResponse response) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (Header header : response.getAllHeaders()) {
+            headers.put(header.getName(), header.getValue());
+        }
+        return headers;
+    }
+
     public HttpResponse performRequest() throws IOException {
-        URL parsedUrl = new URL(getUrl());
+        mFollowingCachedRedirect = false;
+        if (mHttpStack != null) return mHttpStack.performRequest(this, mHashHeaders);
+
+        RedirectCache redirectCache = mRedirectCache;
+        RedirectCache.Entry redirect = redirectCache != null ? redirectCache.get(getUrl()) : null;
+        mFollowingCachedRedirect = redirect != null;
+        URL parsedUrl = new URL(redirect != null ? redirect.resolvedUrl : getUrl());
         HttpURLConnection connection = openConnection(parsedUrl, this);
         for (String headerName : mHashHeaders.keySet()) {
             connection.addRequestProperty(headerName, mHashHeaders.get(headerName));
@@ -482,12 +1549,56 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
 
         connection.setRequestMethod("GET");
 
+        RequestMetrics metrics = mMetrics;
+        if (metrics != null) {
+            // resolve ahead to time it alone, the connection gets it from the resolver cache.
+            long time = SystemClock.uptimeMillis();
+            InetAddress.getByName(parsedUrl.getHost());
+            metrics.dnsMs += SystemClock.uptimeMillis() - time;
+        }
+        AdaptiveTimeouts timeouts = mTimeouts;
+        if (metrics != null || timeouts != null) {
+            // time the connect and the response apart, they teach the timeouts of the host.
+            String host = parsedUrl.getHost();
+            boolean connected = false;
+            try {
+                long time = SystemClock.uptimeMillis();
+                connection.connect();
+                long connectedTime = SystemClock.uptimeMillis();
+                connected = true;
+                if (metrics != null) metrics.connectMs += connectedTime - time;
+                if (timeouts != null) timeouts.onConnected(host, connectedTime - time);
+                connection.getResponseCode();
+                long respondedTime = SystemClock.uptimeMillis();
+                if (metrics != null) metrics.firstByteMs += respondedTime - connectedTime;
+                if (timeouts != null) timeouts.onResponded(host, respondedTime - connectedTime);
+            } catch (SocketTimeoutException e) {
+                if (timeouts != null) timeouts.onTimeout(host, !connected);
+                throw e;
+            }
+        }
+
         int responseCode = connection.getResponseCode();
         if (responseCode == -1) {
             // -1 is returned by getResponseCode() if the response code could not be retrieved.
             // Signal to the caller that something was wrong with the connection.
             throw new IOException("Could not retrieve response code from HttpUrlConnection.");
         }
+        if (redirectCache != null && responseCode >= 200 && responseCode <= 299) {
+            // the connection followed the redirects, it tells where they ended.
+            String etag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            String resolvedUrl = connection.getURL().toString();
+            if (redirect == null && !resolvedUrl.equals(parsedUrl.toString())) {
+                redirectCache.put(getUrl(), resolvedUrl, etag, lastModified);
+            } else if (redirect != null && !redirect.matches(etag, lastModified)) {
+                // the resolved url serves another content now, its body mustn't go onto what we
+                // downloaded, drop it unread, the retry goes back to the original url.
+                redirectCache.remove(getUrl());
+                connection.disconnect();
+                throw new IOException("Validators of " + resolvedUrl + " changed since the redirect was cached.");
+            }
+        }
 
         StatusLine responseStatus = new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1),
                 connection.getResponseCode(), connection.getResponseMessage());
@@ -512,9 +1623,8 @@ public class DownloadRequest implements Comparable<DownloadRequest>{
     private HttpURLConnection openConnection(URL url, DownloadRequest request) throws IOException {
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
 
-        int timeoutMs = request.getTimeoutMs();
-        connection.setConnectTimeout(timeoutMs);
-        connection.setReadTimeout(timeoutMs);
+        connection.setConnectTimeout(request.getTimeoutMs());
+        connection.setReadTimeout(request.getReadTimeoutMs());
         connection.setUseCaches(false);
         connection.setDoInput(true);
 
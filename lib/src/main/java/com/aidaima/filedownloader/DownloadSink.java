@@ -0,0 +1,356 @@
+package com.aidaima.filedownloader;
+
+import android.os.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The destination of a download, the content is written to it chunk by chunk by the request's
+ * write loop. Pass it to {@link DownloadRequest#DownloadRequest(DownloadSink, String)} to consume
+ * a download without the temporary file, e.g. parse a small config straight from memory.
+ * <p/>
+ * A sink is used by one request at a time, the methods are called on the dispatcher thread.
+ */
+public abstract class DownloadSink {
+
+    /**
+     * Returns how many bytes the sink already holds, the download continues from there
+     * if the server-side supports range. The default is 0, download from beginning.
+     */
+    public long getResumeOffset() {
+        return 0;
+    }
+
+    /**
+     * Prepare to receive the content, called before any write.
+     *
+     * @param offset        Where the content begins, either {@link #getResumeOffset()} when the
+     *                      server-side continues the transfer, or 0 which means drop everything held.
+     * @param contentLength The whole content length, -1 if unknown.
+     */
+    public abstract void open(long offset, long contentLength) throws IOException;
+
+    public abstract void write(byte[] buffer, int offset, int count) throws IOException;
+
+    /**
+     * Release the resources of this transfer, it always be called after {@link #open(long, long)},
+     * whatever the transfer completed or not.
+     */
+    public abstract void close() throws IOException;
+
+    /**
+     * All content was written and verified, called after {@link #close()}.
+     */
+    public void complete() throws IOException {
+    }
+
+    /**
+     * Writes to a file in place, the download continues from the file length, or the last durable
+     * checkpoint if a {@link DurabilityPolicy} was set.
+     */
+    public static class FileSink extends DownloadSink {
+        private final File mFile;
+
+        private RandomAccessFile mRaf;
+
+        private DurabilityPolicy mDurabilityPolicy = DurabilityPolicy.NONE;
+
+        // Where the next write goes, and the offset the last checkpoint forced to the disk.
+        private long mPosition;
+        private long mDurableOffset;
+        private long mLastCheckpointTime;
+
+        public FileSink(File file) {
+            mFile = file;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * Set before {@link #open(long, long)}, the default is {@link DurabilityPolicy#NONE}.
+         */
+        public void setDurabilityPolicy(DurabilityPolicy policy) {
+            mDurabilityPolicy = policy != null ? policy : DurabilityPolicy.NONE;
+        }
+
+        @Override
+        public long getResumeOffset() {
+            return limitToDurable(mFile.length());
+        }
+
+        /**
+         * Returns the offset no further than the last checkpoint, if the durability enabled.
+         */
+        protected long limitToDurable(long offset) {
+            if (!mDurabilityPolicy.isEnabled()) return offset;
+            return Math.min(offset, readDurableOffset(mFile));
+        }
+
+        @Override
+        public void open(long offset, long contentLength) throws IOException {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mRaf.seek(offset);
+            if (shouldTruncate(offset)) mRaf.setLength(offset);
+            mPosition = offset;
+            mDurableOffset = offset;
+            mLastCheckpointTime = now();
+            // we may restart before the checkpoint, don't let it promise the bytes we overwrite.
+            if (mDurabilityPolicy.isEnabled() && readDurableOffset(mFile) > offset) {
+                writeDurableOffset(mFile, offset);
+            }
+        }
+
+        /**
+         * Returns true to drop the bytes after the offset when open, by default only the download
+         * from beginning does, the bytes are of an older response.
+         */
+        protected boolean shouldTruncate(long offset) {
+            return offset == 0;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            mRaf.write(buffer, offset, count);
+            mPosition += count;
+            if (mDurabilityPolicy.shouldCheckpoint(mPosition - mDurableOffset, now() - mLastCheckpointTime)) {
+                checkpoint();
+            }
+        }
+
+        /**
+         * Force the written bytes to the disk, then record the offset as durable.
+         */
+        private void checkpoint() throws IOException {
+            long startTime = SystemClock.uptimeMillis();
+            mRaf.getChannel().force(false);
+            writeDurableOffset(mFile, mPosition);
+            mDurableOffset = mPosition;
+            mLastCheckpointTime = now();
+            onCheckpoint(SystemClock.uptimeMillis() - startTime);
+        }
+
+        /**
+         * The clock of the checkpoint interval, in milliseconds.
+         */
+        protected long now() {
+            return SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Returns the offset the last checkpoint of this transfer forced to the disk.
+         */
+        long getDurableOffset() {
+            return mDurableOffset;
+        }
+
+        /**
+         * Called after every checkpoint, e.g. to measure the cost of the policy.
+         */
+        protected void onCheckpoint(long elapsedMs) {
+        }
+
+        /**
+         * The transfer end is a checkpoint, the next resume continues from here.
+         */
+        @Override
+        public void close() throws IOException {
+            if (mRaf != null) {
+                try {
+                    if (mDurabilityPolicy.isEnabled() && mPosition > mDurableOffset) checkpoint();
+                } finally {
+                    mRaf.close();
+                    mRaf = null;
+                }
+            }
+        }
+
+        /**
+         * The checkpoints are useless once the file is complete.
+         */
+        @Override
+        public void complete() throws IOException {
+            durableFileOf(mFile).delete();
+        }
+
+        static File durableFileOf(File file) {
+            return new File(file.getPath() + ".durable");
+        }
+
+        /**
+         * Returns the offset of the last checkpoint, 0 if none, nothing of the file is trusted.
+         */
+        static long readDurableOffset(File file) {
+            File durableFile = durableFileOf(file);
+            if (!durableFile.exists()) return 0;
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(durableFile), "UTF-8"));
+                return Math.max(0, Long.parseLong(reader.readLine().trim()));
+            } catch (IOException e) {
+                return 0;
+            } catch (RuntimeException e) {
+                return 0;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write the sidecar by a synced temporary then rename, it's either the old offset or the new one.
+         */
+        private static void writeDurableOffset(File file, long offset) throws IOException {
+            File durableFile = durableFileOf(file);
+            File tmpDurableFile = new File(durableFile.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmpDurableFile);
+            try {
+                out.write((offset + "\n").getBytes("UTF-8"));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmpDurableFile.renameTo(durableFile)) throw new IOException("Can't rename " + tmpDurableFile);
+        }
+    }
+
+    /**
+     * Keeps the content in memory, the buffer is charged to the {@link MemoryBudget} and is
+     * presized to the Content-Length, call {@link #release()} to return it after use.
+     */
+    public static class ByteArraySink extends DownloadSink {
+        private final int mMaxSize;
+
+        private HttpUtils.PoolingByteArrayOutputStream mBytes;
+
+        public ByteArraySink() {
+            this(Integer.MAX_VALUE);
+        }
+
+        /**
+         * @param maxSize The content larger than this will fail the download, protects the memory
+         *                from an unexpected huge response.
+         */
+        public ByteArraySink(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        public void open(long offset, long contentLength) throws IOException {
+            if (contentLength > mMaxSize) {
+                throw new IOException("Content-Length " + contentLength + " exceeds the max size " + mMaxSize);
+            }
+            release();
+            mBytes = new HttpUtils.PoolingByteArrayOutputStream(contentLength > 0 ? (int) contentLength : 0);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mBytes.size() + (long) count > mMaxSize) {
+                throw new IOException("Content exceeds the max size " + mMaxSize);
+            }
+            mBytes.write(buffer, offset, count);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Returns the content length.
+         */
+        public int size() {
+            return mBytes == null ? 0 : mBytes.size();
+        }
+
+        /**
+         * Returns a copy of the content.
+         */
+        public byte[] toByteArray() {
+            return mBytes == null ? new byte[0] : mBytes.toByteArray();
+        }
+
+        /**
+         * Returns a stream over the content without copy, it's invalid after {@link #release()}.
+         */
+        public InputStream toInputStream() {
+            if (mBytes == null) return new ByteArrayInputStream(new byte[0]);
+            return new ByteArrayInputStream(mBytes.getBuffer(), 0, mBytes.size());
+        }
+
+        /**
+         * Return the buffer to the pool.
+         */
+        public void release() {
+            if (mBytes != null) {
+                try {
+                    mBytes.close();
+                } catch (IOException ignored) {
+                }
+                mBytes = null;
+            }
+        }
+    }
+
+    /**
+     * Writes to a caller-owned {@link OutputStream} or {@link WritableByteChannel}, e.g. the pipe of
+     * a decoder. It can't resume, the caller should drop what it got if {@link #open(long, long)}
+     * is called again. The stream or channel is flushed on complete but never closed by us.
+     */
+    public static class StreamSink extends DownloadSink {
+        private final OutputStream mOut;
+
+        private final WritableByteChannel mChannel;
+
+        public StreamSink(OutputStream out) {
+            mOut = out;
+            mChannel = null;
+        }
+
+        public StreamSink(WritableByteChannel channel) {
+            mOut = null;
+            mChannel = channel;
+        }
+
+        @Override
+        public void open(long offset, long contentLength) {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mOut != null) {
+                mOut.write(buffer, offset, count);
+                return;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, count);
+            while (byteBuffer.hasRemaining()) {
+                mChannel.write(byteBuffer);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void complete() throws IOException {
+            if (mOut != null) mOut.flush();
+        }
+    }
+}
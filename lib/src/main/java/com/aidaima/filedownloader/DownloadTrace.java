@@ -0,0 +1,266 @@
+package com.aidaima.filedownloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The timeline of the HTTP exchanges recorded by a {@link TraceRecorder}, read it back by
+ * {@link #read(InputStream)} to replay by a {@link TraceReplayer}.
+ * <p/>
+ * The binary format is the magic "FDTR", a version byte, then the exchanges till the end of stream,
+ * the numbers are unsigned varints, the times are milliseconds:
+ * <pre>
+ * startTime url requestHeaders statusCode responseDelay responseHeaders
+ * chunkCount (delay size)* endDelay success
+ * </pre>
+ * The headers are a count followed by the name and value pairs, each string is UTF-8 with a varint length.
+ * Every delay is since the previous event of the same exchange, the chunks arrived in the same
+ * millisecond are merged.
+ */
+public class DownloadTrace {
+    private static final byte[] MAGIC = {'F', 'D', 'T', 'R'};
+    private static final int VERSION = 1;
+
+    private final List<Exchange> mExchanges = new ArrayList<Exchange>();
+
+    /**
+     * Returns the exchanges by the order they finished.
+     */
+    public List<Exchange> getExchanges() {
+        return Collections.unmodifiableList(mExchanges);
+    }
+
+    /**
+     * Read the trace, the stream won't be closed, an exchange torn by the process death is dropped.
+     */
+    public static DownloadTrace read(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dataIn.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) throw new IOException("Not a download trace.");
+        }
+        int version = dataIn.readUnsignedByte();
+        if (version != VERSION) throw new IOException("Unsupported trace version " + version);
+
+        DownloadTrace trace = new DownloadTrace();
+        while (true) {
+            try {
+                trace.mExchanges.add(Exchange.readFrom(dataIn));
+            } catch (EOFException e) {
+                return trace;
+            }
+        }
+    }
+
+    static void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    /**
+     * One HTTP exchange, from the request sent till the content ended.
+     */
+    public static class Exchange {
+        /**
+         * Since the recorder started.
+         */
+        public final long startTime;
+
+        public final String url;
+
+        public final Map<String, String> requestHeaders;
+
+        /**
+         * 0 if no response arrived.
+         */
+        public int statusCode;
+
+        /**
+         * From the request sent till the response arrived.
+         */
+        public long responseDelay;
+
+        public final Map<String, String> responseHeaders = new LinkedHashMap<String, String>();
+
+        private long[] mChunkDelays = new long[16];
+
+        private int[] mChunkSizes = new int[16];
+
+        private int mChunkCount;
+
+        /**
+         * From the last chunk, or the response if none, till the content ended.
+         */
+        public long endDelay;
+
+        /**
+         * Whether the exchange completed the download, false if it failed or was canceled.
+         */
+        public boolean success;
+
+        /**
+         * The clock of the last event, to compute the delays while recording.
+         */
+        private long mLastEventTime;
+
+        Exchange(long startTime, String url, Map<String, String> requestHeaders) {
+            this.startTime = startTime;
+            this.url = url;
+            this.requestHeaders = requestHeaders;
+            mLastEventTime = startTime;
+        }
+
+        public int getChunkCount() {
+            return mChunkCount;
+        }
+
+        public int getChunkSize(int index) {
+            return mChunkSizes[index];
+        }
+
+        /**
+         * Returns the delay of the chunk since the previous event.
+         */
+        public long getChunkDelay(int index) {
+            return mChunkDelays[index];
+        }
+
+        /**
+         * Returns the content bytes of all chunks.
+         */
+        public long getContentLength() {
+            long length = 0;
+            for (int i = 0; i < mChunkCount; i++) length += mChunkSizes[i];
+            return length;
+        }
+
+        void onResponse(long time, int statusCode, Map<String, String> headers) {
+            this.statusCode = statusCode;
+            responseDelay = time - mLastEventTime;
+            responseHeaders.putAll(headers);
+            mLastEventTime = time;
+        }
+
+        void onChunk(long time, int size) {
+            long delay = time - mLastEventTime;
+            if (delay == 0 && mChunkCount > 0) {
+                mChunkSizes[mChunkCount - 1] += size;
+                return;
+            }
+            if (mChunkCount == mChunkSizes.length) {
+                long[] delays = new long[mChunkCount * 2];
+                int[] sizes = new int[mChunkCount * 2];
+                System.arraycopy(mChunkDelays, 0, delays, 0, mChunkCount);
+                System.arraycopy(mChunkSizes, 0, sizes, 0, mChunkCount);
+                mChunkDelays = delays;
+                mChunkSizes = sizes;
+            }
+            mChunkDelays[mChunkCount] = delay;
+            mChunkSizes[mChunkCount] = size;
+            mChunkCount++;
+            mLastEventTime = time;
+        }
+
+        void onEnd(long time, boolean success) {
+            endDelay = time - mLastEventTime;
+            this.success = success;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            writeVarLong(out, startTime);
+            writeString(out, url);
+            writeHeaders(out, requestHeaders);
+            writeVarLong(out, statusCode);
+            writeVarLong(out, responseDelay);
+            writeHeaders(out, responseHeaders);
+            writeVarLong(out, mChunkCount);
+            for (int i = 0; i < mChunkCount; i++) {
+                writeVarLong(out, mChunkDelays[i]);
+                writeVarLong(out, mChunkSizes[i]);
+            }
+            writeVarLong(out, endDelay);
+            out.writeByte(success ? 1 : 0);
+        }
+
+        static Exchange readFrom(DataInputStream in) throws IOException {
+            long startTime = readVarLong(in);
+            String url = readString(in);
+            Exchange exchange = new Exchange(startTime, url, readHeaders(in));
+            exchange.statusCode = (int) readVarLong(in);
+            exchange.responseDelay = readVarLong(in);
+            exchange.responseHeaders.putAll(readHeaders(in));
+            int chunkCount = (int) readVarLong(in);
+            exchange.mChunkDelays = new long[Math.max(1, chunkCount)];
+            exchange.mChunkSizes = new int[Math.max(1, chunkCount)];
+            for (int i = 0; i < chunkCount; i++) {
+                exchange.mChunkDelays[i] = readVarLong(in);
+                exchange.mChunkSizes[i] = (int) readVarLong(in);
+            }
+            exchange.mChunkCount = chunkCount;
+            exchange.endDelay = readVarLong(in);
+            exchange.success = in.readUnsignedByte() == 1;
+            return exchange;
+        }
+    }
+
+    private static void writeHeaders(DataOutputStream out, Map<String, String> headers) throws IOException {
+        writeVarLong(out, headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+    }
+
+    private static Map<String, String> readHeaders(DataInputStream in) throws IOException {
+        int count = (int) readVarLong(in);
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            headers.put(readString(in), readString(in));
+        }
+        return headers;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        // the negative value never happens unless the clock went back, record it as 0.
+        value = Math.max(0, value);
+        while (value >= 0x80) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+            if (shift > 63) throw new IOException("Malformed varint.");
+        }
+    }
+}
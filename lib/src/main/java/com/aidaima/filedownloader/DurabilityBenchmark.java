@@ -0,0 +1,247 @@
+package com.aidaima.filedownloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares the {@link DurabilityPolicy}s on the traffic of a {@link DownloadTrace}. The recorded
+ * chunks of every exchange are written to a {@link DownloadSink.FileSink} under each policy, the
+ * recorded delays advance the clock of the checkpoint interval instead of being waited, so a policy
+ * checkpoints as it would on that traffic while only the disk time is spent. Run it on the device,
+ * the cost of fsync is the disk's.
+ * <p/>
+ * Each exchange is also checked for the recovery: the power is lost in the middle of its chunks,
+ * the disk keeps what the last checkpoint forced, then the sidecar is truncated at every length
+ * and removed, the resume offset must never go past the durable offset. {@link DurabilityPolicy#NONE}
+ * trusts the file length, it's not checked.
+ */
+public class DurabilityBenchmark {
+    private final DownloadTrace mTrace;
+
+    private final File mDirectory;
+
+    private final Map<String, DurabilityPolicy> mPolicies = new LinkedHashMap<String, DurabilityPolicy>();
+
+    /**
+     * @param directory Where the files are written, they are deleted after the run.
+     */
+    public DurabilityBenchmark(DownloadTrace trace, File directory) {
+        mTrace = trace;
+        mDirectory = directory;
+    }
+
+    public DurabilityBenchmark addPolicy(String name, DurabilityPolicy policy) {
+        mPolicies.put(name, policy);
+        return this;
+    }
+
+    /**
+     * Run every policy over the whole trace, must not be invoked from the main thread.
+     *
+     * @return the reports by the policy names, in the added order.
+     */
+    public Map<String, Report> run() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) throw new IOException("Can't create " + mDirectory);
+        int maxChunkSize = 0;
+        for (DownloadTrace.Exchange exchange : mTrace.getExchanges()) {
+            for (int i = 0; i < exchange.getChunkCount(); i++) {
+                maxChunkSize = Math.max(maxChunkSize, exchange.getChunkSize(i));
+            }
+        }
+        byte[] buffer = new byte[maxChunkSize];
+
+        Map<String, Report> reports = new LinkedHashMap<String, Report>();
+        for (Map.Entry<String, DurabilityPolicy> entry : mPolicies.entrySet()) {
+            Report report = new Report();
+            File file = new File(mDirectory, "durability-benchmark.tmp");
+            try {
+                for (DownloadTrace.Exchange exchange : mTrace.getExchanges()) {
+                    if (exchange.statusCode < 200 || exchange.statusCode > 299 || exchange.getChunkCount() == 0) continue;
+                    replay(exchange, entry.getValue(), file, buffer, report);
+                }
+            } finally {
+                file.delete();
+                DownloadSink.FileSink.durableFileOf(file).delete();
+            }
+            reports.put(entry.getKey(), report);
+        }
+        return reports;
+    }
+
+    private void replay(DownloadTrace.Exchange exchange, DurabilityPolicy policy, File file, byte[] buffer,
+                        final Report report) throws IOException {
+        file.delete();
+        DownloadSink.FileSink.durableFileOf(file).delete();
+        final long[] networkTime = new long[1];
+        final long startTime = System.nanoTime();
+        DownloadSink.FileSink sink = new DownloadSink.FileSink(file) {
+            @Override
+            protected long now() {
+                return networkTime[0] + (System.nanoTime() - startTime) / 1000000;
+            }
+
+            @Override
+            protected void onCheckpoint(long elapsedMs) {
+                report.syncMs += elapsedMs;
+                report.syncCount++;
+            }
+        };
+        sink.setDurabilityPolicy(policy);
+
+        int crashChunk = exchange.getChunkCount() / 2;
+        long crashPosition = 0;
+        long crashDurableOffset = 0;
+        long position = 0;
+        sink.open(0, exchange.getContentLength());
+        try {
+            for (int i = 0; i < exchange.getChunkCount(); i++) {
+                networkTime[0] += exchange.getChunkDelay(i);
+                sink.write(buffer, 0, exchange.getChunkSize(i));
+                position += exchange.getChunkSize(i);
+                report.exposedBytesSum += position - sink.getDurableOffset();
+                report.writeCount++;
+                if (i == crashChunk) {
+                    crashPosition = position;
+                    crashDurableOffset = sink.getDurableOffset();
+                }
+            }
+        } finally {
+            sink.close();
+        }
+        report.diskNanos += System.nanoTime() - startTime;
+        report.bytes += position;
+        report.lostBytes += crashPosition - crashDurableOffset;
+
+        if (policy.isEnabled()) checkRecovery(file, policy, crashPosition, crashDurableOffset, report);
+    }
+
+    /**
+     * Bring the file back to the power loss, the bytes after the crash never reached the disk, the
+     * bytes after the durable offset may or may not, then see where the download resumes.
+     */
+    private static void checkRecovery(File file, DurabilityPolicy policy, long crashPosition,
+                                      long durableOffset, Report report) throws IOException {
+        File durableFile = DownloadSink.FileSink.durableFileOf(file);
+        DownloadSink.FileSink sink = new DownloadSink.FileSink(file);
+        sink.setDurabilityPolicy(policy);
+        byte[] record = (durableOffset + "\n").getBytes("UTF-8");
+        long[] lengths = {crashPosition, durableOffset};
+        for (long length : lengths) {
+            setLength(file, length);
+            if (durableOffset > 0) {
+                for (int cut = record.length; cut >= 0; cut--) {
+                    writeSidecar(durableFile, record, cut);
+                    checkResume(sink, durableOffset, report);
+                }
+            }
+            durableFile.delete();
+            checkResume(sink, durableOffset, report);
+        }
+    }
+
+    private static void checkResume(DownloadSink.FileSink sink, long durableOffset, Report report) {
+        report.recoveryChecks++;
+        if (sink.getResumeOffset() > durableOffset) report.recoveryViolations++;
+    }
+
+    private static void setLength(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeSidecar(File durableFile, byte[] record, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(durableFile);
+        try {
+            out.write(record, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The outcome of a policy over the trace.
+     */
+    public static class Report {
+        long bytes;
+        long diskNanos;
+        long syncMs;
+        int syncCount;
+        long exposedBytesSum;
+        int writeCount;
+        long lostBytes;
+        int recoveryChecks;
+        int recoveryViolations;
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the time of the writes and the checkpoints, the recorded delays excluded.
+         */
+        public long getDiskMs() {
+            return diskNanos / 1000000;
+        }
+
+        public long getSyncMs() {
+            return syncMs;
+        }
+
+        public int getSyncCount() {
+            return syncCount;
+        }
+
+        /**
+         * Returns the bytes per second the disk took under the policy.
+         */
+        public long getThroughput() {
+            return diskNanos > 0 ? (long) (bytes * 1e9 / diskNanos) : 0;
+        }
+
+        /**
+         * Returns the mean bytes written but not durable yet after a write, what a power loss
+         * at a random moment costs to download again.
+         */
+        public long getMeanExposedBytes() {
+            return writeCount > 0 ? exposedBytesSum / writeCount : 0;
+        }
+
+        /**
+         * Returns the bytes downloaded again after the power losses in the middle of every exchange.
+         */
+        public long getLostBytes() {
+            return lostBytes;
+        }
+
+        public int getRecoveryChecks() {
+            return recoveryChecks;
+        }
+
+        /**
+         * Returns how many times the resume offset went past the durable offset, must be 0.
+         */
+        public int getRecoveryViolations() {
+            return recoveryViolations;
+        }
+
+        @Override
+        public String toString() {
+            return "bytes=" + bytes
+                    + " disk=" + getDiskMs() + "ms"
+                    + " throughput=" + String.format(Locale.US, "%.1f", getThroughput() / 1024.0 / 1024.0) + "MB/s"
+                    + " sync=" + syncMs + "ms/" + syncCount
+                    + " meanExposed=" + getMeanExposedBytes()
+                    + " lost=" + lostBytes
+                    + " recovery=" + (recoveryChecks - recoveryViolations) + "/" + recoveryChecks;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.aidaima.filedownloader;
+
+/**
+ * Decides when the written bytes of a temporary file are forced to the disk. After a power loss the
+ * file length may cover bytes that never reached the disk, so a download under a policy other than
+ * {@link #NONE} records the offset confirmed durable by each checkpoint, and resumes from there
+ * instead of the file length. Set it by {@link FileDownloader#setDurabilityPolicy(DurabilityPolicy)}.
+ * <p/>
+ * Fsync costs a disk flush, the larger the interval the less throughput we lose but the more bytes
+ * we download again after the power loss. Compare the policies by {@link RequestMetrics#syncMs} in the
+ * field, or by a {@link DurabilityBenchmark} on a recorded trace.
+ */
+public class DurabilityPolicy {
+    /**
+     * Never fsync, resume from the file length, survives the process death but not the power loss.
+     */
+    public static final DurabilityPolicy NONE = new DurabilityPolicy(0, 0);
+
+    /**
+     * Checkpoint every 4MB or 5 seconds, whichever comes first.
+     */
+    public static final DurabilityPolicy DEFAULT = every(4 * 1024 * 1024, 5000);
+
+    private final long mBytes;
+
+    private final long mIntervalMs;
+
+    private DurabilityPolicy(long bytes, long intervalMs) {
+        mBytes = bytes;
+        mIntervalMs = intervalMs;
+    }
+
+    /**
+     * Checkpoint when the bytes written since the last one reach the count, or the interval passed,
+     * the transfer end is always a checkpoint.
+     *
+     * @param bytes      The bytes between checkpoints, 0 for no limit by bytes.
+     * @param intervalMs The time between checkpoints, 0 for no limit by time.
+     */
+    public static DurabilityPolicy every(long bytes, long intervalMs) {
+        if (bytes < 0 || intervalMs < 0 || (bytes == 0 && intervalMs == 0)) {
+            throw new IllegalArgumentException("bytes[" + bytes + "] and intervalMs[" + intervalMs
+                    + "] must not be negative, and at least one positive.");
+        }
+        return new DurabilityPolicy(bytes, intervalMs);
+    }
+
+    public boolean isEnabled() {
+        return mBytes > 0 || mIntervalMs > 0;
+    }
+
+    /**
+     * @param bytesSince   The bytes written since the last checkpoint.
+     * @param elapsedSince The milliseconds since the last checkpoint.
+     */
+    boolean shouldCheckpoint(long bytesSince, long elapsedSince) {
+        if (bytesSince <= 0) return false;
+        return (mBytes > 0 && bytesSince >= mBytes) || (mIntervalMs > 0 && elapsedSince >= mIntervalMs);
+    }
+
+    @Override
+    public String toString() {
+        return isEnabled() ? "DurabilityPolicy{bytes=" + mBytes + ", intervalMs=" + mIntervalMs + "}" : "DurabilityPolicy{NONE}";
+    }
+}
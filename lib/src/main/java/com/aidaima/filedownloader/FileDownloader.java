@@ -1,9 +1,18 @@
 package com.aidaima.filedownloader;
 
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public class FileDownloader {
 
@@ -11,20 +20,70 @@ public class FileDownloader {
 
     private final int mParallelTaskCount;
 
-    private final LinkedList<DownloadController> mTaskQueue;
+    /**
+     * The tasks by the order they were added, a linked set makes the removal O(1).
+     */
+    private final LinkedHashSet<DownloadController> mTaskQueue;
+
+    private SchedulePolicy mSchedulePolicy = SchedulePolicy.FIFO;
+
+    /**
+     * Learn the size of waiting tasks, create only when the policy requires.
+     */
+    private ContentLengthProber mProber;
+
+    /**
+     * The controllers who own the network transfer, keyed by url, another controller adds the same url
+     * will attach to the owner instead of downloading again.
+     */
+    private final HashMap<String, DownloadController> mTransfers;
+
+    /**
+     * The cache to revalidate and store downloaded files, null if cache disabled.
+     */
+    private DownloadCache mCache;
+
+    /**
+     * The depth of the batch operations, the schedule is deferred till the outermost batch end.
+     */
+    private int mBatchDepth;
+    private boolean mSchedulePending;
+
+    /**
+     * Persists the Task Queue, null if disabled.
+     */
+    private TaskStore mTaskStore;
+
+    /**
+     * The listener of the restored tasks till the app set theirs.
+     */
+    private Listener mRestoreListener;
 
+    /**
+     * Receives the instrumentation, null if disabled.
+     */
+    private DownloadMetrics mMetrics;
+
+    private DurabilityPolicy mDurabilityPolicy = DurabilityPolicy.NONE;
+
+    /**
+     * The disk space promised to the deployed tasks.
+     */
+    private final DiskSpaceLedger mDiskSpaceLedger = new DiskSpaceLedger();
 
     private FileDownloader(RequestQueue queue, int parallelTaskCount) {
-        if (queue == null) {
-            queue = new RequestQueue(RequestQueue.DEFAULT_NETWORK_THREAD_POOL_SIZE);
+        if (parallelTaskCount <= 0) {
+            throw new IllegalArgumentException("parallelTaskCount[" + parallelTaskCount + "] must be positive.");
         }
 
-        if (parallelTaskCount >= queue.getThreadPoolSize()) {
-            throw new IllegalArgumentException("parallelTaskCount[" + parallelTaskCount
-                    + "] must less than threadPoolSize[" + queue.getThreadPoolSize() + "] of the RequestQueue.");
+        if (queue == null) {
+            // the threads are created on demand, a paused request may still hold one till it
+            // notices the cancel, so leave places for them beyond the parallel tasks.
+            queue = new RequestQueue(Math.max(RequestQueue.DEFAULT_NETWORK_THREAD_POOL_SIZE, parallelTaskCount * 2));
         }
 
-        mTaskQueue = new LinkedList<DownloadController>();
+        mTaskQueue = new LinkedHashSet<DownloadController>();
+        mTransfers = new HashMap<String, DownloadController>();
         mParallelTaskCount = parallelTaskCount;
         mRequestQueue = queue;
 
@@ -36,55 +95,509 @@ public class FileDownloader {
     }
 
     public DownloadController add(String storeFilePath, String url, Listener listener) {
+        return add(storeFilePath, url, (DownloadOptions) null, listener);
+    }
+
+    /**
+     * Add a task which the downloaded file must match the checksum, if mismatch,
+     * the task will be failed with a {@link NetworkException.IntegrityError}.
+     *
+     * @param expectedChecksum The checksum to verify, null to verify the checksum presented by the response.
+     */
+    public DownloadController add(String storeFilePath, String url, Checksum expectedChecksum, Listener listener) {
+        return add(storeFilePath, url, new DownloadOptions().setExpectedChecksum(expectedChecksum), listener);
+    }
+
+    /**
+     * Add a task with the optional settings.
+     *
+     * @param options The settings of this task, null to use the defaults.
+     */
+    public DownloadController add(String storeFilePath, String url, DownloadOptions options, Listener listener) {
         // only fulfill requests that were initiated from the main thread.(reason for the Delivery?)
         throwIfNotOnMainThread();
+        return add(storeFilePath, url, options, listener, null);
+    }
 
-        DownloadController controller = new DownloadController(storeFilePath, url, listener);
+    /**
+     * @param future Observes the task since before it can be deployed, null if added with a listener only.
+     */
+    private DownloadController add(String storeFilePath, String url, DownloadOptions options, Listener listener,
+                                   DownloadFuture future) {
+        DownloadController controller = createController(storeFilePath, url, options, listener);
+        controller.mFuture = future;
         synchronized (mTaskQueue) {
             mTaskQueue.add(controller);
+            attachOrLead(controller);
+        }
+        if (mTaskStore != null) store(controller);
+        schedule();
+        return controller;
+    }
+
+    /**
+     * Add a task whose outcome and progress are delivered on the executor instead of a {@link Listener},
+     * see {@link DownloadFuture}. Unlike {@link #add(String, String, DownloadOptions, Listener)} it can be
+     * invoked from any thread, the task is added on the main thread.
+     *
+     * @param options  The settings of this task, null to use the defaults.
+     * @param executor Runs the callbacks and the progress subscribers of the returned future.
+     */
+    public DownloadFuture submit(final String storeFilePath, final String url, final DownloadOptions options,
+                                 Executor executor) {
+        final DownloadFuture future = new DownloadFuture(storeFilePath, executor);
+        Runnable addTask = new Runnable() {
+            @Override
+            public void run() {
+                DownloadController controller = add(storeFilePath, url, options,
+                        future.createListener(FileDownloader.this), future);
+                future.setController(controller);
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            addTask.run();
+        } else {
+            new Handler(Looper.getMainLooper()).post(addTask);
+        }
+        return future;
+    }
+
+    /**
+     * Add all entries of the manifest in bulk, the Task Queue is locked once and
+     * scheduled once, instead of once per entry like {@link #add(String, String, Listener)}.
+     *
+     * @param listener Shared by all tasks of the manifest, may be null.
+     * @return the group of the added tasks.
+     */
+    public DownloadGroup addAll(DownloadManifest manifest, Listener listener) {
+        return addAll(manifest, false, listener);
+    }
+
+    /**
+     * @param replaceExisting See {@link DownloadOptions#setReplaceExisting(boolean)}.
+     */
+    DownloadGroup addAll(DownloadManifest manifest, boolean replaceExisting, Listener listener) {
+        throwIfNotOnMainThread();
+
+        List<DownloadController> controllers = new ArrayList<DownloadController>(manifest.size());
+        for (DownloadManifest.Entry entry : manifest.getEntries()) {
+            DownloadOptions options = new DownloadOptions()
+                    .setExpectedChecksum(entry.checksum)
+                    .setPriority(entry.priority)
+                    .setReplaceExisting(replaceExisting);
+            DownloadController controller = createController(entry.storeFilePath, entry.url, options, listener);
+            // the known size saves a probe of the size-aware policy.
+            if (entry.size >= 0) controller.mFileSize = entry.size;
+            controllers.add(controller);
+        }
+
+        synchronized (mTaskQueue) {
+            mTaskQueue.addAll(controllers);
+            for (DownloadController controller : controllers) {
+                attachOrLead(controller);
+            }
+        }
+        if (mTaskStore != null) {
+            for (DownloadController controller : controllers) {
+                store(controller);
+            }
         }
         schedule();
+        return createGroup(controllers);
+    }
+
+    /**
+     * Record the added task to the store. The same path and url stored by the last process but not
+     * restored yet is the same task, its record is replaced instead of stored twice, the checkpoint
+     * is kept so the task saves a probe, like {@link #get(String, String)} restores it.
+     */
+    private void store(DownloadController controller) {
+        TaskStore.Record record = mTaskStore.pollRestorable(controller.mStoreFilePath, controller.mUrl);
+        if (record != null) {
+            mTaskStore.remove(record.id);
+            if (controller.mFileSize < 0) {
+                controller.mFileSize = record.fileSize;
+                controller.mDownloadedSize = record.downloadedSize;
+            }
+        }
+        controller.mRecordId = mTaskStore.add(controller.mStoreFilePath, controller.mUrl,
+                controller.mOptions, controller.mPriority);
+        if (record != null) {
+            mTaskStore.checkpoint(controller.mRecordId, controller.mFileSize, controller.mDownloadedSize, true);
+        }
+    }
+
+    /**
+     * Put the tasks into a group to control them together and observe the aggregate progress,
+     * a task can be in one group only.
+     */
+    public DownloadGroup group(List<DownloadController> controllers) {
+        throwIfNotOnMainThread();
+        for (DownloadController controller : controllers) {
+            if (controller.mGroupMember != null) {
+                throw new IllegalStateException("Task " + controller.mUrl + " is already in a group.");
+            }
+        }
+        return createGroup(new ArrayList<DownloadController>(controllers));
+    }
+
+    private DownloadGroup createGroup(List<DownloadController> controllers) {
+        DownloadGroup group = new DownloadGroup(this, controllers);
+        for (DownloadController controller : controllers) {
+            controller.mGroupMember = new DownloadGroup.Member(group, controller.mFileSize);
+            controller.mGroupMember.onProgress(controller.mFileSize, controller.mDownloadedSize);
+            if (controller.mStatus == DownloadController.STATUS_SUCCESS) controller.mGroupMember.onFinished(true);
+            else if (controller.mStatus == DownloadController.STATUS_DISCARD) controller.mGroupMember.onFinished(false);
+        }
+        return group;
+    }
+
+    /**
+     * Start a batch of operations, each of them won't schedule until {@link #endBatch()}.
+     */
+    void beginBatch() {
+        throwIfNotOnMainThread();
+        mBatchDepth++;
+    }
+
+    void endBatch() {
+        if (--mBatchDepth == 0 && mSchedulePending) {
+            mSchedulePending = false;
+            schedule();
+        }
+    }
+
+    private DownloadController createController(String storeFilePath, String url, DownloadOptions options, Listener listener) {
+        DownloadController controller = new DownloadController(storeFilePath, url, listener);
+        controller.mOptions = options != null ? options : new DownloadOptions();
+        controller.mPriority = controller.mOptions.getPriority();
+        if (controller.mOptions.getExtractDirectory() != null
+                && controller.mOptions.resolveArchiveFormat(storeFilePath, url) < 0) {
+            throw new IllegalArgumentException("Can't detect the archive format of " + storeFilePath
+                    + ", please specify it by DownloadOptions.setExtractDirectory(File, int).");
+        }
         return controller;
     }
 
     /**
      * Scanning the Task Queue, fetch a {@link DownloadController} who match the two parameters.
+     * A stored task not restored yet is restored by this, so it must be invoked from the main thread.
      *
      * @param storeFilePath The storeFilePath to compare.
      * @param url           The url to compare.
      * @return The matched {@link DownloadController}.
      */
     public DownloadController get(String storeFilePath, String url) {
+        throwIfNotOnMainThread();
         synchronized (mTaskQueue) {
             for (DownloadController controller : mTaskQueue) {
                 if (controller.mStoreFilePath.equals(storeFilePath) &&
                         controller.mUrl.equals(url)) return controller;
             }
+            // it may be stored but not restored yet.
+            if (mTaskStore != null) {
+                TaskStore.Record record = mTaskStore.pollRestorable(storeFilePath, url);
+                if (record != null) {
+                    DownloadController controller = restore(record);
+                    if (controller.mStatus == DownloadController.STATUS_WAITING) schedule();
+                    return controller;
+                }
+            }
         }
         return null;
     }
 
     /**
-     * Traverse the Task Queue, count the running task then deploy more if it can be.
+     * Persist the Task Queue to the store, the tasks stored by the last process come back,
+     * see {@link TaskStore} for how they are restored. The tasks added before this won't be stored.
+     *
+     * @param listener The listener of the restored tasks, replace it by
+     *                 {@link DownloadController#setListener(Listener)}, may be null.
+     */
+    public void setTaskStore(TaskStore store, Listener listener) {
+        throwIfNotOnMainThread();
+        if (mTaskStore != null) {
+            throw new IllegalStateException("The TaskStore can be set only once.");
+        }
+        mTaskStore = store;
+        mRestoreListener = listener;
+        store.start(new Handler(Looper.getMainLooper()), new TaskStore.LoadCallback() {
+            @Override
+            public void onLoaded() {
+                // the interrupted tasks resume at once, from their temporary files.
+                synchronized (mTaskQueue) {
+                    for (TaskStore.Record record : mTaskStore.pollInterrupted()) {
+                        restore(record);
+                    }
+                }
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Restore the paused tasks of the {@link TaskStore} which not restored yet.
+     *
+     * @return the restored tasks, they stay paused.
+     */
+    public List<DownloadController> restorePausedTasks() {
+        throwIfNotOnMainThread();
+        List<DownloadController> controllers = new ArrayList<DownloadController>();
+        if (mTaskStore == null) return controllers;
+        synchronized (mTaskQueue) {
+            for (TaskStore.Record record : mTaskStore.pollPaused()) {
+                controllers.add(restore(record));
+            }
+        }
+        return controllers;
+    }
+
+    /**
+     * Create the controller of the stored task then put it into the Task Queue, the paused task
+     * stays paused, the others wait to deploy.
+     */
+    private DownloadController restore(TaskStore.Record record) {
+        DownloadController controller = createController(record.storeFilePath, record.url,
+                record.toOptions(), mRestoreListener);
+        controller.mRecordId = record.id;
+        // the checkpoint saves a probe, the download itself continues from the temporary file.
+        controller.mFileSize = record.fileSize;
+        controller.mDownloadedSize = record.downloadedSize;
+        if (record.status == DownloadController.STATUS_PAUSE) {
+            controller.mStatus = DownloadController.STATUS_PAUSE;
+        } else {
+            mTaskStore.updateStatus(record.id, DownloadController.STATUS_WAITING);
+        }
+        mTaskQueue.add(controller);
+        if (controller.mStatus == DownloadController.STATUS_WAITING) attachOrLead(controller);
+        return controller;
+    }
+
+    /**
+     * Restore the stored waiting tasks when the schedule needs them, enough to take the idle places,
+     * also the ones have higher priority than any waiting task.
+     */
+    private void restoreWaiting(List<DownloadController> waiting, int idleCount) {
+        int topPriority = Integer.MIN_VALUE;
+        for (DownloadController controller : waiting) {
+            topPriority = Math.max(topPriority, controller.mPriority);
+        }
+        TaskStore.Record record;
+        while ((record = mTaskStore.peekWaiting()) != null
+                && (waiting.size() < idleCount || record.priority > topPriority)) {
+            mTaskStore.pollWaiting();
+            DownloadController controller = restore(record);
+            if (controller.mLeader == null) waiting.add(controller);
+        }
+    }
+
+    /**
+     * If another controller is transferring the same url, attach the controller to it,
+     * otherwise the controller take the transfer of this url.
+     */
+    private void attachOrLead(DownloadController controller) {
+        DownloadController leader = mTransfers.get(controller.mUrl);
+        if (leader == null || leader == controller
+                || (leader.mStatus != DownloadController.STATUS_WAITING && !leader.isDownloading())) {
+            mTransfers.put(controller.mUrl, controller);
+        } else if (controller.mOptions.getExpectedChecksum() != null
+                && !controller.mOptions.getExpectedChecksum().equals(leader.mOptions.getExpectedChecksum())) {
+            // it expects another content, download by itself.
+            return;
+        } else if (controller.mOptions.getExtractDirectory() != null) {
+            // the leader doesn't extract for it, download by itself.
+            return;
+        } else {
+            leader.attach(controller);
+        }
+    }
+
+    /**
+     * Set the on-disk cache, the tasks deployed after this will revalidate against the cache
+     * and store their downloaded files to it, pass null to disable.
+     *
+     * @param cache The cache to use.
+     */
+    public void setCache(DownloadCache cache) {
+        throwIfNotOnMainThread();
+        mCache = cache;
+    }
+
+    /**
+     * Set how long an idle download thread lives before it quit, the threads are created again
+     * when the tasks deploy, see {@link RequestQueue#setIdleTimeout(long)}.
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        mRequestQueue.setIdleTimeout(idleTimeoutMs);
+    }
+
+    /**
+     * Set when the temporary files are forced to the disk, the tasks deployed after this use it,
+     * the default is {@link DurabilityPolicy#NONE}. The policy must stay the same for a temporary
+     * file to resume by its checkpoints, the file without any checkpoint downloads again.
+     */
+    public void setDurabilityPolicy(DurabilityPolicy policy) {
+        throwIfNotOnMainThread();
+        if (policy == null) {
+            throw new IllegalArgumentException("DurabilityPolicy must not be null.");
+        }
+        mDurabilityPolicy = policy;
+    }
+
+    /**
+     * Keep the free space of the volume at least this, a task which can't fit waits till the others
+     * finish, or fails with {@link NetworkException.InsufficientSpaceError} if none can free the space.
+     * The default is 0.
+     */
+    public void setMinFreeSpace(long bytes) {
+        throwIfNotOnMainThread();
+        mDiskSpaceLedger.setMinFreeSpace(bytes);
+        schedule();
+    }
+
+    /**
+     * Returns the timeouts learned of the hosts, e.g. to tune the stall detection.
+     */
+    public AdaptiveTimeouts getTimeouts() {
+        return mRequestQueue.getTimeouts();
+    }
+
+    /**
+     * Returns the resolved redirects of the urls, e.g. to change the TTL.
+     */
+    public RedirectCache getRedirectCache() {
+        return mRequestQueue.getRedirectCache();
+    }
+
+    /**
+     * Set the receiver of the request timings and the queue gauges, null to disable,
+     * see {@link HistogramExporter} for a ready one.
+     */
+    public void setMetrics(DownloadMetrics metrics) {
+        throwIfNotOnMainThread();
+        mMetrics = metrics;
+        mRequestQueue.setMetrics(metrics);
+    }
+
+    /**
+     * Replace the network transport, e.g. by a {@link TraceReplayer} to benchmark without network,
+     * null to restore the built-in one. The tasks deployed after this use it.
+     */
+    public void setHttpStack(HttpStack stack) {
+        throwIfNotOnMainThread();
+        mRequestQueue.setHttpStack(stack);
+    }
+
+    /**
+     * Record the timeline of the downloads deployed after this, null to stop recording.
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        throwIfNotOnMainThread();
+        mRequestQueue.setTraceRecorder(recorder);
+    }
+
+    /**
+     * Change the policy which decides the deploy order of waiting tasks,
+     * the default policy is {@link SchedulePolicy#FIFO}.
+     *
+     * @param policy The policy to apply.
+     */
+    public void setSchedulePolicy(SchedulePolicy policy) {
+        throwIfNotOnMainThread();
+        if (policy == null) {
+            throw new IllegalArgumentException("SchedulePolicy must not be null.");
+        }
+        mSchedulePolicy = policy;
+        schedule();
+    }
+
+    /**
+     * Traverse the Task Queue, count the running task then deploy more if it can be,
+     * the waiting tasks are deployed by the order the {@link SchedulePolicy} decided.
      */
     private void schedule() {
+        if (mBatchDepth > 0) {
+            mSchedulePending = true;
+            return;
+        }
+        List<DownloadController> rejected = new ArrayList<DownloadController>();
         // make sure only one thread can manipulate the Task Queue.
         synchronized (mTaskQueue) {
-            // counting ran task.
-            int parallelTaskCount = 0;
+            // counting ran task, also collecting the waiting task.
+            List<DownloadController> running = new ArrayList<DownloadController>();
+            List<DownloadController> waiting = new ArrayList<DownloadController>();
             for (DownloadController controller : mTaskQueue) {
-                Log.d("LIF", "controller.isDownloading(): " + controller.isDownloading());
-                if (controller.isDownloading()) parallelTaskCount++;
+                // the attached controller shares the transfer, it doesn't take place.
+                if (controller.mLeader != null) continue;
+                if (controller.isDownloading()) running.add(controller);
+                else if (controller.mStatus == DownloadController.STATUS_WAITING) waiting.add(controller);
+            }
+            if (mTaskStore != null && running.size() < mParallelTaskCount) {
+                restoreWaiting(waiting, mParallelTaskCount - running.size());
+            }
+            if (mMetrics != null) {
+                mMetrics.onQueueGauges(mRequestQueue.getThreadCount(), mRequestQueue.getBusyThreadCount(),
+                        waiting.size(), running.size());
             }
-            Log.d("LIF", "parallelTaskCount: " + parallelTaskCount);
-            Log.d("LIF", "mParallelTaskCount: " + mParallelTaskCount);
-            if (parallelTaskCount >= mParallelTaskCount) return;
 
-            // try to deploy all Task if they're await.
-            for (DownloadController controller : mTaskQueue) {
-                if (controller.deploy() && ++parallelTaskCount == mParallelTaskCount) return;
+            final SchedulePolicy policy = mSchedulePolicy;
+            if (policy.requiresFileSize()) {
+                for (DownloadController controller : waiting) probeIfNeeded(controller);
             }
+            if (running.size() >= mParallelTaskCount || waiting.isEmpty()) return;
+
+            final long now = SystemClock.uptimeMillis();
+            Collections.sort(waiting, new Comparator<DownloadController>() {
+                @Override
+                public int compare(DownloadController lhs, DownloadController rhs) {
+                    return policy.order(lhs, rhs, now);
+                }
+            });
+
+            // try to deploy the waiting Task by order if the policy agreed and the disk can hold it.
+            for (DownloadController controller : waiting) {
+                if (!policy.canDeploy(controller, running, mParallelTaskCount)) continue;
+                if (!controller.reserveSpace()) {
+                    // nothing will free the space, fail it after the traversal.
+                    if (!mDiskSpaceLedger.hasReservations()) rejected.add(controller);
+                    continue;
+                }
+                if (controller.deploy()) {
+                    running.add(controller);
+                    if (running.size() == mParallelTaskCount) break;
+                } else {
+                    mDiskSpaceLedger.release(controller);
+                }
+            }
+        }
+
+        for (DownloadController controller : rejected) {
+            controller.fail(controller.insufficientSpaceError());
+        }
+    }
+
+    /**
+     * Send the controller to the prober if we haven't learned it size, re-schedule when we got that.
+     */
+    private void probeIfNeeded(final DownloadController controller) {
+        if (controller.mFileSize >= 0 || controller.mIsProbing) return;
+        controller.mIsProbing = true;
+
+        if (mProber == null) {
+            mProber = new ContentLengthProber(new Handler(Looper.getMainLooper()));
+            mProber.start();
         }
+        mProber.probe(controller.mStoreFilePath, controller.mUrl, new ContentLengthProber.Callback() {
+            @Override
+            public void onProbed(long fileSize, long downloadedSize) {
+                // the size may already known by the progress if the task deployed before probe done.
+                if (controller.mFileSize < 0) {
+                    controller.mFileSize = fileSize;
+                    controller.mDownloadedSize = downloadedSize;
+                }
+                if (controller.mStatus == DownloadController.STATUS_WAITING) schedule();
+            }
+        });
     }
 
     /**
@@ -96,7 +609,10 @@ public class FileDownloader {
         // also make sure one thread operation
         synchronized (mTaskQueue) {
             mTaskQueue.remove(controller);
+            if (mTransfers.get(controller.mUrl) == controller) mTransfers.remove(controller.mUrl);
         }
+        mDiskSpaceLedger.release(controller);
+        if (mTaskStore != null) mTaskStore.remove(controller.mRecordId);
         schedule();
     }
 
@@ -107,8 +623,9 @@ public class FileDownloader {
         // make sure only one thread can manipulate the Task Queue.
         synchronized (mTaskQueue) {
             while (mTaskQueue.size() > 0) {
-                mTaskQueue.get(0).discard();
+                mTaskQueue.iterator().next().discard();
             }
+            if (mTaskStore != null) mTaskStore.removeRestorable();
         }
     }
 
@@ -124,7 +641,7 @@ public class FileDownloader {
      * offer three params to constructing {@link DownloadRequest} then perform http downloading,
      * you can check the download status whenever you want to know.
      */
-    public class DownloadController {
+    public class DownloadController implements SchedulePolicy.Task {
         private final String TAG = DownloadController.class.getSimpleName();
         public static final int STATUS_WAITING = 0;
         public static final int STATUS_DOWNLOADING = 1;
@@ -138,11 +655,37 @@ public class FileDownloader {
         // The download request.
         private DownloadRequest mRequest;
         private int mStatus;
+        // The whole file size, -1 means unknown, learned by probe or download progress.
+        private long mFileSize = -1;
+        private long mDownloadedSize;
+        private boolean mIsProbing;
+        private long mWaitingSince;
+        // The controller who owns the transfer this controller attached to, null if this controller owns itself.
+        private DownloadController mLeader;
+        // The controllers attached to this controller's transfer.
+        private final List<DownloadController> mFollowers = new ArrayList<DownloadController>();
+        private DownloadOptions mOptions;
+        private int mPriority;
+        // The state in the group, null if not in a group.
+        private DownloadGroup.Member mGroupMember;
+        // The id in the TaskStore, null if not stored.
+        private String mRecordId;
+        // The future of the task added by submit(), null if added with a listener.
+        private DownloadFuture mFuture;
+
+        /**
+         * Tracks what's on disk for {@link #openInputStream()}, created by the first call.
+         */
+        private BlockBitmap mBlockBitmap;
+        // Keeps the digest state across pause and resume.
+        private final StreamingDigest.Checkpoint mDigestCheckpoint = new StreamingDigest.Checkpoint();
 
         private DownloadController(String storeFilePath, String url, Listener listener) {
             mStoreFilePath = storeFilePath;
-            mListener = listener;
+            // the tasks added in bulk may have no listener.
+            mListener = listener != null ? listener : new Listener() {};
             mUrl = url;
+            mWaitingSince = SystemClock.uptimeMillis();
         }
 
         /**
@@ -151,26 +694,55 @@ public class FileDownloader {
          * @return true if deploy is successed.
          */
         private boolean deploy() {
-            Log.d("LIF", "mStatus: " + mStatus);
             if (mStatus != STATUS_WAITING) return false;
 
             mRequest = new DownloadRequest(mStoreFilePath, mUrl);
+            synchronized (this) {
+                mRequest.setBlockBitmap(mBlockBitmap);
+            }
+            mRequest.setCache(mCache);
+            mRequest.setExpectedChecksum(mOptions.getExpectedChecksum());
+            mRequest.setBlockManifest(mOptions.getBlockManifest());
+            mRequest.setDeltaSource(mOptions.getDeltaSource());
+            mRequest.setAcceptCompressed(mOptions.isAcceptCompressed());
+            mRequest.setReplaceExisting(mOptions.isReplaceExisting());
+            mRequest.setDurabilityPolicy(mDurabilityPolicy);
+            if (mOptions.getExtractDirectory() != null) {
+                mRequest.setArchiveExtractor(new ArchiveExtractor(mOptions.getExtractDirectory(),
+                        mOptions.resolveArchiveFormat(mStoreFilePath, mUrl)));
+            }
+            mRequest.setDigestCheckpoint(mDigestCheckpoint);
+            if (mFuture != null) mRequest.setObserver(mStoreFilePath, mFuture.getObserver());
+            for (DownloadController follower : mFollowers) {
+                mRequest.addStoreFile(follower.mStoreFilePath);
+                if (follower.mFuture != null) mRequest.setObserver(follower.mStoreFilePath, follower.mFuture.getObserver());
+            }
 
             // we create a Listener to wrapping that Listener which developer specified,
             // for the onFinish(), onSuccess(), onError()
             mRequest.setListener(new DownloadRequest.Listener() {
 
                 public void finish(String tag) {
-                    Log.d("LIF", "finish");
                     // when request was FINISH, remove the task and re-schedule Task Queue.
                     mRequest.finish(tag);
+                    // the followers which got the file or failed are finish too.
+                    synchronized (mTaskQueue) {
+                        for (DownloadController follower : mFollowers) {
+                            follower.mLeader = null;
+                            mTaskQueue.remove(follower);
+                            if (mTaskStore != null) mTaskStore.remove(follower.mRecordId);
+                        }
+                        mFollowers.clear();
+                    }
                     remove(DownloadController.this);
                 }
 
                 @Override
                 public void onPreExecute() {
-                    Log.d("LIF", "onPreExecute");
                     mListener.onStart();
+                    for (DownloadController follower : mFollowers) {
+                        follower.mListener.onStart();
+                    }
                     Log.d(TAG, this + ": onPreExecute");
                 }
 
@@ -183,48 +755,337 @@ public class FileDownloader {
                 public void onSuccess() {
                     mStatus = STATUS_SUCCESS;
                     mListener.onFinish();
+                    onGroupFinished(true);
+
+                    List<DownloadController> undelivered = new ArrayList<DownloadController>();
+                    for (DownloadController follower : mFollowers) {
+                        if (mRequest.isDelivered(follower.mStoreFilePath)) {
+                            follower.mStatus = STATUS_SUCCESS;
+                            follower.mListener.onFinish();
+                            follower.onGroupFinished(true);
+                        } else {
+                            // attached too late or copy failed, let it download by itself.
+                            undelivered.add(follower);
+                        }
+                    }
+                    synchronized (mTaskQueue) {
+                        if (mTransfers.get(mUrl) == DownloadController.this) mTransfers.remove(mUrl);
+                        for (DownloadController follower : undelivered) {
+                            follower.detach();
+                            follower.mStatus = STATUS_WAITING;
+                            follower.mWaitingSince = SystemClock.uptimeMillis();
+                            attachOrLead(follower);
+                        }
+                    }
                 }
 
                 @Override
                 public void onError(NetworkException error) {
-                    Log.d("LIF", "onError");
                     if (!(error instanceof NetworkException.NetworkCancel)) {
                         mStatus = STATUS_DISCARD;
-                        mListener.onError(error.getMessage());
+                        mListener.onError(error);
+                        onGroupFinished(false);
+                        for (DownloadController follower : mFollowers) {
+                            follower.mStatus = STATUS_DISCARD;
+                            follower.mListener.onError(error);
+                            follower.onGroupFinished(false);
+                        }
                     }
                 }
 
                 @Override
                 public void onProgressChange(long fileSize, long downloadedSize) {
+                    if (fileSize > 0) mFileSize = fileSize;
+                    mDownloadedSize = downloadedSize;
+                    if (!updateSpace()) return;
+                    if (mTaskStore != null) mTaskStore.checkpoint(mRecordId, mFileSize, mDownloadedSize, false);
                     mListener.onProgressChange(fileSize, downloadedSize);
+                    onGroupProgress(fileSize, downloadedSize);
+                    for (DownloadController follower : mFollowers) {
+                        follower.mListener.onProgressChange(fileSize, downloadedSize);
+                        follower.onGroupProgress(fileSize, downloadedSize);
+                    }
+                }
+
+                @Override
+                public void onProgressChange(long fileSize, long downloadedSize, long decodedSize) {
+                    // the sizes are compressed, we can't use them to estimate the remaining bytes.
+                    mListener.onProgressChange(fileSize, downloadedSize, decodedSize);
+                    onGroupProgress(fileSize, downloadedSize);
+                    for (DownloadController follower : mFollowers) {
+                        follower.mListener.onProgressChange(fileSize, downloadedSize, decodedSize);
+                        follower.onGroupProgress(fileSize, downloadedSize);
+                    }
                 }
             });
 
             mStatus = STATUS_DOWNLOADING;
+            for (DownloadController follower : mFollowers) {
+                follower.mStatus = STATUS_DOWNLOADING;
+            }
+            if (mTaskStore != null) {
+                mTaskStore.updateStatus(mRecordId, STATUS_DOWNLOADING);
+                for (DownloadController follower : mFollowers) {
+                    mTaskStore.updateStatus(follower.mRecordId, STATUS_DOWNLOADING);
+                }
+            }
             mRequestQueue.add(mRequest);
             return true;
         }
 
+        /**
+         * Attach the follower to this controller's transfer, the follower will receive the
+         * same callbacks and get a copy of the file when download success.
+         */
+        private void attach(DownloadController follower) {
+            follower.mLeader = this;
+            follower.mStatus = mStatus;
+            mFollowers.add(follower);
+            if (mStatus == STATUS_DOWNLOADING) {
+                mRequest.addStoreFile(follower.mStoreFilePath);
+                if (follower.mFuture != null) mRequest.setObserver(follower.mStoreFilePath, follower.mFuture.getObserver());
+            }
+        }
+
+        /**
+         * Detach this controller from the transfer it attached to.
+         */
+        private void detach() {
+            if (mLeader == null) return;
+            mLeader.mFollowers.remove(this);
+            if (mLeader.mRequest != null) {
+                mLeader.mRequest.removeStoreFile(mStoreFilePath);
+                mLeader.mRequest.removeObserver(mStoreFilePath);
+            }
+            mLeader = null;
+        }
+
+        /**
+         * This controller no longer owns the transfer, hand it over to the first follower,
+         * the other followers attach to that new leader.
+         */
+        private void handOver() {
+            if (mTransfers.get(mUrl) == this) mTransfers.remove(mUrl);
+            if (mFollowers.isEmpty()) return;
+
+            DownloadController leader = mFollowers.remove(0);
+            leader.mLeader = null;
+            leader.mStatus = STATUS_WAITING;
+            leader.mWaitingSince = SystemClock.uptimeMillis();
+            mTransfers.put(mUrl, leader);
+            for (DownloadController follower : mFollowers) {
+                leader.attach(follower);
+            }
+            mFollowers.clear();
+        }
+
+        /**
+         * The bytes this transfer still writes to the disk, including the copies of the followers,
+         * -1 if the size is unknown.
+         */
+        private long spaceNeeded() {
+            if (mFileSize < 0) return -1;
+            long temporaryLength = new File(mStoreFilePath + ".tmp").length();
+            return Math.max(0, mFileSize - temporaryLength) + mFileSize * mFollowers.size();
+        }
+
+        private File getDirectory() {
+            File parent = new File(mStoreFilePath).getAbsoluteFile().getParentFile();
+            return parent != null ? parent : new File("/");
+        }
+
+        /**
+         * Reserve the space before deploy, the task of unknown size is reserved when the progress tells.
+         *
+         * @return false if the space is short.
+         */
+        private boolean reserveSpace() {
+            long needed = spaceNeeded();
+            return needed < 0 || mDiskSpaceLedger.reserve(this, getDirectory(), needed);
+        }
+
+        private NetworkException insufficientSpaceError() {
+            return new NetworkException.InsufficientSpaceError(spaceNeeded(),
+                    Math.max(0, mDiskSpaceLedger.getAvailableBytes(getDirectory())));
+        }
+
+        /**
+         * Shrink the reservation by the progress, or reserve when we first learn the size.
+         *
+         * @return false if the space is short, the task was deferred or failed.
+         */
+        private boolean updateSpace() {
+            if (mStatus != STATUS_DOWNLOADING || mFileSize < 0) return true;
+            if (mDiskSpaceLedger.isReserved(this)) {
+                mDiskSpaceLedger.update(this, (mFileSize - mDownloadedSize) + mFileSize * mFollowers.size());
+                return true;
+            }
+            if (mDiskSpaceLedger.reserve(this, getDirectory(),
+                    Math.max(0, mFileSize - mDownloadedSize) + mFileSize * mFollowers.size())) {
+                return true;
+            }
+            if (mDiskSpaceLedger.hasReservations()) {
+                // wait for the others to free the space, the schedule won't deploy it till then.
+                defer();
+            } else {
+                fail(insufficientSpaceError());
+            }
+            return false;
+        }
+
+        /**
+         * Stop the transfer and wait again, e.g. till the others free the space. Unlike a pause the user
+         * asked for, the followers stay attached, the waiting time keeps its aging, and the store isn't
+         * told, the task is still going from the user's view.
+         */
+        private void defer() {
+            mRequest.cancel();
+            mStatus = STATUS_WAITING;
+            for (DownloadController follower : mFollowers) {
+                follower.mStatus = STATUS_WAITING;
+            }
+            schedule();
+        }
+
+        /**
+         * Fail this task and the followers without the request, e.g. the disk can't hold it.
+         */
+        private void fail(NetworkException error) {
+            synchronized (mTaskQueue) {
+                if (mStatus == STATUS_DOWNLOADING) mRequest.cancel();
+                for (DownloadController follower : mFollowers) {
+                    follower.mLeader = null;
+                    mTaskQueue.remove(follower);
+                    if (mTaskStore != null) mTaskStore.remove(follower.mRecordId);
+                }
+            }
+            mStatus = STATUS_DISCARD;
+            mListener.onError(error);
+            onGroupFinished(false);
+            for (DownloadController follower : mFollowers) {
+                follower.mStatus = STATUS_DISCARD;
+                follower.mListener.onError(error);
+                follower.onGroupFinished(false);
+            }
+            mFollowers.clear();
+            remove(this);
+        }
+
+        private void onGroupProgress(long fileSize, long downloadedSize) {
+            if (mGroupMember != null) mGroupMember.onProgress(fileSize, downloadedSize);
+        }
+
+        private void onGroupFinished(boolean success) {
+            if (mGroupMember != null) mGroupMember.onFinished(success);
+        }
+
         public int getStatus() {
             return mStatus;
         }
 
+        /**
+         * Replace the listener, e.g. bind the UI to a task restored from the {@link TaskStore}.
+         */
+        public void setListener(Listener listener) {
+            throwIfNotOnMainThread();
+            mListener = listener != null ? listener : new Listener() {};
+        }
+
+        public String getStoreFilePath() {
+            return mStoreFilePath;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
         public boolean isDownloading() {
             return mStatus == STATUS_DOWNLOADING;
         }
 
+        @Override
+        public long getRemainingSize() {
+            if (mFileSize < 0) return -1;
+            return Math.max(0, mFileSize - mDownloadedSize);
+        }
+
+        @Override
+        public long getFileSize() {
+            return mFileSize;
+        }
+
+        @Override
+        public long getWaitingSince() {
+            return mWaitingSince;
+        }
+
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Change the priority, the higher one deploys first, it only affects the task still waiting.
+         */
+        public void setPriority(int priority) {
+            throwIfNotOnMainThread();
+            if (mPriority == priority) return;
+            mPriority = priority;
+            if (mTaskStore != null) mTaskStore.updatePriority(mRecordId, priority);
+            if (mStatus == STATUS_WAITING) schedule();
+        }
+
+        /**
+         * Open a stream to read the file while it is downloading, reading a position not downloaded yet
+         * blocks until it arrives, the position will be fetched first by a Range request if the
+         * sequential download won't reach it soon. Works in any status, even the task is waiting or paused.
+         * Can be called on any thread, but don't read on the main thread.
+         */
+        public ProgressiveInputStream openInputStream() {
+            // the follower's file is copied at the end, read the file being downloaded.
+            DownloadController leader = mLeader;
+            if (leader != null) return leader.openInputStream();
+
+            File temporaryFile = new File(mStoreFilePath + ".tmp");
+            File storeFile = new File(mStoreFilePath);
+            BlockBitmap bitmap;
+            synchronized (this) {
+                if (mBlockBitmap == null) {
+                    mBlockBitmap = BlockBitmap.open(temporaryFile, storeFile);
+                    if (mRequest != null) mRequest.setBlockBitmap(mBlockBitmap);
+                }
+                bitmap = mBlockBitmap;
+            }
+            return new ProgressiveInputStream(bitmap, temporaryFile, storeFile, mUrl);
+        }
+
         /**
          * Pause this task when it status was DOWNLOADING, in fact, we just marked the request should be cancel,
          * http request cannot stop immediately, we assume it will finish soon, thus we set the status as PAUSE,
          * let Task Queue deploy a new Request, that will cause parallel tasks growing beyond maximum task count,
          * but it doesn't matter, we believe that situation never longer.
+         * A WAITING task can be paused as well, it won't be deployed till resume.
          *
          * @return true if did the pause operation.
          */
         public boolean pause() {
-            if (mStatus == STATUS_DOWNLOADING) {
+            if (mStatus == STATUS_DOWNLOADING || mStatus == STATUS_WAITING) {
+                boolean isDownloading = mStatus == STATUS_DOWNLOADING;
                 mStatus = STATUS_PAUSE;
-                mRequest.cancel();
+                mDiskSpaceLedger.release(this);
+                synchronized (mTaskQueue) {
+                    if (mLeader != null) {
+                        // the transfer keeps going for the others.
+                        detach();
+                    } else {
+                        if (isDownloading) mRequest.cancel();
+                        handOver();
+                    }
+                }
+                if (mTaskStore != null) {
+                    mTaskStore.updateStatus(mRecordId, STATUS_PAUSE);
+                    mTaskStore.checkpoint(mRecordId, mFileSize, mDownloadedSize, true);
+                }
                 schedule();
                 return true;
             }
@@ -241,6 +1102,11 @@ public class FileDownloader {
         public boolean resume() {
             if (mStatus == STATUS_PAUSE) {
                 mStatus = STATUS_WAITING;
+                mWaitingSince = SystemClock.uptimeMillis();
+                synchronized (mTaskQueue) {
+                    attachOrLead(this);
+                }
+                if (mTaskStore != null) mTaskStore.updateStatus(mRecordId, STATUS_WAITING);
                 schedule();
                 return true;
             }
@@ -257,8 +1123,18 @@ public class FileDownloader {
         public boolean discard() {
             if (mStatus == STATUS_DISCARD) return false;
             if (mStatus == STATUS_SUCCESS) return false;
-            if (mStatus == STATUS_DOWNLOADING) mRequest.cancel();
+            synchronized (mTaskQueue) {
+                if (mLeader != null) {
+                    detach();
+                } else {
+                    if (mStatus == STATUS_DOWNLOADING) mRequest.cancel();
+                    handOver();
+                }
+            }
             mStatus = STATUS_DISCARD;
+            onGroupFinished(false);
+            // the listener never hears a discard, the future must.
+            if (mFuture != null) mFuture.cancel(false);
             remove(this);
             return true;
         }
@@ -271,6 +1147,26 @@ public class FileDownloader {
 
         public void onError(String msg) {}
 
+        /**
+         * Inform when the task failed, by default, it calls {@link #onError(String)} with the message,
+         * override it to tell the errors apart, e.g. {@link NetworkException.InsufficientSpaceError}.
+         */
+        public void onError(NetworkException error) {
+            onError(error.getMessage());
+        }
+
         public void onProgressChange(long fileSize, long downloadedSize) {}
+
+        /**
+         * Inform when the progress of a compressed download change, by default,
+         * it calls {@link #onProgressChange(long, long)} with the compressed sizes.
+         *
+         * @param fileSize       The compressed Content-Length.
+         * @param downloadedSize The compressed bytes received.
+         * @param decodedSize    The decoded bytes written to the file.
+         */
+        public void onProgressChange(long fileSize, long downloadedSize, long decodedSize) {
+            onProgressChange(fileSize, downloadedSize);
+        }
     }
 }
\ No newline at end of file
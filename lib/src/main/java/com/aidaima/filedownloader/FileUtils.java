@@ -0,0 +1,88 @@
+package com.aidaima.filedownloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class FileUtils {
+
+    /**
+     * Copy the source file to destination, the content is written to "destination.tmp"
+     * first then rename, so the destination never be a partial file.
+     *
+     * @param source      The file to copy from.
+     * @param destination The file to copy to, will be replaced if exists.
+     */
+    public static void copyFile(File source, File destination) throws IOException {
+        File temporaryFile = new File(destination.getPath() + ".tmp");
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temporaryFile);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            long position = 0;
+            long size = inChannel.size();
+            // transferTo may transfer less than requested, loop until all done.
+            while (position < size) {
+                position += inChannel.transferTo(position, size - position, outChannel);
+            }
+        } finally {
+            in.close();
+            if (out != null) out.close();
+        }
+
+        if (!temporaryFile.renameTo(destination)) {
+            temporaryFile.delete();
+            throw new IOException("Can't rename " + temporaryFile + " to " + destination);
+        }
+    }
+
+    /**
+     * Compute the digest of the whole file.
+     *
+     * @param file      The file to digest.
+     * @param algorithm The digest algorithm, such as "SHA-256" or "MD5".
+     * @return the digest bytes.
+     */
+    public static byte[] digest(File file, String algorithm) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported digest algorithm " + algorithm, e);
+        }
+
+        InputStream in = new FileInputStream(file);
+        byte[] buffer = null;
+        try {
+            buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            MemoryBudget.get().release(buffer);
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the lowercase hex string of the bytes.
+     */
+    public static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,148 @@
+package com.aidaima.filedownloader;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link DownloadMetrics} keeps the histograms of the request phases and the last queue gauges,
+ * {@link #writeTo(Writer)} writes them in the plain text exposition format, one sample per line:
+ * <pre>
+ * # TYPE filedownloader_connect_ms histogram
+ * filedownloader_connect_ms_bucket{le="50"} 12
+ * filedownloader_connect_ms_bucket{le="+Inf"} 15
+ * filedownloader_connect_ms_sum 1032
+ * filedownloader_connect_ms_count 15
+ * # TYPE filedownloader_waiting_tasks gauge
+ * filedownloader_waiting_tasks 3
+ * </pre>
+ * It can be shared by threads.
+ */
+public class HistogramExporter extends DownloadMetrics {
+    private static final String PREFIX = "filedownloader_";
+
+    private static final long[] TIME_BUCKETS_MS = {
+            5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000};
+
+    private static final long[] SIZE_BUCKETS_BYTES = {
+            1024, 16 * 1024, 128 * 1024, 1024 * 1024, 8 * 1024 * 1024, 64 * 1024 * 1024, 512 * 1024 * 1024};
+
+    private static final long[] RETRY_BUCKETS = {0, 1, 2, 3, 5, 10};
+
+    private final Map<String, Histogram> mHistograms = new LinkedHashMap<String, Histogram>();
+
+    private final Map<String, Long> mGauges = new LinkedHashMap<String, Long>();
+
+    private long mSucceededCount;
+
+    private long mFailedCount;
+
+    public HistogramExporter() {
+        mHistograms.put("queue_wait_ms", new Histogram(TIME_BUCKETS_MS));
+        mHistograms.put("dns_ms", new Histogram(TIME_BUCKETS_MS));
+        mHistograms.put("connect_ms", new Histogram(TIME_BUCKETS_MS));
+        mHistograms.put("tls_ms", new Histogram(TIME_BUCKETS_MS));
+        mHistograms.put("first_byte_ms", new Histogram(TIME_BUCKETS_MS));
+        mHistograms.put("transfer_ms", new Histogram(TIME_BUCKETS_MS));
+        mHistograms.put("stall_ms", new Histogram(TIME_BUCKETS_MS));
+        mHistograms.put("sync_ms", new Histogram(TIME_BUCKETS_MS));
+        mHistograms.put("bytes", new Histogram(SIZE_BUCKETS_BYTES));
+        mHistograms.put("retries", new Histogram(RETRY_BUCKETS));
+    }
+
+    @Override
+    public synchronized void onRequestComplete(RequestMetrics metrics) {
+        if (metrics.success) mSucceededCount++;
+        else mFailedCount++;
+        mHistograms.get("queue_wait_ms").observe(metrics.queueWaitMs);
+        mHistograms.get("dns_ms").observe(metrics.dnsMs);
+        mHistograms.get("connect_ms").observe(metrics.connectMs);
+        mHistograms.get("tls_ms").observe(metrics.tlsMs);
+        mHistograms.get("first_byte_ms").observe(metrics.firstByteMs);
+        mHistograms.get("transfer_ms").observe(metrics.transferMs);
+        mHistograms.get("stall_ms").observe(metrics.stallMs);
+        mHistograms.get("sync_ms").observe(metrics.syncMs);
+        mHistograms.get("bytes").observe(metrics.bytes);
+        mHistograms.get("retries").observe(metrics.retries);
+    }
+
+    @Override
+    public synchronized void onQueueGauges(int threadCount, int busyThreadCount, int waitingTaskCount, int activeTransfers) {
+        mGauges.put("dispatcher_threads", (long) threadCount);
+        mGauges.put("dispatcher_busy_threads", (long) busyThreadCount);
+        mGauges.put("waiting_tasks", (long) waitingTaskCount);
+        mGauges.put("active_transfers", (long) activeTransfers);
+    }
+
+    /**
+     * Write all samples, the writer won't be flushed or closed.
+     */
+    public synchronized void writeTo(Writer writer) throws IOException {
+        writer.write("# TYPE " + PREFIX + "requests_total counter\n");
+        writer.write(PREFIX + "requests_total{result=\"success\"} " + mSucceededCount + "\n");
+        writer.write(PREFIX + "requests_total{result=\"failure\"} " + mFailedCount + "\n");
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            entry.getValue().writeTo(writer, PREFIX + entry.getKey());
+        }
+        for (Map.Entry<String, Long> entry : mGauges.entrySet()) {
+            writer.write("# TYPE " + PREFIX + entry.getKey() + " gauge\n");
+            writer.write(PREFIX + entry.getKey() + " " + entry.getValue() + "\n");
+        }
+    }
+
+    /**
+     * Forget all samples.
+     */
+    public synchronized void reset() {
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+        mGauges.clear();
+        mSucceededCount = 0;
+        mFailedCount = 0;
+    }
+
+    /**
+     * The counts of the values no greater than each bound, the last count is of all values.
+     */
+    private static class Histogram {
+        private final long[] mBounds;
+        private final long[] mCounts;
+        private long mSum;
+        private long mCount;
+
+        Histogram(long[] bounds) {
+            mBounds = bounds;
+            mCounts = new long[bounds.length + 1];
+        }
+
+        void observe(long value) {
+            // the phase not measured.
+            if (value < 0) return;
+            int index = 0;
+            while (index < mBounds.length && value > mBounds[index]) index++;
+            mCounts[index]++;
+            mSum += value;
+            mCount++;
+        }
+
+        void writeTo(Writer writer, String name) throws IOException {
+            writer.write("# TYPE " + name + " histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < mBounds.length; i++) {
+                cumulative += mCounts[i];
+                writer.write(name + "_bucket{le=\"" + mBounds[i] + "\"} " + cumulative + "\n");
+            }
+            writer.write(name + "_bucket{le=\"+Inf\"} " + mCount + "\n");
+            writer.write(name + "_sum " + mSum + "\n");
+            writer.write(name + "_count " + mCount + "\n");
+        }
+
+        void reset() {
+            for (int i = 0; i < mCounts.length; i++) mCounts[i] = 0;
+            mSum = 0;
+            mCount = 0;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.aidaima.filedownloader;
+
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Performs the GET of a {@link DownloadRequest}, replaces the built-in {@link java.net.HttpURLConnection}
+ * transport when set by {@link RequestQueue#setHttpStack(HttpStack)}, e.g. the {@link TraceReplayer}.
+ * The range fetches of the delta build and the {@link ProgressiveInputStream} always go to the network.
+ */
+public interface HttpStack {
+    /**
+     * Perform the request, called on the dispatcher thread.
+     *
+     * @param request The request to perform.
+     * @param headers The request headers, such as Range and the conditional ones.
+     * @return the response, its entity content is read by the request then consumed.
+     */
+    HttpResponse performRequest(DownloadRequest request, Map<String, String> headers) throws IOException;
+}
@@ -11,6 +11,8 @@ import org.apache.http.protocol.HTTP;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -20,20 +22,15 @@ import java.util.zip.GZIPInputStream;
 
 public class HttpUtils {
     private final static String TAG = HttpUtils.class.getSimpleName();
-    private static int DEFAULT_POOL_SIZE = 4096;
-
-    {
-        ByteArrayPool.init(DEFAULT_POOL_SIZE);
-    }
-
     /**
      * Reads the contents of HttpEntity into a byte[].
      */
     public static byte[] responseToBytes(HttpResponse response) throws IOException, NetworkException.ServerError {
         HttpEntity entity = response.getEntity();
+        // take the buffer before the content holds any memory, so we never wait while holding it.
+        byte[] buffer = MemoryBudget.get().acquire(1024);
         PoolingByteArrayOutputStream bytes =
-                new PoolingByteArrayOutputStream(ByteArrayPool.get(), (int) entity.getContentLength());
-        byte[] buffer = null;
+                new PoolingByteArrayOutputStream((int) entity.getContentLength());
         try {
             InputStream in = entity.getContent();
             if (isGzipContent(response) && !(in instanceof GZIPInputStream)) {
@@ -44,7 +41,6 @@ public class HttpUtils {
                 throw new NetworkException.ServerError();
             }
 
-            buffer = ByteArrayPool.get().getBuf(1024);
             int count;
             while ((count = in.read(buffer)) != -1) {
                 bytes.write(buffer, 0, count);
@@ -59,7 +55,7 @@ public class HttpUtils {
                 // an invalid state.
                 Log.v(TAG, "Error occured when calling consumingContent");
             }
-            ByteArrayPool.get().returnBuf(buffer);
+            MemoryBudget.get().release(buffer);
             bytes.close();
         }
     }
@@ -86,6 +82,19 @@ public class HttpUtils {
         return null;
     }
 
+    /**
+     * Close the InputStream and release the resources by "consuming the content", ignore any failure.
+     */
+    public static void consumeQuietly(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) return;
+        try {
+            entity.consumeContent();
+        } catch (Exception e) {
+            Log.v(TAG, "Error occured when calling consumingContent");
+        }
+    }
+
     public static String getHeader(HttpResponse response, String key) {
         Header header = response.getFirstHeader(key);
         return header == null ? null : header.getValue();
@@ -103,6 +112,66 @@ public class HttpUtils {
         return TextUtils.equals(getHeader(response, "Content-Encoding"), "gzip");
     }
 
+    public static boolean isDeflateContent(HttpResponse response) {
+        return TextUtils.equals(getHeader(response, "Content-Encoding"), "deflate");
+    }
+
+    /**
+     * Learn the whole size of the remote file without downloading its content, we try the HEAD
+     * method first, if server-side doesn't present the Content-Length, try "Range: bytes=0-0"
+     * then pick the total length from the Content-Range header.
+     *
+     * @param url       The url to probe.
+     * @param timeoutMs The connect and read timeout.
+     * @return the file size, or -1 if we can't find out.
+     */
+    public static long probeContentLength(String url, int timeoutMs) throws IOException {
+        HttpURLConnection connection = openProbeConnection(url, timeoutMs, "HEAD");
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode >= 200 && responseCode <= 299) {
+                long contentLength = parseLong(connection.getHeaderField("Content-Length"));
+                if (contentLength > 0) return contentLength;
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        connection = openProbeConnection(url, timeoutMs, "GET");
+        connection.setRequestProperty("Range", "bytes=0-0");
+        try {
+            if (connection.getResponseCode() == 206) {
+                // the Content-Range will be "bytes 0-0/[actual length]".
+                String contentRange = connection.getHeaderField("Content-Range");
+                int slashIndex = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+                if (slashIndex != -1) return parseLong(contentRange.substring(slashIndex + 1));
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return -1;
+    }
+
+    private static HttpURLConnection openProbeConnection(String url, int timeoutMs, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(timeoutMs);
+        connection.setReadTimeout(timeoutMs);
+        connection.setUseCaches(false);
+        connection.setRequestMethod(method);
+        // Suppress the gzip encoding, otherwise the Content-Length will be the compressed size.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    private static long parseLong(String value) {
+        if (TextUtils.isEmpty(value)) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * ByteArrayPool is a source and repository of <code>byte[]</code> objects. Its purpose is to
      * supply those buffers to consumers who need to use them for a short period of time and then
@@ -132,7 +201,7 @@ public class HttpUtils {
      * certain byte limit. When a buffer is returned that would cause the pool to exceed the limit,
      * least-recently-used buffers are disposed.
      */
-    private static class ByteArrayPool {
+    static class ByteArrayPool {
         /**
          * Compares buffers by size
          */
@@ -142,10 +211,12 @@ public class HttpUtils {
                 return lhs.length - rhs.length;
             }
         };
+        // keeps a few of the I/O buffers of the MemoryBudget for reuse.
+        private static final int DEFAULT_POOL_SIZE = 64 * 1024;
         /**
-         * Singleton for this class.
+         * Singleton for this class, created with the class, so it's ready whoever touches it first.
          */
-        private static ByteArrayPool mPool;
+        private static volatile ByteArrayPool mPool = new ByteArrayPool(DEFAULT_POOL_SIZE);
         /**
          * The maximum aggregate size of the buffers in the pool. Old buffers are discarded to stay
          * under this limit.
@@ -238,23 +309,22 @@ public class HttpUtils {
 
     /**
      * A variation of {@link ByteArrayOutputStream} that uses a pool of byte[] buffers instead
-     * of always allocating them fresh, saving on heap churn.
+     * of always allocating them fresh, saving on heap churn. The buffers are charged to the
+     * {@link MemoryBudget} without waiting.
      */
-    private static class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
+    static class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
         /**
-         * If the {@link #PoolingByteArrayOutputStream(ByteArrayPool)} constructor is called, this is
+         * If the {@link #PoolingByteArrayOutputStream()} constructor is called, this is
          * the default size to which the underlying byte array is initialized.
          */
         private static final int DEFAULT_SIZE = 256;
 
-        private final ByteArrayPool mPool;
-
         /**
          * Constructs a new PoolingByteArrayOutputStream with a default size. If more bytes are written
          * to this instance, the underlying byte array will expand.
          */
-        public PoolingByteArrayOutputStream(ByteArrayPool pool) {
-            this(pool, DEFAULT_SIZE);
+        public PoolingByteArrayOutputStream() {
+            this(DEFAULT_SIZE);
         }
 
         /**
@@ -265,21 +335,27 @@ public class HttpUtils {
          * @param size initial size for the underlying byte array. The value will be pinned to a default
          *             minimum size.
          */
-        public PoolingByteArrayOutputStream(ByteArrayPool pool, int size) {
-            mPool = pool;
-            buf = mPool.getBuf(Math.max(size, DEFAULT_SIZE));
+        public PoolingByteArrayOutputStream(int size) {
+            buf = MemoryBudget.get().acquireNoWait(Math.max(size, DEFAULT_SIZE));
         }
 
         @Override
         public void close() throws IOException {
-            mPool.returnBuf(buf);
+            MemoryBudget.get().releaseNoWait(buf);
             buf = null;
             super.close();
         }
 
+        /**
+         * Returns the underlying buffer, only the first {@link #size()} bytes are valid.
+         */
+        byte[] getBuffer() {
+            return buf;
+        }
+
         @Override
         public void finalize() {
-            mPool.returnBuf(buf);
+            MemoryBudget.get().releaseNoWait(buf);
         }
 
         /**
@@ -290,9 +366,9 @@ public class HttpUtils {
             if (count + i <= buf.length) {
                 return;
             }
-            byte[] newbuf = mPool.getBuf((count + i) * 2);
+            byte[] newbuf = MemoryBudget.get().acquireNoWait((count + i) * 2);
             System.arraycopy(buf, 0, newbuf, 0, count);
-            mPool.returnBuf(buf);
+            MemoryBudget.get().releaseNoWait(buf);
             buf = newbuf;
         }
 
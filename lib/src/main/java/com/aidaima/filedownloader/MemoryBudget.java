@@ -0,0 +1,216 @@
+package com.aidaima.filedownloader;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Accounts every buffer the engine allocates against one total, so a large batch can't flood the
+ * heap. The I/O loops take their buffers by {@link #acquire(int)}, which waits while the budget is
+ * used up, the downloads slow down instead of triggering GC storms. The buffers are recycled by
+ * the shared {@link HttpUtils.ByteArrayPool}.
+ * <p/>
+ * A thread already holding a buffer never waits for the next one, e.g. the extractor under a
+ * download loop, it may go over the limit for a while but can't deadlock with the others.
+ * The in-memory content of {@link DownloadSink.ByteArraySink} is charged by {@link #acquireNoWait(int)},
+ * it's counted apart from the loop buffers and never makes a reader wait, the app decides when to
+ * release it, a content larger than the limit or never released must not stall every download.
+ * <p/>
+ * A reader waits in slices, the request it reads for is checked between them, a canceled or paused
+ * request gives up the wait by an {@link InterruptedIOException}.
+ */
+public class MemoryBudget {
+    /**
+     * The default limit, enough for dozens of downloads on a low-RAM device.
+     */
+    public static final long DEFAULT_LIMIT = 4 * 1024 * 1024;
+
+    /**
+     * The size of the buffers of the I/O loops.
+     */
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The longest a reader waits before it checks its request again.
+     */
+    private static final long WAIT_SLICE_MS = 500;
+
+    private static final MemoryBudget sInstance = new MemoryBudget(DEFAULT_LIMIT);
+
+    private long mLimit;
+
+    // The loop buffers, the readers wait on them only.
+    private long mUsedBytes;
+
+    // The in-memory content charged without waiting.
+    private long mNoWaitBytes;
+
+    private long mPeakBytes;
+
+    private int mWaitingCount;
+
+    /**
+     * The bytes acquired by the waiting way and not released yet, per thread.
+     */
+    private final ThreadLocal<long[]> mHeldBytes = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    MemoryBudget(long limit) {
+        setLimit(limit);
+    }
+
+    /**
+     * Get the budget shared by all downloaders.
+     */
+    public static MemoryBudget get() {
+        return sInstance;
+    }
+
+    /**
+     * Change the limit, the waiting readers are re-checked at once.
+     */
+    public synchronized void setLimit(long limit) {
+        if (limit <= 0) throw new IllegalArgumentException("limit[" + limit + "] must be positive.");
+        mLimit = limit;
+        notifyAll();
+    }
+
+    public synchronized long getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Returns the bytes of the buffers in use, the in-memory content included.
+     */
+    public synchronized long getUsedBytes() {
+        return mUsedBytes + mNoWaitBytes;
+    }
+
+    /**
+     * Returns the bytes of the in-memory content, charged by {@link #acquireNoWait(int)}.
+     */
+    public synchronized long getNoWaitBytes() {
+        return mNoWaitBytes;
+    }
+
+    /**
+     * Returns the most bytes ever in use.
+     */
+    public synchronized long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    /**
+     * Returns the count of readers waiting for the budget.
+     */
+    public synchronized int getWaitingCount() {
+        return mWaitingCount;
+    }
+
+    /**
+     * Take a buffer of at least the size, wait till the budget allows, the buffer must be released
+     * by the same thread. A buffer larger than the limit is given when nothing else is in use.
+     *
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    public byte[] acquire(int size) throws InterruptedIOException {
+        return acquire(size, null);
+    }
+
+    /**
+     * Like {@link #acquire(int)}, gives up the wait once the request was canceled.
+     *
+     * @param request The request the buffer reads for, null if none.
+     * @throws InterruptedIOException if interrupted or the request was canceled while waiting.
+     */
+    byte[] acquire(int size, DownloadRequest request) throws InterruptedIOException {
+        long[] held = mHeldBytes.get();
+        if (held[0] == 0) {
+            synchronized (this) {
+                mWaitingCount++;
+                try {
+                    while (mUsedBytes > 0 && mUsedBytes + size > mLimit) {
+                        if (request != null && request.isCanceled()) {
+                            throw new InterruptedIOException("Request canceled while waiting for the memory budget.");
+                        }
+                        wait(WAIT_SLICE_MS);
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for the memory budget.");
+                } finally {
+                    mWaitingCount--;
+                }
+                // reserve before leaving the lock, so the others see it.
+                charge(size);
+            }
+        } else {
+            synchronized (this) {
+                charge(size);
+            }
+        }
+
+        byte[] buffer = HttpUtils.ByteArrayPool.get().getBuf(size);
+        synchronized (this) {
+            // the pool may give a larger one.
+            charge(buffer.length - size);
+        }
+        held[0] += buffer.length;
+        return buffer;
+    }
+
+    /**
+     * Take a buffer of at least the size without waiting, release it by {@link #releaseNoWait(byte[])}.
+     */
+    public byte[] acquireNoWait(int size) {
+        byte[] buffer = HttpUtils.ByteArrayPool.get().getBuf(size);
+        synchronized (this) {
+            mNoWaitBytes += buffer.length;
+            updatePeak();
+        }
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer taken by {@link #acquire(int)}, the null is ignored.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) return;
+        long[] held = mHeldBytes.get();
+        held[0] = Math.max(0, held[0] - buffer.length);
+        synchronized (this) {
+            mUsedBytes -= buffer.length;
+            notifyAll();
+        }
+        HttpUtils.ByteArrayPool.get().returnBuf(buffer);
+    }
+
+    /**
+     * Give back a buffer taken by {@link #acquireNoWait(int)}, the null is ignored.
+     */
+    public void releaseNoWait(byte[] buffer) {
+        if (buffer == null) return;
+        synchronized (this) {
+            mNoWaitBytes -= buffer.length;
+        }
+        HttpUtils.ByteArrayPool.get().returnBuf(buffer);
+    }
+
+    /**
+     * A request was canceled, its reader waiting for the budget checks it at once.
+     */
+    synchronized void onCanceled() {
+        if (mWaitingCount > 0) notifyAll();
+    }
+
+    private void charge(long bytes) {
+        mUsedBytes += bytes;
+        updatePeak();
+    }
+
+    private void updatePeak() {
+        long used = mUsedBytes + mNoWaitBytes;
+        if (used > mPeakBytes) mPeakBytes = used;
+    }
+}
@@ -0,0 +1,218 @@
+package com.aidaima.filedownloader;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps local files in sync with a {@link DownloadManifest}, only the new or changed files are downloaded.
+ * <p/>
+ * A file is unchanged if its size and checksum match the manifest entry. The checksums of local files
+ * are kept in a stat index, a file whose length and modified time didn't change since it was hashed
+ * won't be hashed again. Each changed file is downloaded to its temporary file then renamed over the
+ * old one, so the old version stays usable till the new one is complete and verified.
+ * <p/>
+ * Usage: call {@link #diff(DownloadManifest)} on a worker thread, then {@link #enqueue(List, DownloadGroup.Listener)}
+ * on the main thread.
+ */
+public class MirrorSync {
+    private static final String TAG = MirrorSync.class.getSimpleName();
+
+    private final FileDownloader mDownloader;
+
+    private final File mIndexFile;
+
+    /**
+     * The stat and hash of local files, keyed by path, null till loaded.
+     */
+    private Map<String, IndexRecord> mIndex;
+
+    /**
+     * @param downloader The downloader to enqueue the changed files.
+     * @param indexFile  Where to persist the stat index.
+     */
+    public MirrorSync(FileDownloader downloader, File indexFile) {
+        mDownloader = downloader;
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * Compare the manifest with the local files, hash only the files whose stat changed since the
+     * last time. It reads the disk, don't call it on the main thread.
+     *
+     * @return the entries need to download, ordered by size from large to small.
+     */
+    public synchronized List<DownloadManifest.Entry> diff(DownloadManifest manifest) {
+        loadIndex();
+        List<DownloadManifest.Entry> changed = new ArrayList<DownloadManifest.Entry>();
+        boolean indexChanged = false;
+        for (DownloadManifest.Entry entry : manifest.getEntries()) {
+            File file = new File(entry.storeFilePath);
+            long length = file.length();
+            if (!file.isFile() || (entry.size >= 0 && length != entry.size)) {
+                changed.add(entry);
+                continue;
+            }
+            // without a checksum, the same size is all we can compare.
+            if (entry.checksum == null) continue;
+
+            IndexRecord record = mIndex.get(file.getPath());
+            long lastModified = file.lastModified();
+            if (record == null || !record.matchesStat(length, lastModified)
+                    || !entry.checksum.algorithm.equalsIgnoreCase(record.algorithm)) {
+                try {
+                    String hex = FileUtils.toHex(FileUtils.digest(file, entry.checksum.algorithm));
+                    record = new IndexRecord(length, lastModified, entry.checksum.algorithm, hex);
+                    mIndex.put(file.getPath(), record);
+                    indexChanged = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't hash " + file + ", download it again.", e);
+                    changed.add(entry);
+                    continue;
+                }
+            }
+            if (!entry.checksum.equals(new Checksum(record.algorithm, record.hex))) changed.add(entry);
+        }
+        if (indexChanged) saveIndex();
+
+        // the large files go first, the small ones fill the idle places around them,
+        // so the tail of the sync isn't a single large file downloading alone.
+        Collections.sort(changed, new Comparator<DownloadManifest.Entry>() {
+            @Override
+            public int compare(DownloadManifest.Entry lhs, DownloadManifest.Entry rhs) {
+                return lhs.size == rhs.size ? 0 : (lhs.size > rhs.size ? -1 : 1);
+            }
+        });
+        return changed;
+    }
+
+    /**
+     * Download the changed entries in a group, the stat index learns the completed files when the group finish.
+     * Must be invoked from the main thread.
+     *
+     * @param changed  The entries returned by {@link #diff(DownloadManifest)}.
+     * @param listener The listener of the group, may be null.
+     */
+    public DownloadGroup enqueue(final List<DownloadManifest.Entry> changed, final DownloadGroup.Listener listener) {
+        DownloadManifest manifest = new DownloadManifest();
+        for (DownloadManifest.Entry entry : changed) {
+            manifest.add(entry);
+        }
+        // the existing files are older versions, even the same size, don't take them as downloaded.
+        final DownloadGroup group = mDownloader.addAll(manifest, true, null);
+        group.setListener(new DownloadGroup.Listener() {
+            @Override
+            public void onProgressChange(long totalBytes, long downloadedBytes) {
+                if (listener != null) listener.onProgressChange(totalBytes, downloadedBytes);
+            }
+
+            @Override
+            public void onFinish(int succeededCount, int failedCount) {
+                recordCompleted(changed, group.getControllers());
+                if (listener != null) listener.onFinish(succeededCount, failedCount);
+            }
+        });
+        return group;
+    }
+
+    /**
+     * Put the stat of the downloaded files to the index, their checksums were verified by the download.
+     */
+    private synchronized void recordCompleted(List<DownloadManifest.Entry> entries,
+                                              List<FileDownloader.DownloadController> controllers) {
+        loadIndex();
+        for (int i = 0; i < entries.size(); i++) {
+            if (controllers.get(i).getStatus() != FileDownloader.DownloadController.STATUS_SUCCESS) continue;
+            DownloadManifest.Entry entry = entries.get(i);
+            File file = new File(entry.storeFilePath);
+            if (entry.checksum != null) {
+                mIndex.put(file.getPath(), new IndexRecord(file.length(), file.lastModified(),
+                        entry.checksum.algorithm, entry.checksum.toHex()));
+            } else {
+                mIndex.remove(file.getPath());
+            }
+        }
+        saveIndex();
+    }
+
+    private void loadIndex() {
+        if (mIndex != null) return;
+        mIndex = new HashMap<String, IndexRecord>();
+        if (!mIndexFile.exists()) return;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mIndexFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) continue;
+                try {
+                    mIndex.put(fields[0], new IndexRecord(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            fields[3], fields[4]));
+                } catch (NumberFormatException e) {
+                    // skip the broken line, that file will be hashed again.
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't load the sync index " + mIndexFile + ", all files will be hashed again.", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void saveIndex() {
+        File tmpIndexFile = new File(mIndexFile.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmpIndexFile), "UTF-8");
+            try {
+                for (Map.Entry<String, IndexRecord> entry : mIndex.entrySet()) {
+                    IndexRecord record = entry.getValue();
+                    writer.write(entry.getKey() + "\t" + record.length + "\t" + record.lastModified
+                            + "\t" + record.algorithm + "\t" + record.hex + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tmpIndexFile.renameTo(mIndexFile)) throw new IOException("Can't rename " + tmpIndexFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't save the sync index " + mIndexFile, e);
+        }
+    }
+
+    private static class IndexRecord {
+        final long length;
+        final long lastModified;
+        final String algorithm;
+        final String hex;
+
+        IndexRecord(long length, long lastModified, String algorithm, String hex) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.algorithm = algorithm;
+            this.hex = hex;
+        }
+
+        boolean matchesStat(long length, long lastModified) {
+            return this.length == length && this.lastModified == lastModified;
+        }
+    }
+}
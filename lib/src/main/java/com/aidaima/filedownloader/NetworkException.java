@@ -55,6 +55,55 @@ public class NetworkException extends Exception {
         }
     }
 
+    /**
+     * Indicates that the downloaded file doesn't match the expected checksum.
+     */
+    @SuppressWarnings("serial")
+    public static class IntegrityError extends NetworkException {
+        public final Checksum expected;
+        public final String actualHex;
+
+        public IntegrityError(Checksum expected, String actualHex) {
+            super("Checksum mismatch, expected " + expected + " but was " + actualHex);
+            this.expected = expected;
+            this.actualHex = actualHex;
+        }
+
+        public IntegrityError(String exceptionMessage) {
+            super(exceptionMessage);
+            this.expected = null;
+            this.actualHex = null;
+        }
+    }
+
+    /**
+     * Indicates that the volume can't hold the file, the download was rejected before it started,
+     * or failed writing if the other apps took the space.
+     */
+    @SuppressWarnings("serial")
+    public static class InsufficientSpaceError extends NetworkException {
+        /**
+         * The bytes the download needs, -1 if unknown.
+         */
+        public final long requiredBytes;
+        /**
+         * The bytes we could promise, -1 if unknown.
+         */
+        public final long availableBytes;
+
+        public InsufficientSpaceError(long requiredBytes, long availableBytes) {
+            super("Insufficient disk space, required " + requiredBytes + " but available " + availableBytes);
+            this.requiredBytes = requiredBytes;
+            this.availableBytes = availableBytes;
+        }
+
+        public InsufficientSpaceError(Throwable reason) {
+            super("Insufficient disk space.", reason);
+            this.requiredBytes = -1;
+            this.availableBytes = -1;
+        }
+    }
+
     /**
      * Indicates that the connection or the socket timed out.
      */
@@ -0,0 +1,269 @@
+package com.aidaima.filedownloader;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Reads a file while it is downloading, see {@link FileDownloader.DownloadController#openInputStream()}.
+ * The bytes already on disk return at once. When the position is missing, the read blocks, if the
+ * sequential download reaches it soon we just wait, otherwise we fetch the missing blocks by a
+ * Range request on the reading thread, so the position the consumer needs comes first.
+ * <p/>
+ * It's seekable by {@link #seek(long)}, the consumer can jump around like a media player does.
+ * Not thread-safe, one stream per consumer thread.
+ */
+public class ProgressiveInputStream extends InputStream {
+    /**
+     * Wait for the sequential download if the position is this close to it.
+     */
+    private static final long SEQUENTIAL_WINDOW = 512 * 1024;
+
+    /**
+     * The sequential download didn't make progress for this long, we consider it isn't running.
+     */
+    private static final long STALL_MILLIS = 2000;
+
+    /**
+     * How many blocks at most an on-demand Range request fetches.
+     */
+    private static final int ON_DEMAND_BLOCKS = 16;
+
+    private static final long WAIT_INTERVAL_MILLIS = 500;
+
+    private static final int TIMEOUT_MS = 2500;
+
+    private final BlockBitmap mBitmap;
+
+    private final File mTemporaryFile;
+
+    private final File mStoreFile;
+
+    private final String mUrl;
+
+    private RandomAccessFile mFile;
+
+    private long mPosition;
+
+    private long mMark;
+
+    private volatile boolean mClosed;
+
+    ProgressiveInputStream(BlockBitmap bitmap, File temporaryFile, File storeFile, String url) {
+        mBitmap = bitmap;
+        mTemporaryFile = temporaryFile;
+        mStoreFile = storeFile;
+        mUrl = url;
+    }
+
+    /**
+     * Returns the whole file length, -1 if it's unknown yet.
+     */
+    public long length() {
+        return mBitmap.getFileLength();
+    }
+
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Move the read position, it may be beyond the downloaded part.
+     */
+    public void seek(long position) throws IOException {
+        if (position < 0) throw new IOException("Negative position " + position);
+        mPosition = position;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        if (count <= 0) return 0;
+        long length = length();
+        long target = length >= 0 ? Math.min(length, mPosition + count) : mPosition + count;
+        long skipped = Math.max(0, target - mPosition);
+        mPosition += skipped;
+        return skipped;
+    }
+
+    /**
+     * Returns how many bytes can be read without blocking.
+     */
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, mBitmap.getAvailableLength(mPosition));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public synchronized void reset() {
+        mPosition = mMark;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) return 0;
+        long available = awaitAvailable();
+        if (available < 0) return -1;
+
+        RandomAccessFile file = openFile();
+        file.seek(mPosition);
+        int length = file.read(buffer, offset, (int) Math.min(count, available));
+        if (length > 0) mPosition += length;
+        return length;
+    }
+
+    /**
+     * Closing from another thread wakes the blocked read, it throws then.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mBitmap.wakeUp();
+        synchronized (this) {
+            if (mFile != null) {
+                mFile.close();
+                mFile = null;
+            }
+        }
+    }
+
+    /**
+     * Block until the position is on disk.
+     *
+     * @return the available bytes from the position, -1 at the end of file.
+     */
+    private long awaitAvailable() throws IOException {
+        try {
+            while (true) {
+                if (mClosed) throw new IOException("Stream closed.");
+                long fileLength = mBitmap.getFileLength();
+                if (fileLength >= 0 && mPosition >= fileLength) return -1;
+
+                long available = mBitmap.getAvailableLength(mPosition);
+                if (available > 0) return available;
+
+                if (mBitmap.isRangeUnsupported()
+                        || mBitmap.isReachingSoon(mPosition, SEQUENTIAL_WINDOW, STALL_MILLIS)) {
+                    mBitmap.awaitChange(WAIT_INTERVAL_MILLIS);
+                    continue;
+                }
+
+                long[] range = mBitmap.claimMissing(mPosition, ON_DEMAND_BLOCKS);
+                if (range == null) {
+                    // another reader is fetching it.
+                    mBitmap.awaitChange(WAIT_INTERVAL_MILLIS);
+                    continue;
+                }
+                try {
+                    fetchRange(range[0], range[1]);
+                } finally {
+                    mBitmap.releaseClaim(range);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the download.");
+        }
+    }
+
+    /**
+     * Fetch [start, end) into the temporary file, mark the blocks done as they arrive.
+     */
+    private void fetchRange(long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+        RandomAccessFile raf = null;
+        InputStream in = null;
+        byte[] buffer = null;
+        try {
+            int responseCode = connection.getResponseCode();
+            long[] contentRange = parseContentRange(connection.getHeaderField("Content-Range"));
+            if (contentRange != null) mBitmap.setFileLength(contentRange[2]);
+
+            if (responseCode == 416 && contentRange != null) return;
+            if (responseCode != 206 || contentRange == null || contentRange[0] != start) {
+                // wait for the sequential download instead.
+                mBitmap.setRangeUnsupported();
+                return;
+            }
+
+            in = connection.getInputStream();
+            raf = new RandomAccessFile(mTemporaryFile, "rw");
+            raf.seek(start);
+            buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE);
+            long position = start;
+            long rangeEnd = contentRange[1] + 1;
+            while (position < rangeEnd && !mClosed) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, rangeEnd - position));
+                if (count == -1) throw new IOException("Unexpected end of range " + start + "-" + rangeEnd);
+                raf.write(buffer, 0, count);
+                position += count;
+                // let the reader go as soon as the first block done.
+                mBitmap.markRange(start, position);
+            }
+        } finally {
+            MemoryBudget.get().release(buffer);
+            if (in != null) in.close();
+            if (raf != null) raf.close();
+            connection.disconnect();
+            mBitmap.save();
+        }
+    }
+
+    /**
+     * Parse "bytes start-end/total" or "bytes *&#47;total", the missing parts are -1.
+     */
+    private static long[] parseContentRange(String value) {
+        if (value == null || !value.startsWith("bytes ")) return null;
+        try {
+            int slashIndex = value.indexOf('/');
+            long total = Long.parseLong(value.substring(slashIndex + 1).trim());
+            String range = value.substring("bytes ".length(), slashIndex).trim();
+            if (range.equals("*")) return new long[]{-1, -1, total};
+            int dashIndex = range.indexOf('-');
+            return new long[]{Long.parseLong(range.substring(0, dashIndex)),
+                    Long.parseLong(range.substring(dashIndex + 1)), total};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Open the temporary file, or the store file if the download was done and renamed,
+     * the opened one stays valid across the rename.
+     */
+    private synchronized RandomAccessFile openFile() throws IOException {
+        if (mClosed) throw new IOException("Stream closed.");
+        if (mFile == null) {
+            try {
+                mFile = new RandomAccessFile(mTemporaryFile, "r");
+            } catch (FileNotFoundException e) {
+                mFile = new RandomAccessFile(mStoreFile, "r");
+            }
+        }
+        return mFile;
+    }
+}
@@ -0,0 +1,95 @@
+package com.aidaima.filedownloader;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers where the redirects of a url ended, so the retries, resumes and range requests go
+ * straight to the resolved url instead of paying the round-trips to the redirector every time.
+ * An entry lives for the TTL, it's dropped earlier when the resolved url answers 4xx or can't be
+ * reached, or its validators changed, then the request goes back to the original url.
+ * Shared by the requests of a {@link RequestQueue}, thread safe.
+ */
+public class RedirectCache {
+    public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+
+    private static final int MAX_ENTRIES = 128;
+
+    private long mTtlMs = DEFAULT_TTL_MS;
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RedirectCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Set how long a resolved url is trusted, 0 to disable the cache.
+     */
+    public synchronized void setTtlMs(long ttlMs) {
+        mTtlMs = ttlMs;
+        if (ttlMs <= 0) mEntries.clear();
+    }
+
+    /**
+     * Returns the fresh entry of the original url, null if none.
+     */
+    public synchronized Entry get(String url) {
+        Entry entry = mEntries.get(url);
+        if (entry != null && SystemClock.uptimeMillis() >= entry.expiresAt) {
+            mEntries.remove(url);
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized void put(String url, String resolvedUrl, String etag, String lastModified) {
+        if (mTtlMs <= 0) return;
+        mEntries.put(url, new Entry(resolvedUrl, etag, lastModified, SystemClock.uptimeMillis() + mTtlMs));
+    }
+
+    public synchronized void remove(String url) {
+        mEntries.remove(url);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * The resolved url and the validators it responded with.
+     */
+    public static class Entry {
+        public final String resolvedUrl;
+
+        /**
+         * The validators of the response, null if absent.
+         */
+        public final String etag;
+        public final String lastModified;
+
+        /**
+         * By {@link SystemClock#uptimeMillis()}.
+         */
+        final long expiresAt;
+
+        Entry(String resolvedUrl, String etag, String lastModified, long expiresAt) {
+            this.resolvedUrl = resolvedUrl;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Whether the response of the resolved url still has the validators we recorded,
+         * the validator absent on either side doesn't count.
+         */
+        boolean matches(String etag, String lastModified) {
+            if (this.etag != null && etag != null && !this.etag.equals(etag)) return false;
+            return this.lastModified == null || lastModified == null || this.lastModified.equals(lastModified);
+        }
+    }
+}
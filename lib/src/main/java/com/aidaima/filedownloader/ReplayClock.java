@@ -0,0 +1,102 @@
+package com.aidaima.filedownloader;
+
+import android.os.SystemClock;
+
+import java.util.PriorityQueue;
+
+/**
+ * The time a {@link TraceReplayer} waits by, either the real time or a {@link Virtual} one.
+ */
+public abstract class ReplayClock {
+
+    /**
+     * Returns the current time in milliseconds.
+     */
+    public abstract long now();
+
+    /**
+     * Block the calling participant until the time.
+     */
+    public abstract void sleepUntil(long time) throws InterruptedException;
+
+    /**
+     * A thread begins to wait by this clock, e.g. a replayed response opened.
+     */
+    public void register() {
+    }
+
+    /**
+     * The participant finished waiting by this clock.
+     */
+    public void unregister() {
+    }
+
+    /**
+     * Waits the real time.
+     */
+    public static ReplayClock realTime() {
+        return new ReplayClock() {
+            @Override
+            public long now() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public void sleepUntil(long time) throws InterruptedException {
+                long delay = time - SystemClock.uptimeMillis();
+                if (delay > 0) Thread.sleep(delay);
+            }
+        };
+    }
+
+    /**
+     * A clock starts at 0 and only moves when every registered participant is sleeping,
+     * then jumps to the earliest wake time, so the replay runs as fast as the code can
+     * while the virtual timeline stays the same. The time spent outside the sleeps, such as
+     * writing the file, costs no virtual time.
+     */
+    public static class Virtual extends ReplayClock {
+        private long mNow;
+
+        private int mParticipantCount;
+
+        private final PriorityQueue<Long> mWakeTimes = new PriorityQueue<Long>();
+
+        @Override
+        public synchronized long now() {
+            return mNow;
+        }
+
+        @Override
+        public synchronized void sleepUntil(long time) throws InterruptedException {
+            if (time <= mNow) return;
+            Long wakeTime = time;
+            mWakeTimes.add(wakeTime);
+            try {
+                advanceIfIdle();
+                while (mNow < time) {
+                    wait();
+                }
+            } finally {
+                mWakeTimes.remove(wakeTime);
+            }
+        }
+
+        @Override
+        public synchronized void register() {
+            mParticipantCount++;
+        }
+
+        @Override
+        public synchronized void unregister() {
+            mParticipantCount--;
+            advanceIfIdle();
+        }
+
+        private void advanceIfIdle() {
+            if (mWakeTimes.isEmpty() || mWakeTimes.size() < mParticipantCount) return;
+            mNow = Math.max(mNow, mWakeTimes.peek());
+            notifyAll();
+        }
+    }
+}
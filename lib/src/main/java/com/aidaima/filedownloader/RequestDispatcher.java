@@ -2,12 +2,13 @@ package com.aidaima.filedownloader;
 
 import android.os.Handler;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.protocol.HTTP;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class RequestDispatcher extends Thread {
     private static final String TAG = RequestDispatcher.class.getSimpleName();
@@ -24,6 +25,10 @@ public class RequestDispatcher extends Thread {
      * The default charset only use when response doesn't offer the Content-Type header.
      */
     private final String mDefaultCharset;
+    /**
+     * The queue owns this dispatcher, asked before quit when idle, null if never quit by idle.
+     */
+    private final RequestQueue mOwner;
     /**
      * Used for telling us to die.
      */
@@ -37,8 +42,16 @@ public class RequestDispatcher extends Thread {
      * @param delivery Delivery interface to use for posting responses
      */
     public RequestDispatcher(BlockingQueue<DownloadRequest> queue, Delivery delivery) {
+        this(queue, delivery, null);
+    }
+
+    /**
+     * Creates a dispatcher which quits after idle for the owner's idle timeout.
+     */
+    RequestDispatcher(BlockingQueue<DownloadRequest> queue, Delivery delivery, RequestQueue owner) {
         mQueue = queue;
         mDelivery = delivery;
+        mOwner = owner;
 
         mDefaultCharset = HTTP.UTF_8;
     }
@@ -59,13 +72,25 @@ public class RequestDispatcher extends Thread {
         while (true) {
             try {
                 // Take a request from the queue.
-                request = mQueue.take();
+                if (mOwner == null) {
+                    request = mQueue.take();
+                } else {
+                    request = mQueue.poll(mOwner.getIdleTimeout(), TimeUnit.MILLISECONDS);
+                    if (request == null) {
+                        if (mOwner.onDispatcherTimeout(this)) return;
+                        continue;
+                    }
+                    mOwner.onDispatcherBusy(this);
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) return;
                 continue;
             }
 
+            RequestMetrics metrics = request.getMetrics();
+            if (metrics != null) metrics.queueWaitMs = SystemClock.uptimeMillis() - metrics.enqueuedAt;
+
             try {
                 mDelivery.postPreExecute(request);
 
@@ -76,10 +101,18 @@ public class RequestDispatcher extends Thread {
                 mDelivery.postResponse(request);
             } catch (NetworkException.NetworkError networkError) {
                 mDelivery.postError(request, networkError);
+            } catch (NetworkException.InsufficientSpaceError spaceError) {
+                mDelivery.postError(request, spaceError);
             } catch (Exception e) {
                 Log.e(TAG, "Unhandled exception " + e.toString());
                 mDelivery.postError(request, new NetworkException(e));
             }
+            if (metrics != null && mOwner != null) {
+                DownloadMetrics receiver = mOwner.getMetrics();
+                metrics.success = request.isSuccess();
+                if (receiver != null) receiver.onRequestComplete(metrics);
+            }
+            if (mOwner != null) mOwner.onDispatcherIdle(this);
         }
     }
 
@@ -92,34 +125,70 @@ public class RequestDispatcher extends Thread {
         return charset == null ? mDefaultCharset : charset;
     }
 
+    /**
+     * Posts the events of the requests to the main thread. The events are pooled objects queued in
+     * order, one posted runnable drains all events queued since the last drain, so a burst of events
+     * from many downloads costs one looper message and no allocation. A progress event still waiting
+     * in the queue is updated in place by the newer progress of the same request, the listener only
+     * sees the latest. The observers of the request hear the progress and the result on the posting
+     * thread before that, see {@link DownloadRequest#setObserver(String, DownloadRequest.Observer)}.
+     */
     public static class Delivery {
+        private static final int TYPE_PRE_EXECUTE = 0;
+        private static final int TYPE_PROGRESS = 1;
+        private static final int TYPE_RESPONSE = 2;
+        private static final int TYPE_FINISH = 3;
+
         /**
-         * Used for posting responses, typically to the main thread.
+         * The recycled events we keep at most.
          */
-        private final Executor mResponsePoster;
+        private static final int MAX_POOL_SIZE = 64;
+
+        /**
+         * Used for posting the drain, typically to the main thread.
+         */
+        private final Handler mHandler;
+
+        /**
+         * Guards the queue and the pool.
+         */
+        private final Object mLock = new Object();
+
+        /**
+         * The queued events, linked by {@link Event#next}.
+         */
+        private Event mHead;
+        private Event mTail;
+
+        /**
+         * The recycled events, linked by {@link Event#next}.
+         */
+        private Event mPool;
+        private int mPoolSize;
+
+        /**
+         * Whether the drain was posted and not run yet.
+         */
+        private boolean mDrainPosted;
+
+        private final Runnable mDrainRunnable = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
 
         /**
          * Creates a new response delivery interface.
          *
          * @param handler {@link Handler} to post responses on
          */
-        public Delivery(final Handler handler) {
-            // Make an Executor that just wraps the handler.
-            mResponsePoster = new Executor() {
-                @Override
-                public void execute(Runnable command) {
-                    handler.post(command);
-                }
-            };
+        public Delivery(Handler handler) {
+            mHandler = handler;
         }
 
-        public void postFinish(final DownloadRequest request) {
-            mResponsePoster.execute(new Runnable() {
-                @Override
-                public void run() {
-                    request.deliverFinish();
-                }
-            });
+        public void postFinish(DownloadRequest request) {
+            enqueue(TYPE_FINISH, request, 0, 0, -1, null);
         }
 
         public void postResponse(DownloadRequest request) {
@@ -127,69 +196,162 @@ public class RequestDispatcher extends Thread {
         }
 
         public void postResponse(DownloadRequest request, Runnable runnable) {
-            mResponsePoster.execute(new ResponseDeliveryRunnable(request, runnable));
+            request.notifyResult();
+            enqueue(TYPE_RESPONSE, request, 0, 0, -1, runnable);
         }
 
         public void postError(DownloadRequest request, NetworkException error) {
             request.error = error;
-            mResponsePoster.execute(new ResponseDeliveryRunnable(request, null));
+            request.notifyResult();
+            enqueue(TYPE_RESPONSE, request, 0, 0, -1, null);
         }
 
-        public void postPreExecute(final DownloadRequest request) {
-            mResponsePoster.execute(new Runnable() {
-                @Override
-                public void run() {
-                    request.deliverPreExecute();
-                }
-            });
+        public void postPreExecute(DownloadRequest request) {
+            enqueue(TYPE_PRE_EXECUTE, request, 0, 0, -1, null);
         }
 
-        public void postDownloadProgress(final DownloadRequest request, final long fileSize, final long downloadedSize) {
-            mResponsePoster.execute(new Runnable() {
-                @Override
-                public void run() {
-                    request.deliverDownloadProgress(fileSize, downloadedSize);
+        public void postDownloadProgress(DownloadRequest request, long fileSize, long downloadedSize) {
+            request.notifyProgress(fileSize, downloadedSize);
+            enqueue(TYPE_PROGRESS, request, fileSize, downloadedSize, -1, null);
+        }
+
+        public void postDownloadProgress(DownloadRequest request, long fileSize,
+                                         long downloadedSize, long decodedSize) {
+            request.notifyProgress(fileSize, downloadedSize);
+            enqueue(TYPE_PROGRESS, request, fileSize, downloadedSize, decodedSize, null);
+        }
+
+        private void enqueue(int type, DownloadRequest request, long fileSize, long downloadedSize,
+                             long decodedSize, Runnable runnable) {
+            boolean shouldPost;
+            synchronized (mLock) {
+                Event event;
+                if (type == TYPE_PROGRESS && request.mPendingProgress != null) {
+                    // not delivered yet, the newer progress replaces it.
+                    event = request.mPendingProgress;
+                } else {
+                    event = obtain();
+                    event.type = type;
+                    event.request = request;
+                    event.runnable = runnable;
+                    if (mTail == null) mHead = event;
+                    else mTail.next = event;
+                    mTail = event;
+                    if (type == TYPE_PROGRESS) request.mPendingProgress = event;
                 }
-            });
+                event.fileSize = fileSize;
+                event.downloadedSize = downloadedSize;
+                event.decodedSize = decodedSize;
+
+                shouldPost = !mDrainPosted;
+                mDrainPosted = true;
+            }
+            if (shouldPost) mHandler.post(mDrainRunnable);
+        }
+
+        private Event obtain() {
+            if (mPool == null) return new Event();
+            Event event = mPool;
+            mPool = event.next;
+            event.next = null;
+            mPoolSize--;
+            return event;
         }
 
         /**
-         * A Runnable used for delivering network responses to a listener on the
-         * main thread.
+         * Deliver the queued events by order, the events queued while delivering go to the next drain.
          */
-        @SuppressWarnings("rawtypes")
-        private class ResponseDeliveryRunnable implements Runnable {
-            private final DownloadRequest mRequest;
-            private final Runnable mRunnable;
-
-            public ResponseDeliveryRunnable(DownloadRequest request, Runnable runnable) {
-                mRequest = request;
-                mRunnable = runnable;
+        private void drain() {
+            Event head;
+            synchronized (mLock) {
+                head = mHead;
+                mHead = null;
+                mTail = null;
+                mDrainPosted = false;
+                // the taken progress can't be updated any more.
+                for (Event event = head; event != null; event = event.next) {
+                    if (event.request.mPendingProgress == event) event.request.mPendingProgress = null;
+                }
             }
 
-            @SuppressWarnings("unchecked")
-            @Override
-            public void run() {
-                // Deliver a normal response or error, depending.
-                if (mRequest.isSuccess()) {
-                    mRequest.deliverSuccess();
-                } else {
-                    mRequest.deliverError(mRequest.error);
+            for (Event event = head; event != null; event = event.next) {
+                deliver(event);
+            }
+
+            synchronized (mLock) {
+                while (head != null) {
+                    Event next = head.next;
+                    head.request = null;
+                    head.runnable = null;
+                    head.next = null;
+                    if (mPoolSize < MAX_POOL_SIZE) {
+                        head.next = mPool;
+                        mPool = head;
+                        mPoolSize++;
+                    }
+                    head = next;
                 }
+            }
+        }
 
-                // we're done and the request can be finished.
-                mRequest.finish("done");
+        private void deliver(Event event) {
+            DownloadRequest request = event.request;
+            switch (event.type) {
+                case TYPE_PRE_EXECUTE:
+                    request.deliverPreExecute();
+                    break;
+                case TYPE_PROGRESS:
+                    if (event.decodedSize >= 0) {
+                        request.deliverDownloadProgress(event.fileSize, event.downloadedSize, event.decodedSize);
+                    } else {
+                        request.deliverDownloadProgress(event.fileSize, event.downloadedSize);
+                    }
+                    break;
+                case TYPE_RESPONSE:
+                    deliverResponse(request, event.runnable);
+                    break;
+                case TYPE_FINISH:
+                    request.deliverFinish();
+                    break;
+            }
+        }
 
-                // If we have been provided a post-delivery runnable, run it.
-                if (mRunnable != null) {
-                    mRunnable.run();
-                }
+        /**
+         * Delivering network responses to a listener on the main thread.
+         */
+        private void deliverResponse(DownloadRequest request, Runnable runnable) {
+            // Deliver a normal response or error, depending.
+            if (request.isSuccess()) {
+                request.deliverSuccess();
+            } else {
+                request.deliverError(request.error);
+            }
 
-                if (mRequest.isSuccess() ||
-                        !(mRequest.error instanceof NetworkException.NetworkCancel)) {
-                    mRequest.deliverFinish();
-                }
+            // we're done and the request can be finished.
+            request.finish("done");
+
+            // If we have been provided a post-delivery runnable, run it.
+            if (runnable != null) {
+                runnable.run();
+            }
+
+            if (request.isSuccess() ||
+                    !(request.error instanceof NetworkException.NetworkCancel)) {
+                request.deliverFinish();
             }
         }
+
+        /**
+         * A queued event, recycled after delivered.
+         */
+        static class Event {
+            int type;
+            DownloadRequest request;
+            long fileSize;
+            long downloadedSize;
+            long decodedSize;
+            Runnable runnable;
+            Event next;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,93 @@
+package com.aidaima.filedownloader;
+
+/**
+ * Where the time of a {@link DownloadRequest} went, filled by the dispatcher while the request
+ * performing, then reported to {@link DownloadMetrics#onRequestComplete(RequestMetrics)}.
+ * The phases sum all attempts of the request, a phase we couldn't measure is -1.
+ */
+public class RequestMetrics {
+    public final String url;
+
+    /**
+     * When the request was added to the queue, by {@link android.os.SystemClock#uptimeMillis()}.
+     */
+    final long enqueuedAt;
+
+    /**
+     * From added to the queue till a dispatcher took it.
+     */
+    public long queueWaitMs;
+
+    /**
+     * Resolving the host name.
+     */
+    public long dnsMs;
+
+    /**
+     * Establishing the connection, includes the TLS handshake since {@link java.net.HttpURLConnection}
+     * does them in one step.
+     */
+    public long connectMs;
+
+    /**
+     * The TLS handshake alone, -1 if the transport can't tell it from {@link #connectMs}.
+     */
+    public long tlsMs = -1;
+
+    /**
+     * From the request sent till the response status arrived.
+     */
+    public long firstByteMs;
+
+    /**
+     * Reading and writing the content.
+     */
+    public long transferMs;
+
+    /**
+     * The content bytes written, after decoded if the content is compressed.
+     */
+    public long bytes;
+
+    /**
+     * The attempts after the first one, e.g. retry after socket timeout.
+     */
+    public int retries;
+
+    /**
+     * The sum of the read gaps longer than {@link DownloadMetrics#STALL_THRESHOLD_MS} while transferring.
+     */
+    public long stallMs;
+
+    /**
+     * Forcing the temporary file to the disk by the {@link DurabilityPolicy}, and how many times.
+     */
+    public long syncMs;
+    public int syncCount;
+
+    /**
+     * Whether the request success, false if failed or canceled.
+     */
+    public boolean success;
+
+    RequestMetrics(String url, long enqueuedAt) {
+        this.url = url;
+        this.enqueuedAt = enqueuedAt;
+    }
+
+    /**
+     * Returns the transfer throughput in bytes per second, 0 if nothing transferred.
+     */
+    public long getThroughput() {
+        return transferMs > 0 ? bytes * 1000 / transferMs : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestMetrics{url=" + url + ", queueWaitMs=" + queueWaitMs + ", dnsMs=" + dnsMs
+                + ", connectMs=" + connectMs + ", tlsMs=" + tlsMs + ", firstByteMs=" + firstByteMs
+                + ", transferMs=" + transferMs + ", bytes=" + bytes + ", retries=" + retries
+                + ", stallMs=" + stallMs + ", syncMs=" + syncMs + ", syncCount=" + syncCount
+                + ", success=" + success + "}";
+    }
+}
@@ -2,8 +2,11 @@ package com.aidaima.filedownloader;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
 
@@ -13,6 +16,11 @@ public class RequestQueue {
      */
     public static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /**
+     * How long an idle dispatcher thread lives before it quit.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
     /**
      * The set of all requests currently being processed by this RequestQueue. A DownloadRequest
      * will be in this set if it is waiting in any queue or currently being processed by
@@ -30,25 +38,67 @@ public class RequestQueue {
      */
     private final RequestDispatcher.Delivery mDelivery;
     /**
-     * The network dispatchers.
+     * The live network dispatchers, also the lock of the dispatcher counting.
+     */
+    private final List<RequestDispatcher> mDispatchers = new ArrayList<RequestDispatcher>();
+
+    /**
+     * The maximum number of dispatcher threads.
+     */
+    private final int mThreadPoolSize;
+
+    /**
+     * The number of dispatchers waiting for a request.
+     */
+    private int mIdleCount;
+
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private boolean mStarted;
+
+    /**
+     * Receives the request metrics, null if no one cares.
+     */
+    private volatile DownloadMetrics mMetrics;
+
+    /**
+     * Performs the requests instead of the built-in transport, null to use the built-in one.
+     */
+    private volatile HttpStack mHttpStack;
+
+    /**
+     * Records the timeline of the requests, null if not recording.
+     */
+    private volatile TraceRecorder mTraceRecorder;
+
+    /**
+     * The timeouts learned of the hosts, shared by the requests.
      */
-    private RequestDispatcher[] mDispatchers;
+    private final AdaptiveTimeouts mTimeouts = new AdaptiveTimeouts();
+
+    /**
+     * Where the redirects of the urls ended, shared by the requests.
+     */
+    private final RedirectCache mRedirectCache = new RedirectCache();
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
-     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param threadPoolSize Maximum number of network dispatcher threads, they are created on demand
      * @param delivery       A Delivery interface for posting responses and errors
      */
     public RequestQueue(int threadPoolSize, RequestDispatcher.Delivery delivery) {
+        if (threadPoolSize <= 0) {
+            throw new IllegalArgumentException("threadPoolSize[" + threadPoolSize + "] must be positive.");
+        }
         mDelivery = delivery;
-        mDispatchers = new RequestDispatcher[threadPoolSize];
+        mThreadPoolSize = threadPoolSize;
     }
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
-     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param threadPoolSize Maximum number of network dispatcher threads, they are created on demand
      */
     public RequestQueue(int threadPoolSize) {
         this(threadPoolSize, new RequestDispatcher.Delivery(new Handler(Looper.getMainLooper())));
@@ -63,34 +113,159 @@ public class RequestQueue {
     }
 
     /**
-     * Starts the dispatchers in this queue.
+     * Starts processing, no thread is created till a request arrives, the dispatchers grow
+     * with the queued requests up to the pool size, and quit after idle for the idle timeout.
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
 
-        // Create request dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            RequestDispatcher networkDispatcher =
-                    new RequestDispatcher(mNetworkQueue, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+        synchronized (mDispatchers) {
+            mStarted = true;
+            ensureDispatchers();
         }
     }
 
     /**
-     * Stops the cache and network dispatchers.
+     * Stops the network dispatchers.
      */
     public void stop() {
-        for (RequestDispatcher mDispatcher : mDispatchers) {
-            if (mDispatcher != null) mDispatcher.quit();
+        synchronized (mDispatchers) {
+            mStarted = false;
+            for (RequestDispatcher dispatcher : mDispatchers) {
+                dispatcher.quit();
+            }
+            mDispatchers.clear();
+            mIdleCount = 0;
         }
     }
 
     /**
-     * Gets the thread pool size.
+     * Set how long an idle dispatcher thread lives, the default is {@link #DEFAULT_IDLE_TIMEOUT_MS}.
+     * The dispatchers already waiting use it after their current wait.
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        if (idleTimeoutMs <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMs[" + idleTimeoutMs + "] must be positive.");
+        }
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    long getIdleTimeout() {
+        return mIdleTimeoutMs;
+    }
+
+    /**
+     * Set the receiver of the request metrics, null to disable, the requests added after this are measured.
+     */
+    public void setMetrics(DownloadMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    DownloadMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Replace the built-in transport, null to restore it, the requests added after this use it.
+     */
+    public void setHttpStack(HttpStack stack) {
+        mHttpStack = stack;
+    }
+
+    /**
+     * Record the requests added after this, null to stop.
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        mTraceRecorder = recorder;
+    }
+
+    /**
+     * Returns the timeouts learned of the hosts, e.g. to tune the stall detection.
+     */
+    public AdaptiveTimeouts getTimeouts() {
+        return mTimeouts;
+    }
+
+    /**
+     * Returns the resolved redirects, e.g. to change the TTL.
+     */
+    public RedirectCache getRedirectCache() {
+        return mRedirectCache;
+    }
+
+    /**
+     * Gets the maximum number of dispatcher threads.
      */
     public int getThreadPoolSize() {
-        return mDispatchers.length;
+        return mThreadPoolSize;
+    }
+
+    /**
+     * Gets the number of dispatcher threads alive now.
+     */
+    public int getThreadCount() {
+        synchronized (mDispatchers) {
+            return mDispatchers.size();
+        }
+    }
+
+    /**
+     * Gets the number of dispatcher threads performing a request now.
+     */
+    public int getBusyThreadCount() {
+        synchronized (mDispatchers) {
+            return mDispatchers.size() - mIdleCount;
+        }
+    }
+
+    /**
+     * Create the dispatchers for the requests which no idle dispatcher will take, must hold the lock.
+     */
+    private void ensureDispatchers() {
+        if (!mStarted) return;
+        int needed = mNetworkQueue.size() - mIdleCount;
+        while (needed-- > 0 && mDispatchers.size() < mThreadPoolSize) {
+            RequestDispatcher dispatcher = new RequestDispatcher(mNetworkQueue, mDelivery, this);
+            mDispatchers.add(dispatcher);
+            // counts as idle, it will take a request as soon as it runs.
+            mIdleCount++;
+            dispatcher.start();
+        }
+    }
+
+    /**
+     * The dispatcher begins to wait for a request, the one stopped doesn't count.
+     */
+    void onDispatcherIdle(RequestDispatcher dispatcher) {
+        synchronized (mDispatchers) {
+            if (mDispatchers.contains(dispatcher)) mIdleCount++;
+        }
+    }
+
+    /**
+     * The dispatcher took a request. It still counted as idle since the take, a request added
+     * meanwhile may have started no dispatcher for it, check again now the count is right.
+     */
+    void onDispatcherBusy(RequestDispatcher dispatcher) {
+        synchronized (mDispatchers) {
+            if (mDispatchers.contains(dispatcher)) mIdleCount--;
+            ensureDispatchers();
+        }
+    }
+
+    /**
+     * The dispatcher waited for the idle timeout without any request, it may quit if still
+     * nothing to do, the decision is made under the lock, so a request added meanwhile either
+     * stops the quit or sees the dispatcher gone and creates another.
+     *
+     * @return true if the dispatcher should quit.
+     */
+    boolean onDispatcherTimeout(RequestDispatcher dispatcher) {
+        synchronized (mDispatchers) {
+            if (!mNetworkQueue.isEmpty()) return false;
+            if (mDispatchers.remove(dispatcher)) mIdleCount--;
+            return true;
+        }
     }
 
     public void cancelAll() {
@@ -104,11 +279,19 @@ public class RequestQueue {
     public DownloadRequest add(DownloadRequest request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
+        if (mMetrics != null) request.setMetrics(new RequestMetrics(request.getUrl(), SystemClock.uptimeMillis()));
+        request.setHttpStack(mHttpStack);
+        request.setTraceRecorder(mTraceRecorder);
+        request.setTimeouts(mTimeouts);
+        request.setRedirectCache(mRedirectCache);
         synchronized (mCurrentRequests) {
             mCurrentRequests.add(request);
         }
 
         mNetworkQueue.add(request);
+        synchronized (mDispatchers) {
+            ensureDispatchers();
+        }
         return request;
     }
 
@@ -0,0 +1,86 @@
+package com.aidaima.filedownloader;
+
+import java.util.List;
+
+/**
+ * Decides in which order the waiting tasks of a {@link FileDownloader} get deployed,
+ * and whether a waiting task may take an idle place at all.
+ * <p/>
+ * The policy only looks at tasks through the {@link Task} interface, so it doesn't care
+ * about how a task performs the downloading.
+ */
+public abstract class SchedulePolicy {
+
+    /**
+     * The default policy, tasks are deployed by the order they were added.
+     */
+    public static final SchedulePolicy FIFO = new SchedulePolicy() {
+        @Override
+        public int compare(Task lhs, Task rhs, long now) {
+            // the waiting list is sorted stable, so keeping the equality keep the insertion order.
+            return 0;
+        }
+    };
+
+    /**
+     * Whether the scheduler should learn the size of waiting tasks before apply this policy,
+     * if true, {@link FileDownloader} will probe the Content-Length of the waiting tasks.
+     */
+    public boolean requiresFileSize() {
+        return false;
+    }
+
+    /**
+     * Compare two waiting tasks, the lesser one will be deployed first.
+     *
+     * @param now The uptime in milliseconds which this scheduling pass started.
+     */
+    public abstract int compare(Task lhs, Task rhs, long now);
+
+    /**
+     * The order the scheduler sorts by, the higher priority goes first, the policy
+     * only decides among the tasks of the same priority.
+     */
+    final int order(Task lhs, Task rhs, long now) {
+        if (lhs.getPriority() != rhs.getPriority()) return lhs.getPriority() > rhs.getPriority() ? -1 : 1;
+        return compare(lhs, rhs, now);
+    }
+
+    /**
+     * Decide whether the candidate can take an idle place, only invoke when the parallel
+     * counter still have idle place.
+     *
+     * @param candidate         The waiting task about to deploy.
+     * @param running           The tasks which are downloading now.
+     * @param parallelTaskCount The maximum parallel task count of the {@link FileDownloader}.
+     * @return true if the candidate can be deployed.
+     */
+    public boolean canDeploy(Task candidate, List<? extends Task> running, int parallelTaskCount) {
+        return true;
+    }
+
+    /**
+     * A task view which the policy relies on.
+     */
+    public interface Task {
+        /**
+         * Returns the bytes still need to download, or -1 if the size is unknown yet.
+         */
+        long getRemainingSize();
+
+        /**
+         * Returns the whole file size, or -1 if unknown yet.
+         */
+        long getFileSize();
+
+        /**
+         * Returns the uptime in milliseconds which this task start waiting.
+         */
+        long getWaitingSince();
+
+        /**
+         * Returns the priority, the higher one deploys first whatever the policy says.
+         */
+        int getPriority();
+    }
+}
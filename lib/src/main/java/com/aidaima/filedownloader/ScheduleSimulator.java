@@ -0,0 +1,393 @@
+package com.aidaima.filedownloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Runs a {@link SchedulePolicy} against modeled links on a virtual clock, the same way
+ * {@link FileDownloader} schedules: the waiting tasks sorted by the policy order, then deployed while
+ * the parallel places are idle and the policy agreed. It's a discrete event simulation in a single
+ * thread, hours of workload finish in seconds, the same seed gives the same {@link Report}.
+ * <p/>
+ * A task holds a place from deploy till finish, it connects for the link latency first, then shares
+ * the link bandwidth equally with the other transfers of the link. An attempt may fail at a random
+ * point by the link failure rate, the task goes back to waiting and resumes from there, until it
+ * failed {@link #setMaxRetries(int) max retries} times.
+ */
+public class ScheduleSimulator {
+    private static final double EPSILON_BYTES = 1e-3;
+
+    private final SchedulePolicy mPolicy;
+
+    private final int mParallelTaskCount;
+
+    private final Random mRandom;
+
+    private final Map<String, Link> mLinks = new LinkedHashMap<String, Link>();
+
+    private final List<SimTask> mTasks = new ArrayList<SimTask>();
+
+    private int mMaxRetries = 3;
+
+    private boolean mRan;
+
+    /**
+     * @param seed The seed of the failures and the generated workloads.
+     */
+    public ScheduleSimulator(SchedulePolicy policy, int parallelTaskCount, long seed) {
+        if (parallelTaskCount <= 0) {
+            throw new IllegalArgumentException("parallelTaskCount[" + parallelTaskCount + "] must be positive.");
+        }
+        mPolicy = policy;
+        mParallelTaskCount = parallelTaskCount;
+        mRandom = new Random(seed);
+    }
+
+    public ScheduleSimulator addLink(String name, Link link) {
+        mLinks.put(name, link);
+        return this;
+    }
+
+    /**
+     * How many failed attempts a task retries before it fails, 3 by default.
+     */
+    public ScheduleSimulator setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Add a task arrives at the time.
+     *
+     * @param arrivalTime The virtual time in milliseconds.
+     * @param linkName    The link it downloads through, must be added.
+     * @param size        The file size in bytes.
+     */
+    public ScheduleSimulator addTask(long arrivalTime, String linkName, long size, int priority) {
+        Link link = mLinks.get(linkName);
+        if (link == null) throw new IllegalArgumentException("Unknown link " + linkName);
+        mTasks.add(new SimTask(arrivalTime, link, size, priority));
+        return this;
+    }
+
+    /**
+     * Add tasks arriving as a Poisson process, their sizes are exponentially distributed.
+     *
+     * @param startTime          When the first arrival may happen.
+     * @param meanInterarrivalMs The mean gap between two arrivals.
+     * @param meanSize           The mean file size in bytes.
+     */
+    public ScheduleSimulator addPoissonWorkload(String linkName, int count, long startTime,
+                                                long meanInterarrivalMs, long meanSize, int priority) {
+        double time = startTime;
+        for (int i = 0; i < count; i++) {
+            time += exponential(meanInterarrivalMs);
+            addTask((long) time, linkName, Math.max(1, (long) exponential(meanSize)), priority);
+        }
+        return this;
+    }
+
+    private double exponential(double mean) {
+        return -mean * Math.log(1 - mRandom.nextDouble());
+    }
+
+    /**
+     * Simulate till all tasks finished, the simulator can't run twice.
+     */
+    public Report run() {
+        if (mRan) throw new IllegalStateException("The simulator already ran.");
+        mRan = true;
+        List<SimTask> arrivals = new ArrayList<SimTask>(mTasks);
+        // stable, the tasks arrive at the same time keep the added order.
+        Collections.sort(arrivals, new Comparator<SimTask>() {
+            @Override
+            public int compare(SimTask lhs, SimTask rhs) {
+                return lhs.arrivalTime == rhs.arrivalTime ? 0 : (lhs.arrivalTime < rhs.arrivalTime ? -1 : 1);
+            }
+        });
+
+        List<SimTask> waiting = new ArrayList<SimTask>();
+        List<SimTask> running = new ArrayList<SimTask>();
+        Report report = new Report(mParallelTaskCount);
+        int nextArrival = 0;
+        int finishedCount = 0;
+        double now = 0;
+
+        while (finishedCount < arrivals.size()) {
+            schedule(waiting, running, now);
+
+            // the earliest next event, an arrival or a running task reaches its phase end.
+            double eventTime = nextArrival < arrivals.size() ? arrivals.get(nextArrival).arrivalTime : Double.MAX_VALUE;
+            for (SimTask task : running) {
+                eventTime = Math.min(eventTime, task.nextEventTime(now));
+            }
+            if (eventTime == Double.MAX_VALUE) {
+                throw new IllegalStateException("The policy refused to deploy any of the "
+                        + waiting.size() + " waiting tasks while nothing is running.");
+            }
+
+            // move the transfers to the event time.
+            double elapsed = eventTime - now;
+            for (SimTask task : running) {
+                if (task.transferring) task.remaining -= task.getRate() * elapsed / 1000;
+            }
+            report.busySlotTime += running.size() * elapsed;
+            now = eventTime;
+
+            while (nextArrival < arrivals.size() && arrivals.get(nextArrival).arrivalTime <= now) {
+                SimTask task = arrivals.get(nextArrival++);
+                task.waitingSince = now;
+                waiting.add(task);
+            }
+
+            for (Iterator<SimTask> iterator = running.iterator(); iterator.hasNext(); ) {
+                SimTask task = iterator.next();
+                if (task.connectedTime > now) continue;
+                if (!task.transferring) {
+                    task.transferring = true;
+                    task.link.transferCount++;
+                }
+                if (task.remaining - task.failRemaining > EPSILON_BYTES) continue;
+
+                // reached the end or the failure point of this attempt.
+                iterator.remove();
+                task.transferring = false;
+                task.link.transferCount--;
+                if (task.failRemaining <= 0) {
+                    finishedCount++;
+                    report.onFinished(task, now, true);
+                } else if (task.retries++ < mMaxRetries) {
+                    report.retryCount++;
+                    task.waitingSince = now;
+                    waiting.add(task);
+                } else {
+                    finishedCount++;
+                    report.onFinished(task, now, false);
+                }
+            }
+        }
+        report.makespan = now;
+        return report;
+    }
+
+    /**
+     * Deploy the waiting tasks like {@link FileDownloader}'s schedule does.
+     */
+    private void schedule(List<SimTask> waiting, List<SimTask> running, double now) {
+        if (running.size() >= mParallelTaskCount || waiting.isEmpty()) return;
+        final long time = (long) now;
+        Collections.sort(waiting, new Comparator<SimTask>() {
+            @Override
+            public int compare(SimTask lhs, SimTask rhs) {
+                return mPolicy.order(lhs, rhs, time);
+            }
+        });
+        for (Iterator<SimTask> iterator = waiting.iterator(); iterator.hasNext(); ) {
+            SimTask task = iterator.next();
+            if (!mPolicy.canDeploy(task, running, mParallelTaskCount)) continue;
+            iterator.remove();
+            deploy(task, now);
+            running.add(task);
+            if (running.size() == mParallelTaskCount) return;
+        }
+    }
+
+    private void deploy(SimTask task, double now) {
+        if (task.startTime < 0) task.startTime = now;
+        task.connectedTime = now + task.link.latencyMs;
+        // fail at a random point of the remaining bytes, or never.
+        task.failRemaining = mRandom.nextDouble() < task.link.failureRate ? task.remaining * mRandom.nextDouble() : 0;
+    }
+
+    /**
+     * A modeled network path.
+     */
+    public static class Link {
+        final double bandwidthBytesPerSecond;
+        final long latencyMs;
+        final double failureRate;
+
+        /**
+         * The count of tasks transferring through this link now.
+         */
+        int transferCount;
+
+        /**
+         * @param bandwidthBytesPerSecond Shared by the transfers of this link equally.
+         * @param latencyMs               The time to connect and get the first byte.
+         * @param failureRate             The probability an attempt fails, 0 to 1.
+         */
+        public Link(long bandwidthBytesPerSecond, long latencyMs, double failureRate) {
+            if (bandwidthBytesPerSecond <= 0 || latencyMs < 0 || failureRate < 0 || failureRate >= 1) {
+                throw new IllegalArgumentException("Invalid link bandwidth[" + bandwidthBytesPerSecond
+                        + "] latency[" + latencyMs + "] failureRate[" + failureRate + "]");
+            }
+            this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+            this.latencyMs = latencyMs;
+            this.failureRate = failureRate;
+        }
+    }
+
+    private class SimTask implements SchedulePolicy.Task {
+        final long arrivalTime;
+        final Link link;
+        final long size;
+        final int priority;
+        double remaining;
+        double waitingSince;
+        double startTime = -1;
+        double connectedTime;
+        // the remaining bytes where this attempt fails, 0 if it won't.
+        double failRemaining;
+        boolean transferring;
+        int retries;
+
+        SimTask(long arrivalTime, Link link, long size, int priority) {
+            this.arrivalTime = arrivalTime;
+            this.link = link;
+            this.size = size;
+            this.priority = priority;
+            remaining = size;
+        }
+
+        double getRate() {
+            return link.bandwidthBytesPerSecond / Math.max(1, link.transferCount);
+        }
+
+        double nextEventTime(double now) {
+            if (!transferring) return Math.max(now, connectedTime);
+            return now + Math.max(0, remaining - failRemaining) * 1000 / getRate();
+        }
+
+        @Override
+        public long getRemainingSize() {
+            // the size-aware policy gets the size probed, the others never learn it before deploy.
+            return mPolicy.requiresFileSize() ? (long) Math.ceil(remaining) : -1;
+        }
+
+        @Override
+        public long getFileSize() {
+            return mPolicy.requiresFileSize() ? size : -1;
+        }
+
+        @Override
+        public long getWaitingSince() {
+            return (long) waitingSince;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+    }
+
+    /**
+     * The outcome of a simulation, the times are virtual milliseconds.
+     */
+    public static class Report {
+        private final int mParallelTaskCount;
+        double makespan;
+        double busySlotTime;
+        int retryCount;
+        private int mSucceededCount;
+        private int mFailedCount;
+        private double mCompletionTimeSum;
+        private double mMaxWaitingTime;
+        private final TreeMap<Integer, double[]> mCompletionByPriority = new TreeMap<Integer, double[]>();
+
+        Report(int parallelTaskCount) {
+            mParallelTaskCount = parallelTaskCount;
+        }
+
+        void onFinished(SimTask task, double now, boolean success) {
+            if (!success) {
+                mFailedCount++;
+                return;
+            }
+            mSucceededCount++;
+            double completionTime = now - task.arrivalTime;
+            mCompletionTimeSum += completionTime;
+            mMaxWaitingTime = Math.max(mMaxWaitingTime, task.startTime - task.arrivalTime);
+            double[] sumAndCount = mCompletionByPriority.get(task.priority);
+            if (sumAndCount == null) {
+                sumAndCount = new double[2];
+                mCompletionByPriority.put(task.priority, sumAndCount);
+            }
+            sumAndCount[0] += completionTime;
+            sumAndCount[1]++;
+        }
+
+        /**
+         * Returns when the last task finished.
+         */
+        public long getMakespan() {
+            return (long) makespan;
+        }
+
+        /**
+         * Returns the mean time from arrival to success of the succeeded tasks.
+         */
+        public long getMeanCompletionTime() {
+            return mSucceededCount > 0 ? (long) (mCompletionTimeSum / mSucceededCount) : 0;
+        }
+
+        /**
+         * Returns the mean completion time of the succeeded tasks of the priority, 0 if none.
+         */
+        public long getMeanCompletionTime(int priority) {
+            double[] sumAndCount = mCompletionByPriority.get(priority);
+            return sumAndCount != null ? (long) (sumAndCount[0] / sumAndCount[1]) : 0;
+        }
+
+        /**
+         * Returns the longest time a succeeded task waited before its first deploy, tells the starvation.
+         */
+        public long getMaxWaitingTime() {
+            return (long) mMaxWaitingTime;
+        }
+
+        /**
+         * Returns the fraction of the parallel places busy over the makespan, 0 to 1.
+         */
+        public double getSlotUtilization() {
+            return makespan > 0 ? busySlotTime / (mParallelTaskCount * makespan) : 0;
+        }
+
+        public int getSucceededCount() {
+            return mSucceededCount;
+        }
+
+        public int getFailedCount() {
+            return mFailedCount;
+        }
+
+        public int getRetryCount() {
+            return retryCount;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("makespan=").append(getMakespan()).append("ms")
+                    .append(" meanCompletion=").append(getMeanCompletionTime()).append("ms")
+                    .append(" maxWaiting=").append(getMaxWaitingTime()).append("ms")
+                    .append(" utilization=").append(String.format(Locale.US, "%.3f", getSlotUtilization()))
+                    .append(" succeeded=").append(mSucceededCount)
+                    .append(" failed=").append(mFailedCount)
+                    .append(" retries=").append(retryCount);
+            for (Integer priority : mCompletionByPriority.keySet()) {
+                builder.append(" meanCompletion[priority ").append(priority).append("]=")
+                        .append(getMeanCompletionTime(priority)).append("ms");
+            }
+            return builder.toString();
+        }
+    }
+}
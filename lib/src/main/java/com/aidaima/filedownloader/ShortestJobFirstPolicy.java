@@ -0,0 +1,118 @@
+package com.aidaima.filedownloader;
+
+import java.util.List;
+
+/**
+ * A size-aware {@link SchedulePolicy}, the waiting task who has the least remaining bytes
+ * will be deployed first, so that lots of small files won't be blocked by a huge one.
+ * <p/>
+ * To avoid the large tasks starving, each waiting task is aged, the remaining bytes we take to compare
+ * will decrease by {@link #mAgingBytesPerSecond} for every second it waited.
+ * Optionally, some places of the parallel counter can be reserved for small files only.
+ */
+public class ShortestJobFirstPolicy extends SchedulePolicy {
+    /**
+     * Default aging speed, a task waited one minute will be treat as 60MB smaller.
+     */
+    public static final long DEFAULT_AGING_BYTES_PER_SECOND = 1024 * 1024;
+
+    /**
+     * The size we assume when the task size can't be detected.
+     */
+    public static final long DEFAULT_UNKNOWN_SIZE = 16 * 1024 * 1024;
+
+    private final long mAgingBytesPerSecond;
+
+    private long mUnknownSize = DEFAULT_UNKNOWN_SIZE;
+
+    private int mReservedSlots;
+
+    private long mSmallFileThreshold;
+
+    public ShortestJobFirstPolicy() {
+        this(DEFAULT_AGING_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @param agingBytesPerSecond How many bytes to deduct for every second a task waited, 0 to disable aging.
+     */
+    public ShortestJobFirstPolicy(long agingBytesPerSecond) {
+        if (agingBytesPerSecond < 0) {
+            throw new IllegalArgumentException("agingBytesPerSecond[" + agingBytesPerSecond + "] must not be negative.");
+        }
+        mAgingBytesPerSecond = agingBytesPerSecond;
+    }
+
+    /**
+     * Reserve some places of the parallel counter for small files, large files can
+     * only take (parallelTaskCount - reservedSlots) places at the same time. At least one
+     * place is always left to the large files, the reserved places are clamped to
+     * (parallelTaskCount - 1) when scheduling, so they never starve.
+     *
+     * @param reservedSlots      The places reserved for small files.
+     * @param smallFileThreshold The maximum size of the file we considered small.
+     * @return this policy.
+     */
+    public ShortestJobFirstPolicy setSmallFileSlots(int reservedSlots, long smallFileThreshold) {
+        if (reservedSlots < 0 || smallFileThreshold < 0) {
+            throw new IllegalArgumentException("reservedSlots[" + reservedSlots
+                    + "] and smallFileThreshold[" + smallFileThreshold + "] must not be negative.");
+        }
+        mReservedSlots = reservedSlots;
+        mSmallFileThreshold = smallFileThreshold;
+        return this;
+    }
+
+    /**
+     * Set the size we assume when the task size can't be detected.
+     *
+     * @return this policy.
+     */
+    public ShortestJobFirstPolicy setUnknownSize(long unknownSize) {
+        mUnknownSize = unknownSize;
+        return this;
+    }
+
+    @Override
+    public boolean requiresFileSize() {
+        return true;
+    }
+
+    @Override
+    public int compare(Task lhs, Task rhs, long now) {
+        long lhsScore = score(lhs, now);
+        long rhsScore = score(rhs, now);
+        return lhsScore < rhsScore ? -1 : (lhsScore == rhsScore ? 0 : 1);
+    }
+
+    @Override
+    public boolean canDeploy(Task candidate, List<? extends Task> running, int parallelTaskCount) {
+        if (mReservedSlots == 0 || isSmall(candidate)) return true;
+
+        int largeTaskCount = 0;
+        for (Task task : running) {
+            if (!isSmall(task)) largeTaskCount++;
+        }
+        int reservedSlots = Math.min(mReservedSlots, parallelTaskCount - 1);
+        return largeTaskCount < parallelTaskCount - reservedSlots;
+    }
+
+    /**
+     * By the whole file size, a large file nearly done still takes a large file's place,
+     * the remaining bytes only decide the order.
+     */
+    private boolean isSmall(Task task) {
+        long fileSize = task.getFileSize();
+        return fileSize >= 0 && fileSize <= mSmallFileThreshold;
+    }
+
+    /**
+     * The remaining bytes deduct the aging bytes, the lesser score is the higher priority.
+     */
+    private long score(Task task, long now) {
+        long remainingSize = task.getRemainingSize();
+        if (remainingSize < 0) remainingSize = mUnknownSize;
+        long waitedSeconds = Math.max(0, now - task.getWaitingSince()) / 1000;
+        return remainingSize - waitedSeconds * mAgingBytesPerSecond;
+    }
+}
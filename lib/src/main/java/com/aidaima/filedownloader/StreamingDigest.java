@@ -0,0 +1,118 @@
+package com.aidaima.filedownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A {@link MessageDigest} which is fed by the download write loop, it remembers how many bytes
+ * it digested, so that it can continue from a resumed temporary file without a second pass.
+ */
+class StreamingDigest {
+    private final String mAlgorithm;
+
+    private MessageDigest mDigest;
+
+    /**
+     * How many bytes of the file were digested.
+     */
+    private long mOffset;
+
+    public StreamingDigest(String algorithm) throws NoSuchAlgorithmException {
+        mAlgorithm = algorithm;
+        mDigest = MessageDigest.getInstance(algorithm);
+    }
+
+    private StreamingDigest(String algorithm, MessageDigest digest, long offset) {
+        mAlgorithm = algorithm;
+        mDigest = digest;
+        mOffset = offset;
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public void update(byte[] buffer, int offset, int length) {
+        mDigest.update(buffer, offset, length);
+        mOffset += length;
+    }
+
+    /**
+     * Make this digest cover exactly the first length bytes of the file, the missing bytes
+     * are read from the file, if this digest went beyond the length, restart from the beginning.
+     */
+    public void syncTo(File file, long length) throws IOException {
+        if (mOffset == length) return;
+        if (mOffset > length) {
+            mDigest.reset();
+            mOffset = 0;
+        }
+        if (length == 0) return;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] buffer = null;
+        try {
+            buffer = MemoryBudget.get().acquire(MemoryBudget.BUFFER_SIZE);
+            raf.seek(mOffset);
+            while (mOffset < length) {
+                int count = raf.read(buffer, 0, (int) Math.min(buffer.length, length - mOffset));
+                if (count == -1) throw new IOException("File " + file + " shorter than " + length);
+                update(buffer, 0, count);
+            }
+        } finally {
+            MemoryBudget.get().release(buffer);
+            raf.close();
+        }
+    }
+
+    /**
+     * Complete the digest computation, this digest can't be used anymore.
+     */
+    public byte[] digest() {
+        return mDigest.digest();
+    }
+
+    /**
+     * Returns a copy of current state, or null if the algorithm doesn't support clone.
+     */
+    public StreamingDigest copy() {
+        try {
+            return new StreamingDigest(mAlgorithm, (MessageDigest) mDigest.clone(), mOffset);
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Holds the digest state between the requests of one task, so the digest survives pause/resume.
+     */
+    static class Checkpoint {
+        private StreamingDigest mState;
+
+        public synchronized void save(StreamingDigest digest) {
+            mState = digest.copy();
+        }
+
+        /**
+         * Returns a copy of the saved state, or a new digest if nothing saved in this algorithm.
+         */
+        public synchronized StreamingDigest restore(String algorithm) throws NoSuchAlgorithmException {
+            if (mState != null && mState.getAlgorithm().equalsIgnoreCase(algorithm)) {
+                StreamingDigest digest = mState.copy();
+                if (digest != null) return digest;
+            }
+            return new StreamingDigest(algorithm);
+        }
+
+        public synchronized void clear() {
+            mState = null;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package com.aidaima.filedownloader;
+
+import android.os.Handler;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Persists the Task Queue of a {@link FileDownloader}, pass it to
+ * {@link FileDownloader#setTaskStore(TaskStore, FileDownloader.Listener)} to get the tasks back
+ * after the process restart.
+ * <p/>
+ * The store is a journal, every change of a task appends a line, such as added, status changed,
+ * priority changed, progress checkpoint and removed. The journal is written by a background thread,
+ * and compacted to one line per task when the dead lines exceed the live ones.
+ * <p/>
+ * The journal is loaded by the background thread too, the tasks which were downloading come back
+ * at once, the waiting tasks come back only when the schedule has an idle place for them, the paused
+ * tasks come back when asked by {@link FileDownloader#restorePausedTasks()} or {@link FileDownloader#get(String, String)},
+ * so the cold start doesn't grow with the queue size. Except the loading, all methods are called
+ * on the main thread by the {@link FileDownloader}.
+ */
+public class TaskStore {
+    private static final String TAG = TaskStore.class.getSimpleName();
+
+    /**
+     * The downloaded bytes between two progress checkpoints, the resumed download continues
+     * from the temporary file anyway, the checkpoint only saves the probe of the size.
+     */
+    static final long CHECKPOINT_INTERVAL_BYTES = 1024 * 1024;
+
+    /**
+     * Compact when the journal has this many lines more than the live tasks.
+     */
+    private static final int COMPACT_THRESHOLD = 256;
+
+    private static final String OP_ADD = "A";
+    private static final String OP_STATUS = "S";
+    private static final String OP_PRIORITY = "P";
+    private static final String OP_CHECKPOINT = "C";
+    private static final String OP_REMOVE = "D";
+
+    private final File mJournalFile;
+
+    /**
+     * The live tasks keyed by id, includes the ones not restored yet.
+     */
+    private final LinkedHashMap<String, Record> mRecords = new LinkedHashMap<String, Record>();
+
+    /**
+     * The loaded waiting tasks not restored yet, ordered by priority then the journal order.
+     */
+    private final List<Record> mRestorableWaiting = new ArrayList<Record>();
+
+    /**
+     * The loaded paused tasks not restored yet.
+     */
+    private final List<Record> mRestorablePaused = new ArrayList<Record>();
+
+    /**
+     * The loaded tasks which were downloading when the process died.
+     */
+    private final List<Record> mInterrupted = new ArrayList<Record>();
+
+    private final Random mRandom = new Random();
+
+    private int mJournalLineCount;
+
+    private boolean mLoaded;
+
+    private Writer mWriter;
+
+    /**
+     * The journal lines and compactions waiting for the writer thread.
+     */
+    private final BlockingQueue<Object> mQueue = new LinkedBlockingQueue<Object>();
+
+    public TaskStore(File journalFile) {
+        mJournalFile = journalFile;
+    }
+
+    /**
+     * Start the writer thread, it loads the journal first, then the callback is posted through the handler.
+     */
+    void start(final Handler handler, final LoadCallback callback) {
+        Thread thread = new Thread(TAG) {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                final LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>();
+                final int lineCount = load(records);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoaded(records, lineCount);
+                        callback.onLoaded();
+                    }
+                });
+                processQueue();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void onLoaded(LinkedHashMap<String, Record> records, int lineCount) {
+        // the tasks added while loading are newer than the journal, the journaled one of the same
+        // path and url is the same task, it must not come back as a second one.
+        Map<String, Boolean> addedKeys = new HashMap<String, Boolean>();
+        for (Record record : mRecords.values()) {
+            addedKeys.put(record.storeFilePath + "\n" + record.url, true);
+        }
+        for (Iterator<Record> iterator = records.values().iterator(); iterator.hasNext(); ) {
+            Record record = iterator.next();
+            if (mRecords.containsKey(record.id) || !addedKeys.containsKey(record.storeFilePath + "\n" + record.url)) continue;
+            iterator.remove();
+            append(OP_REMOVE + "\t" + record.id);
+        }
+        records.putAll(mRecords);
+        for (Record record : records.values()) {
+            if (mRecords.containsKey(record.id)) continue;
+            if (record.status == FileDownloader.DownloadController.STATUS_PAUSE) mRestorablePaused.add(record);
+            else if (record.status == FileDownloader.DownloadController.STATUS_WAITING) mRestorableWaiting.add(record);
+            else mInterrupted.add(record);
+        }
+        mRecords.clear();
+        mRecords.putAll(records);
+        mJournalLineCount += lineCount;
+        mLoaded = true;
+
+        // stable sort, the same priority keeps the journal order.
+        Collections.sort(mRestorableWaiting, new Comparator<Record>() {
+            @Override
+            public int compare(Record lhs, Record rhs) {
+                return lhs.priority == rhs.priority ? 0 : (lhs.priority > rhs.priority ? -1 : 1);
+            }
+        });
+        compactIfNeeded();
+    }
+
+    /**
+     * Returns the loaded tasks which were downloading, they should be restored at once.
+     */
+    List<Record> pollInterrupted() {
+        List<Record> interrupted = new ArrayList<Record>(mInterrupted);
+        mInterrupted.clear();
+        return interrupted;
+    }
+
+    /**
+     * Returns the waiting task should be restored next without removal, null if none.
+     */
+    Record peekWaiting() {
+        return mRestorableWaiting.isEmpty() ? null : mRestorableWaiting.get(0);
+    }
+
+    Record pollWaiting() {
+        return mRestorableWaiting.isEmpty() ? null : mRestorableWaiting.remove(0);
+    }
+
+    List<Record> pollPaused() {
+        List<Record> paused = new ArrayList<Record>(mRestorablePaused);
+        mRestorablePaused.clear();
+        return paused;
+    }
+
+    /**
+     * Take the waiting or paused task of the path and url out of the restorable ones, null if none.
+     */
+    Record pollRestorable(String storeFilePath, String url) {
+        Record record = pollMatched(mRestorablePaused, storeFilePath, url);
+        return record != null ? record : pollMatched(mRestorableWaiting, storeFilePath, url);
+    }
+
+    private static Record pollMatched(List<Record> records, String storeFilePath, String url) {
+        for (Iterator<Record> iterator = records.iterator(); iterator.hasNext(); ) {
+            Record record = iterator.next();
+            if (record.storeFilePath.equals(storeFilePath) && record.url.equals(url)) {
+                iterator.remove();
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the tasks not restored yet.
+     */
+    void removeRestorable() {
+        List<Record> records = new ArrayList<Record>(mInterrupted);
+        records.addAll(mRestorableWaiting);
+        records.addAll(mRestorablePaused);
+        mInterrupted.clear();
+        mRestorableWaiting.clear();
+        mRestorablePaused.clear();
+        for (Record record : records) {
+            remove(record.id);
+        }
+    }
+
+    /**
+     * Record a new task.
+     *
+     * @return the id of the task.
+     */
+    String add(String storeFilePath, String url, DownloadOptions options, int priority) {
+        Record record = new Record(Long.toHexString(mRandom.nextLong()), url, storeFilePath);
+        record.priority = priority;
+        record.checksum = options.getExpectedChecksum();
+        record.replaceExisting = options.isReplaceExisting();
+        record.acceptCompressed = options.isAcceptCompressed();
+        if (options.getExtractDirectory() != null) {
+            record.extractDirectory = options.getExtractDirectory().getPath();
+            record.archiveFormat = options.resolveArchiveFormat(storeFilePath, url);
+        }
+        mRecords.put(record.id, record);
+        append(record.toAddLine());
+        return record.id;
+    }
+
+    void updateStatus(String id, int status) {
+        Record record = id != null ? mRecords.get(id) : null;
+        if (record == null || record.status == status) return;
+        record.status = status;
+        append(OP_STATUS + "\t" + id + "\t" + status);
+    }
+
+    void updatePriority(String id, int priority) {
+        Record record = id != null ? mRecords.get(id) : null;
+        if (record == null || record.priority == priority) return;
+        record.priority = priority;
+        append(OP_PRIORITY + "\t" + id + "\t" + priority);
+    }
+
+    /**
+     * Record the progress if it moved enough since the last checkpoint, or forced.
+     */
+    void checkpoint(String id, long fileSize, long downloadedSize, boolean force) {
+        Record record = id != null ? mRecords.get(id) : null;
+        if (record == null) return;
+        if (!force && fileSize == record.fileSize
+                && Math.abs(downloadedSize - record.downloadedSize) < CHECKPOINT_INTERVAL_BYTES) return;
+        if (fileSize == record.fileSize && downloadedSize == record.downloadedSize) return;
+        record.fileSize = fileSize;
+        record.downloadedSize = downloadedSize;
+        append(OP_CHECKPOINT + "\t" + id + "\t" + fileSize + "\t" + downloadedSize);
+    }
+
+    void remove(String id) {
+        if (id == null || mRecords.remove(id) == null) return;
+        append(OP_REMOVE + "\t" + id);
+        compactIfNeeded();
+    }
+
+    private void append(String line) {
+        mJournalLineCount++;
+        mQueue.add(line);
+    }
+
+    private void compactIfNeeded() {
+        // before loaded we don't know the whole live set.
+        if (!mLoaded || mJournalLineCount - mRecords.size() < COMPACT_THRESHOLD
+                || mJournalLineCount < mRecords.size() * 2) return;
+        List<String> snapshot = new ArrayList<String>(mRecords.size());
+        for (Record record : mRecords.values()) {
+            snapshot.add(record.toSnapshotLine());
+        }
+        mJournalLineCount = snapshot.size();
+        mQueue.add(new Compaction(snapshot));
+    }
+
+    /**
+     * Replay the journal into the records, returns the line count.
+     */
+    private int load(Map<String, Record> records) {
+        if (!mJournalFile.exists()) return 0;
+        int lineCount = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                try {
+                    replay(records, line.split("\t"));
+                } catch (RuntimeException e) {
+                    // the last line may be torn by the process death, skip it.
+                    Log.w(TAG, "Skip the broken journal line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't load the journal " + mJournalFile, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return lineCount;
+    }
+
+    private static void replay(Map<String, Record> records, String[] fields) {
+        String op = fields[0];
+        if (OP_ADD.equals(op)) {
+            Record record = Record.fromAddLine(fields);
+            records.put(record.id, record);
+            return;
+        }
+        Record record = records.get(fields[1]);
+        if (record == null) return;
+        if (OP_STATUS.equals(op)) {
+            record.status = Integer.parseInt(fields[2]);
+        } else if (OP_PRIORITY.equals(op)) {
+            record.priority = Integer.parseInt(fields[2]);
+        } else if (OP_CHECKPOINT.equals(op)) {
+            record.fileSize = Long.parseLong(fields[2]);
+            record.downloadedSize = Long.parseLong(fields[3]);
+        } else if (OP_REMOVE.equals(op)) {
+            records.remove(record.id);
+        }
+    }
+
+    /**
+     * Write the queued lines, flush when the queue drained, so a burst of changes costs one flush.
+     */
+    private void processQueue() {
+        while (true) {
+            Object item;
+            try {
+                item = mQueue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                if (item instanceof Compaction) {
+                    compact(((Compaction) item).lines);
+                } else {
+                    if (mWriter == null) {
+                        mWriter = new BufferedWriter(new OutputStreamWriter(
+                                new FileOutputStream(mJournalFile, true), "UTF-8"));
+                    }
+                    mWriter.write((String) item);
+                    mWriter.write('\n');
+                }
+                if (mQueue.isEmpty() && mWriter != null) mWriter.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Can't write the journal " + mJournalFile, e);
+                closeWriter();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with the snapshot, the old journal is kept until the new one is complete.
+     */
+    private void compact(List<String> lines) throws IOException {
+        closeWriter();
+        File tmpJournalFile = new File(mJournalFile.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpJournalFile), "UTF-8"));
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmpJournalFile.renameTo(mJournalFile)) {
+            throw new IOException("Can't rename " + tmpJournalFile + " to " + mJournalFile);
+        }
+    }
+
+    private void closeWriter() {
+        if (mWriter == null) return;
+        try {
+            mWriter.close();
+        } catch (IOException ignored) {
+        }
+        mWriter = null;
+    }
+
+    interface LoadCallback {
+        void onLoaded();
+    }
+
+    private static class Compaction {
+        final List<String> lines;
+
+        Compaction(List<String> lines) {
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * The persisted state of a task.
+     */
+    static class Record {
+        final String id;
+        final String url;
+        final String storeFilePath;
+        int status = FileDownloader.DownloadController.STATUS_WAITING;
+        int priority;
+        long fileSize = -1;
+        long downloadedSize;
+        Checksum checksum;
+        boolean replaceExisting;
+        boolean acceptCompressed;
+        String extractDirectory;
+        int archiveFormat = -1;
+
+        Record(String id, String url, String storeFilePath) {
+            this.id = id;
+            this.url = url;
+            this.storeFilePath = storeFilePath;
+        }
+
+        /**
+         * Returns the options to restore the task.
+         */
+        DownloadOptions toOptions() {
+            DownloadOptions options = new DownloadOptions()
+                    .setExpectedChecksum(checksum)
+                    .setPriority(priority)
+                    .setReplaceExisting(replaceExisting)
+                    .setAcceptCompressed(acceptCompressed);
+            if (extractDirectory != null) options.setExtractDirectory(new File(extractDirectory), archiveFormat);
+            return options;
+        }
+
+        /**
+         * Fields: op, id, url, path, priority, checksum, replaceExisting, acceptCompressed, extractDirectory, archiveFormat.
+         */
+        String toAddLine() {
+            return OP_ADD + "\t" + id + "\t" + url + "\t" + storeFilePath + "\t" + priority
+                    + "\t" + (checksum != null ? checksum.algorithm + ":" + checksum.toHex() : "-")
+                    + "\t" + (replaceExisting ? 1 : 0) + "\t" + (acceptCompressed ? 1 : 0)
+                    + "\t" + (extractDirectory != null ? extractDirectory : "-") + "\t" + archiveFormat;
+        }
+
+        /**
+         * The add line with the current status and progress, one line holds the whole task.
+         */
+        String toSnapshotLine() {
+            return toAddLine() + "\t" + status + "\t" + fileSize + "\t" + downloadedSize;
+        }
+
+        static Record fromAddLine(String[] fields) {
+            Record record = new Record(fields[1], fields[2], fields[3]);
+            record.priority = Integer.parseInt(fields[4]);
+            if (!"-".equals(fields[5])) {
+                int colonIndex = fields[5].indexOf(':');
+                record.checksum = new Checksum(fields[5].substring(0, colonIndex), fields[5].substring(colonIndex + 1));
+            }
+            record.replaceExisting = "1".equals(fields[6]);
+            record.acceptCompressed = "1".equals(fields[7]);
+            if (!"-".equals(fields[8]) && !TextUtils.isEmpty(fields[8])) record.extractDirectory = fields[8];
+            record.archiveFormat = Integer.parseInt(fields[9]);
+            if (fields.length >= 13) {
+                record.status = Integer.parseInt(fields[10]);
+                record.fileSize = Long.parseLong(fields[11]);
+                record.downloadedSize = Long.parseLong(fields[12]);
+            }
+            return record;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.aidaima.filedownloader;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records the timeline of every HTTP exchange of the requests to a compact binary {@link DownloadTrace},
+ * register it by {@link FileDownloader#setTraceRecorder(TraceRecorder)}. An exchange is written
+ * when it ends, the content bytes aren't recorded, only their sizes and arrival times.
+ * It can be shared by threads.
+ */
+public class TraceRecorder {
+    private static final String TAG = TraceRecorder.class.getSimpleName();
+
+    private final DataOutputStream mOut;
+
+    private final long mStartTime;
+
+    private boolean mClosed;
+
+    /**
+     * @param out Where to write the trace, closed by {@link #close()}.
+     */
+    public TraceRecorder(OutputStream out) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        DownloadTrace.writeHeader(mOut);
+        mStartTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Begin an exchange, the request headers are copied.
+     */
+    DownloadTrace.Exchange begin(String url, Map<String, String> requestHeaders) {
+        return new DownloadTrace.Exchange(now(), url, new LinkedHashMap<String, String>(requestHeaders));
+    }
+
+    long now() {
+        return SystemClock.uptimeMillis() - mStartTime;
+    }
+
+    /**
+     * End the exchange and write it.
+     */
+    synchronized void end(DownloadTrace.Exchange exchange, boolean success) {
+        exchange.onEnd(now(), success);
+        if (mClosed) return;
+        try {
+            exchange.writeTo(mOut);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't write the trace, stop recording.", e);
+            close();
+        }
+    }
+
+    /**
+     * Flush what was recorded.
+     */
+    public synchronized void flush() throws IOException {
+        if (!mClosed) mOut.flush();
+    }
+
+    /**
+     * Stop recording then close the stream, the exchanges end after this are dropped.
+     */
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        try {
+            mOut.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.aidaima.filedownloader;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fake transport that answers the requests with the exchanges of a {@link DownloadTrace}, the
+ * responses and chunks arrive by the recorded delays, on the real time or a {@link ReplayClock.Virtual}.
+ * Set it by {@link FileDownloader#setHttpStack(HttpStack)}, then {@link #enqueueAll(FileDownloader, File, FileDownloader.Listener)}
+ * to benchmark the schedule and I/O on production-shaped traffic without network.
+ * <p/>
+ * The content is zeros of the recorded sizes, so the headers that describe the real content are
+ * dropped, such as the digests, the validators, the encoding and the range. Every exchange is
+ * served as a complete 200 response of its recorded chunks, the recorded failure fails at the same point.
+ */
+public class TraceReplayer implements HttpStack {
+    private static final String[] DROPPED_HEADERS = {
+            "Content-Length", "Content-Encoding", "Content-Range", "Content-MD5", "Digest", "ETag", "Last-Modified"};
+
+    private final DownloadTrace mTrace;
+
+    private final ReplayClock mClock;
+
+    /**
+     * The exchanges not replayed yet, by url, in the recorded order.
+     */
+    private final Map<String, LinkedList<DownloadTrace.Exchange>> mPending =
+            new HashMap<String, LinkedList<DownloadTrace.Exchange>>();
+
+    public TraceReplayer(DownloadTrace trace, ReplayClock clock) {
+        mTrace = trace;
+        mClock = clock;
+        for (DownloadTrace.Exchange exchange : trace.getExchanges()) {
+            LinkedList<DownloadTrace.Exchange> exchanges = mPending.get(exchange.url);
+            if (exchanges == null) {
+                exchanges = new LinkedList<DownloadTrace.Exchange>();
+                mPending.put(exchange.url, exchanges);
+            }
+            exchanges.add(exchange);
+        }
+    }
+
+    public ReplayClock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Add a task for every traced url by the order they started, the files are stored in the directory.
+     * Must be invoked from the main thread.
+     *
+     * @return the controllers of the added tasks.
+     */
+    public List<FileDownloader.DownloadController> enqueueAll(FileDownloader downloader, File directory,
+                                                              FileDownloader.Listener listener) {
+        List<DownloadTrace.Exchange> exchanges = new ArrayList<DownloadTrace.Exchange>(mTrace.getExchanges());
+        Collections.sort(exchanges, new Comparator<DownloadTrace.Exchange>() {
+            @Override
+            public int compare(DownloadTrace.Exchange lhs, DownloadTrace.Exchange rhs) {
+                return lhs.startTime == rhs.startTime ? 0 : (lhs.startTime < rhs.startTime ? -1 : 1);
+            }
+        });
+
+        DownloadManifest manifest = new DownloadManifest();
+        Map<String, Boolean> added = new HashMap<String, Boolean>();
+        for (DownloadTrace.Exchange exchange : exchanges) {
+            // the retries of a url are the same task.
+            if (added.put(exchange.url, Boolean.TRUE) != null) continue;
+            manifest.add(exchange.url, new File(directory, "replay-" + added.size()).getPath());
+        }
+        return downloader.addAll(manifest, listener).getControllers();
+    }
+
+    @Override
+    public HttpResponse performRequest(DownloadRequest request, Map<String, String> headers) throws IOException {
+        DownloadTrace.Exchange exchange;
+        synchronized (mPending) {
+            LinkedList<DownloadTrace.Exchange> exchanges = mPending.get(request.getUrl());
+            exchange = exchanges != null ? exchanges.poll() : null;
+        }
+        if (exchange == null) throw new IOException("No recorded exchange left for " + request.getUrl());
+
+        ReplayInputStream content = new ReplayInputStream(exchange);
+        try {
+            content.sleep(exchange.responseDelay);
+            if (exchange.statusCode == 0) throw new IOException("Recorded exchange got no response.");
+        } catch (IOException e) {
+            content.close();
+            throw e;
+        }
+
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(
+                new ProtocolVersion("HTTP", 1, 1), exchange.statusCode == 206 ? 200 : exchange.statusCode, ""));
+        for (Map.Entry<String, String> header : exchange.responseHeaders.entrySet()) {
+            if (!isDropped(header.getKey())) response.addHeader(new BasicHeader(header.getKey(), header.getValue()));
+        }
+        long contentLength = exchange.getContentLength();
+        response.addHeader(new BasicHeader("Content-Length", String.valueOf(contentLength)));
+
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(content);
+        entity.setContentLength(contentLength);
+        response.setEntity(entity);
+        return response;
+    }
+
+    private static boolean isDropped(String name) {
+        for (String dropped : DROPPED_HEADERS) {
+            if (dropped.equalsIgnoreCase(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Yields the zeros of the recorded chunks by their delays, a participant of the clock till it ends or is closed.
+     */
+    private class ReplayInputStream extends InputStream {
+        private final DownloadTrace.Exchange mExchange;
+        private long mEventTime;
+        private int mChunkIndex = -1;
+        private int mChunkRemaining;
+        private boolean mEnded;
+        private boolean mClosed;
+        private boolean mLeftClock;
+
+        ReplayInputStream(DownloadTrace.Exchange exchange) {
+            mExchange = exchange;
+            mClock.register();
+            mEventTime = mClock.now();
+        }
+
+        void sleep(long delay) throws IOException {
+            mEventTime += delay;
+            try {
+                mClock.sleepUntil(mEventTime);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Replay interrupted.");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mClosed) throw new IOException("Stream closed.");
+            if (count == 0) return 0;
+            while (mChunkRemaining == 0) {
+                if (mEnded) return -1;
+                if (++mChunkIndex < mExchange.getChunkCount()) {
+                    sleep(mExchange.getChunkDelay(mChunkIndex));
+                    mChunkRemaining = mExchange.getChunkSize(mChunkIndex);
+                } else {
+                    sleep(mExchange.endDelay);
+                    mEnded = true;
+                    // the end of stream leaves the clock, whether the reader closes us or not.
+                    leaveClock();
+                    if (!mExchange.success) throw new IOException("Recorded exchange failed here.");
+                }
+            }
+            int length = Math.min(count, mChunkRemaining);
+            for (int i = offset; i < offset + length; i++) buffer[i] = 0;
+            mChunkRemaining -= length;
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return mChunkRemaining;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            leaveClock();
+        }
+
+        private void leaveClock() {
+            if (mLeftClock) return;
+            mLeftClock = true;
+            mClock.unregister();
+        }
+    }
+}